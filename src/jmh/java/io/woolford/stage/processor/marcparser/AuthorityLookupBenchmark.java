@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import io.woolford.stage.lib.marcparser.AuthorityEnricher;
+import io.woolford.stage.lib.marcparser.AuthorityIndex;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of linking one heading to its authority record: {@link #cachedHeading} goes through a warm enricher cache,
+ * {@link #indexLookup} searches the memory-mapped index for a random heading.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorityLookupBenchmark {
+
+  @Param({"1000000"})
+  public int headings;
+
+  private Path directory;
+  private AuthorityIndex index;
+  private AuthorityEnricher enricher;
+  private String[] keys;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("authorities");
+    Path file = directory.resolve("authorities.mrc");
+    MarcFactory factory = MarcFactory.newInstance();
+    try (OutputStream out = Files.newOutputStream(file)) {
+      MarcStreamWriter writer = new MarcStreamWriter(out, "UTF8");
+      for (int i = 0; i < headings; i++) {
+        Record record = factory.newRecord("00000nz  a2200000n  4500");
+        record.addVariableField(factory.newControlField("001", "sh" + i));
+        DataField heading = factory.newDataField("150", ' ', '0');
+        heading.addSubfield(factory.newSubfield('a', "Topic " + Integer.toString(i, 36)));
+        record.addVariableField(heading);
+        writer.write(record);
+      }
+      writer.close();
+    }
+    index = AuthorityIndex.open(file, directory.resolve("authorities.mrc.idx"));
+    enricher = new AuthorityEnricher(new FieldTreeBuilder(), index, 10000);
+    enricher.startRecord("00000nam a2200000 a 4500");
+    Random random = new Random(42);
+    keys = new String[1024];
+    for (int i = 0; i < keys.length; i++) {
+      String heading = "Topic " + Integer.toString(random.nextInt(headings), 36);
+      keys[i] = AuthorityIndex.key(AuthorityIndex.TOPICAL_TERM, heading);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    index.close();
+    index = null;
+    Files.deleteIfExists(directory.resolve("authorities.mrc.idx"));
+    Files.deleteIfExists(directory.resolve("authorities.mrc"));
+    Files.deleteIfExists(directory);
+  }
+
+  @Benchmark
+  public int cachedHeading() {
+    enricher.startDataField("650", ' ', '0');
+    enricher.subfield('a', "Topic 1");
+    enricher.endDataField();
+    return enricher.getCacheHits();
+  }
+
+  @Benchmark
+  public String indexLookup() {
+    return index.lookup(keys[next++ & (keys.length - 1)]);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import io.woolford.stage.lib.marcparser.Compression;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.Iso2709StreamReader;
+import io.woolford.stage.lib.marcparser.RecordSlices;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cost of decoding a 1,000 record blob as it is decompressed, one record at a time, next to decoding it uncompressed
+ * from slices of the whole blob as the MARC Parser does for uncompressed input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressedInputBenchmark {
+
+  private static final int RECORDS = 1000;
+
+  @Param({"NONE", "GZIP", "BZIP2", "ZSTD"})
+  public Compression compression;
+
+  private byte[] blob;
+  private RecordSlices slices;
+  private Iso2709Decoder decoder;
+  private FieldTreeBuilder builder;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    byte[] marc = MarcCorpus.blob(MarcCorpus.RecordSize.TYPICAL, RECORDS, 42);
+    blob = compression == Compression.NONE ? marc : compress(marc);
+    slices = new RecordSlices();
+    decoder = new Iso2709Decoder();
+    builder = new FieldTreeBuilder();
+  }
+
+  private byte[] compress(byte[] marc) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream compressed;
+    switch (compression) {
+      case GZIP:
+        compressed = new GZIPOutputStream(out);
+        break;
+      case BZIP2:
+        compressed = new BZip2CompressorOutputStream(out);
+        break;
+      default:
+        compressed = new ZstdCompressorOutputStream(out);
+        break;
+    }
+    compressed.write(marc);
+    compressed.close();
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public void decode(Blackhole blackhole) throws IOException {
+    if (compression == Compression.NONE) {
+      slices.scan(blob, 0, blob.length);
+      for (int i = 0; i < slices.size(); i++) {
+        decoder.decode(blob, slices.offset(i), slices.length(i), builder);
+        blackhole.consume(builder.getRecordField());
+      }
+      return;
+    }
+    try (InputStream in = compression.decompress(new ByteArrayInputStream(blob))) {
+      Iso2709StreamReader reader = new Iso2709StreamReader(in);
+      while (reader.next()) {
+        decoder.decode(reader.buffer(), 0, reader.length(), builder);
+        blackhole.consume(builder.getRecordField());
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import io.woolford.stage.lib.marcparser.CorpusProfile;
+import io.woolford.stage.lib.marcparser.CorpusProfiler;
+import io.woolford.stage.lib.marcparser.FieldSelector;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.MarcRecordHandler;
+import io.woolford.stage.lib.marcparser.RecordSlices;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+
+/**
+ * Cost of adding every record of a 1,000 record blob to a corpus profile while it is decoded into fields, next to
+ * decoding it alone, as the processor does it: tags and lengths come from the directory, and subfields are profiled
+ * as far as they are decoded. With {@code projected}, only the 245 is decoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorpusProfileBenchmark {
+
+  private static final int RECORDS = 1000;
+
+  // A thousand HUGE records include some too long to decode, as in Iso2709ValidatorBenchmark.
+  @Param({"SMALL", "TYPICAL"})
+  public MarcCorpus.RecordSize size;
+
+  @Param({"false", "true"})
+  public boolean profile;
+
+  @Param({"false", "true"})
+  public boolean projected;
+
+  private byte[] blob;
+  private RecordSlices slices;
+  private Iso2709Decoder decoder;
+  private FieldTreeBuilder builder;
+  private MarcRecordHandler handler;
+  private CorpusProfiler profiler;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    blob = MarcCorpus.blob(size, RECORDS, 42);
+    slices = new RecordSlices();
+    FieldSelector selector = projected ? FieldSelector.of(true, Collections.singletonList("245")) : FieldSelector.ALL;
+    decoder = new Iso2709Decoder().setFieldSelector(selector);
+    builder = new FieldTreeBuilder();
+    profiler = profile ? new CorpusProfiler(builder, selector, new CorpusProfile(50)) : null;
+    handler = profile ? profiler : builder;
+  }
+
+  @Benchmark
+  public void decode(Blackhole blackhole) {
+    slices.scan(blob, 0, blob.length);
+    for (int i = 0; i < slices.size(); i++) {
+      if (profiler != null) {
+        profiler.directory(blob, slices.offset(i), slices.length(i));
+      }
+      decoder.decode(blob, slices.offset(i), slices.length(i), handler);
+      blackhole.consume(builder.getRecordField());
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.DataField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+/**
+ * Cost of mapping one synthetic record to SDC fields, without the SDK runner around it.
+ * <p>{@link #getMapOfDataField} maps marc4j data fields that were parsed up front, so it measures the mapping alone.
+ * {@link #decodeNative} covers the whole native path, decoding and mapping, for comparison.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataFieldMappingBenchmark {
+
+  @Param({"SMALL", "TYPICAL", "HUGE"})
+  public MarcCorpus.RecordSize size;
+
+  private List<DataField> dataFields;
+  private byte[] record;
+  private Iso2709Decoder decoder;
+  private FieldTreeBuilder builder;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    record = MarcCorpus.blob(size, 1, 42);
+    dataFields = new MarcStreamReader(new ByteArrayInputStream(record)).next().getDataFields();
+    decoder = new Iso2709Decoder();
+    builder = new FieldTreeBuilder();
+  }
+
+  @Benchmark
+  public void getMapOfDataField(Blackhole blackhole) {
+    for (DataField dataField : dataFields) {
+      blackhole.consume(MarcParserProcessor.getMapOfDataField(dataField));
+    }
+  }
+
+  @Benchmark
+  public Object decodeNative() {
+    decoder.decode(record, 0, record.length, builder);
+    return builder.getRecordField();
+  }
+}
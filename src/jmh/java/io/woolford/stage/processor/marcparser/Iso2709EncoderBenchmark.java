@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.Iso2709Encoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of writing one synthetic record back to ISO 2709 with the MARC Writer's encoder, next to the cost of decoding
+ * it, so the two directions can be compared.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Iso2709EncoderBenchmark {
+
+  @Param({"SMALL", "TYPICAL", "HUGE"})
+  public MarcCorpus.RecordSize size;
+
+  private byte[] record;
+  private Field tree;
+  private Iso2709Decoder decoder;
+  private FieldTreeBuilder builder;
+  private Iso2709Encoder encoder;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    record = MarcCorpus.blob(size, 1, 42);
+    decoder = new Iso2709Decoder();
+    builder = new FieldTreeBuilder();
+    decoder.decode(record, 0, record.length, builder);
+    tree = builder.getRecordField();
+    encoder = new Iso2709Encoder();
+  }
+
+  @Benchmark
+  public Object decode() {
+    decoder.decode(record, 0, record.length, builder);
+    return builder.getRecordField();
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return encoder.encode(tree);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.Iso2709Validator;
+import io.woolford.stage.lib.marcparser.RecordSlices;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking the structure of a 1,000 record blob in validate-only mode, next to the cost of decoding it. The
+ * {@code bytes} counter reports the bytes checked per second, to compare against disk bandwidth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Iso2709ValidatorBenchmark {
+
+  private static final int RECORDS = 1000;
+
+  // A thousand HUGE records include some that outgrow the five digit record length, which only the validator reads.
+  @Param({"SMALL", "TYPICAL"})
+  public MarcCorpus.RecordSize size;
+
+  private byte[] blob;
+  private RecordSlices slices;
+  private Iso2709Decoder decoder;
+  private FieldTreeBuilder builder;
+  private Iso2709Validator validator;
+
+  /**
+   * Bytes read by the benchmark methods, which JMH reports per second next to the operations.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    blob = MarcCorpus.blob(size, RECORDS, 42);
+    slices = new RecordSlices();
+    decoder = new Iso2709Decoder();
+    builder = new FieldTreeBuilder();
+    validator = new Iso2709Validator(100);
+  }
+
+  @Benchmark
+  public int validate(Bytes counter) {
+    counter.bytes += blob.length;
+    return validator.validate(blob, 0, blob.length).getViolationCount();
+  }
+
+  @Benchmark
+  public void decode(Bytes counter, Blackhole blackhole) {
+    counter.bytes += blob.length;
+    slices.scan(blob, 0, blob.length);
+    for (int i = 0; i < slices.size(); i++) {
+      decoder.decode(blob, slices.offset(i), slices.length(i), builder);
+      blackhole.consume(builder.getRecordField());
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic ISO 2709 records for the benchmarks.
+ * <p>Output depends only on the seed, so runs on different machines or builds see the same bytes. Records are UTF-8
+ * (leader/09 {@code a}) and a share of their words carry accents, so character decoding is exercised too.</p>
+ */
+public final class MarcCorpus {
+
+  /**
+   * Shapes of generated records.
+   */
+  public enum RecordSize {
+    /** A brief record: a handful of data fields. */
+    SMALL(6),
+    /** About what a full catalogue record for a book looks like. */
+    TYPICAL(30),
+    /** Hundreds of data fields, close to the 99999 byte limit of ISO 2709. */
+    HUGE(900),
+    ;
+
+    private final int dataFields;
+
+    RecordSize(int dataFields) {
+      this.dataFields = dataFields;
+    }
+  }
+
+  private static final int MAX_RECORD_LENGTH = 99999;
+
+  private static final String[] TAGS = {
+      "020", "040", "050", "082", "100", "245", "246", "250", "260", "300", "490", "500", "504", "520", "600", "650",
+      "651", "700", "710", "830"
+  };
+
+  private static final String[] WORDS = {
+      "library", "catalog", "summer", "island", "baseball", "fiction", "history", "United States", "juvenile",
+      "biography", "Théâtre", "São Paulo", "Müller", "Dvořák", "poetry", "science", "handbook", "revised", "edition",
+      "illustrations", "bibliographical", "references", "index", "New York", "Hyperion", "press", "1st ed.",
+  };
+
+  private static final char[] CODES = {'a', 'a', 'a', 'b', 'c', 'd', 'e', 'q', 'v', 'x', 'y', 'z', '6', '8'};
+
+  private MarcCorpus() {
+  }
+
+  /**
+   * Builds a blob of concatenated records.
+   *
+   * @param size Shape of every record in the blob
+   * @param records Number of records
+   * @param seed Seed of the generator
+   * @return The records, back to back
+   */
+  public static byte[] blob(RecordSize size, int records, long seed) {
+    Random random = new Random(seed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < records; i++) {
+      byte[] record = record(size, i, random);
+      out.write(record, 0, record.length);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] record(RecordSize size, int number, Random random) {
+    ByteArrayOutputStream directory = new ByteArrayOutputStream();
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    addField(directory, data, "001", String.format("%08d", 10000000 + number));
+    addField(directory, data, "003", "DLC");
+    addField(directory, data, "005", String.format("2003%02d%02d1114%02d.0", 1 + random.nextInt(12),
+        1 + random.nextInt(28), random.nextInt(60)));
+    addField(directory, data, "008", "020805s2002    nyu    j      000 1 eng  ");
+
+    for (int i = 0; i < size.dataFields; i++) {
+      String field = dataField(random);
+      int length = 24 + directory.size() + 12 + 1 + data.size() + field.getBytes(StandardCharsets.UTF_8).length + 1;
+      if (length > MAX_RECORD_LENGTH) {
+        break;
+      }
+      addField(directory, data, TAGS[random.nextInt(TAGS.length)], field);
+    }
+    directory.write(0x1E);
+
+    int baseAddress = 24 + directory.size();
+    int recordLength = baseAddress + data.size() + 1;
+    String leader = String.format("%05dcam a22%05d a 4500", recordLength, baseAddress);
+
+    ByteArrayOutputStream record = new ByteArrayOutputStream(recordLength);
+    byte[] leaderBytes = leader.getBytes(StandardCharsets.US_ASCII);
+    record.write(leaderBytes, 0, leaderBytes.length);
+    record.write(directory.toByteArray(), 0, directory.size());
+    record.write(data.toByteArray(), 0, data.size());
+    record.write(0x1D);
+    return record.toByteArray();
+  }
+
+  private static String dataField(Random random) {
+    StringBuilder field = new StringBuilder();
+    field.append(random.nextInt(3) == 0 ? '1' : ' ');
+    field.append((char) ('0' + random.nextInt(5)));
+    int subfields = 1 + random.nextInt(5);
+    for (int i = 0; i < subfields; i++) {
+      field.append('\u001F').append(CODES[random.nextInt(CODES.length)]);
+      int words = 1 + random.nextInt(6);
+      for (int w = 0; w < words; w++) {
+        if (w > 0) {
+          field.append(' ');
+        }
+        field.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+    }
+    return field.toString();
+  }
+
+  private static void addField(ByteArrayOutputStream directory, ByteArrayOutputStream data, String tag, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    String entry = String.format("%s%04d%05d", tag, bytes.length + 1, data.size());
+    byte[] entryBytes = entry.getBytes(StandardCharsets.US_ASCII);
+    directory.write(entryBytes, 0, entryBytes.length);
+    data.write(bytes, 0, bytes.length);
+    data.write(0x1E);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.Record;
+import com.streamsets.pipeline.api.StageException;
+import com.streamsets.pipeline.sdk.ProcessorRunner;
+import com.streamsets.pipeline.sdk.RecordCreator;
+import com.streamsets.pipeline.sdk.StageRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Throughput of {@link MarcParserProcessor#process} on one input record holding {@link #records} synthetic MARC
+ * records. One operation is one input blob; multiply by {@link #records} for MARC records per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessBenchmark {
+
+  @Param({"NATIVE", "MARC4J"})
+  public ParserEngine engine;
+
+  @Param({"SMALL", "TYPICAL", "HUGE"})
+  public MarcCorpus.RecordSize size;
+
+  @Param({"1", "100"})
+  public int records;
+
+  @Param({"1"})
+  public int parserThreads;
+
+  @Param({"FIELDS"})
+  public OutputFormat outputFormat;
+
+  private ProcessorRunner runner;
+  private List<Record> batch;
+
+  @Setup(Level.Trial)
+  public void setUp() throws StageException {
+    runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("parserEngine", engine)
+        .addConfiguration("parserThreads", parserThreads)
+        .addConfiguration("outputFormat", outputFormat)
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+
+    Record record = RecordCreator.create();
+    Map<String, Field> fields = new HashMap<>();
+    fields.put("text", Field.create(MarcCorpus.blob(size, records, 42)));
+    record.set(Field.create(fields));
+    batch = Collections.singletonList(record);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws StageException {
+    runner.runDestroy();
+  }
+
+  @Benchmark
+  public StageRunner.Output process() throws StageException {
+    return runner.runProcess(batch);
+  }
+}
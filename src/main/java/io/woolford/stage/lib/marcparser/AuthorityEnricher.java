@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Links the main entry personal name (100), subject personal names (600) and topical terms (650) of a record to their
+ * authority records while it is being decoded, and passes every part of the record on to another handler.
+ * <p>A heading is matched by the subfields {@link AuthorityIndex#isHeadingSubfield(char, char)} accepts, so
+ * subdivisions such as 650 $v and $x do not keep it from matching. When the {@link AuthorityIndex} has the heading,
+ * the control number of its authority record is added at the end of the field as a $0. Fields that already have a
+ * $0 are left alone.</p>
+ * <p>The most recently used headings are cached on the heap, found or not, by their text as it appears in the record,
+ * so a hot heading costs a hash lookup and neither normalization nor a search of the index.</p>
+ * <p>Instances keep state between calls and are not thread safe; the index can be shared.</p>
+ */
+public final class AuthorityEnricher implements MarcRecordHandler {
+
+  private static final char NONE = 0;
+  private static final String NOT_FOUND = "";
+
+  private final MarcRecordHandler delegate;
+  private final AuthorityIndex index;
+  private final LinkedHashMap<String, String> cache;
+  private final StringBuilder heading = new StringBuilder();
+  private char kind;
+  private boolean linked;
+  private int cacheHits;
+  private int cacheMisses;
+
+  /**
+   * @param delegate Receives the parts of the record, with the added $0s
+   * @param index The authority headings
+   * @param cacheSize Maximum number of headings cached
+   */
+  public AuthorityEnricher(MarcRecordHandler delegate, AuthorityIndex index, int cacheSize) {
+    this.delegate = delegate;
+    this.index = index;
+    this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startRecord(String leader) {
+    cacheHits = 0;
+    cacheMisses = 0;
+    delegate.startRecord(leader);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void controlField(String tag, String data) {
+    delegate.controlField(tag, data);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDataField(String tag, char indicator1, char indicator2) {
+    kind = kind(tag);
+    linked = false;
+    heading.setLength(0);
+    heading.append(kind);
+    delegate.startDataField(tag, indicator1, indicator2);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subfield(char code, String data) {
+    if (kind != NONE) {
+      if (code == '0') {
+        linked = true;
+      } else if (AuthorityIndex.isHeadingSubfield(kind, code)) {
+        heading.append((char) Iso2709Decoder.SUBFIELD_DELIMITER).append(data);
+      }
+    }
+    delegate.subfield(code, data);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDataField() {
+    if (kind != NONE && !linked && heading.length() > 1) {
+      String controlNumber = resolve();
+      if (controlNumber != null) {
+        delegate.subfield('0', controlNumber);
+      }
+    }
+    delegate.endDataField();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endRecord() {
+    delegate.endRecord();
+  }
+
+  /**
+   * @return The number of headings of the last record that were found in the cache
+   */
+  public int getCacheHits() {
+    return cacheHits;
+  }
+
+  /**
+   * @return The number of headings of the last record that had to be looked up in the index
+   */
+  public int getCacheMisses() {
+    return cacheMisses;
+  }
+
+  private String resolve() {
+    String text = heading.toString();
+    String controlNumber = cache.get(text);
+    if (controlNumber != null) {
+      cacheHits++;
+    } else {
+      cacheMisses++;
+      String key = AuthorityIndex.key(kind, text.substring(1));
+      controlNumber = key == null ? null : index.lookup(key);
+      if (controlNumber == null) {
+        controlNumber = NOT_FOUND;
+      }
+      cache.put(text, controlNumber);
+    }
+    return controlNumber.isEmpty() ? null : controlNumber;
+  }
+
+  private static char kind(String tag) {
+    switch (tag) {
+      case "100":
+      case "600":
+        return AuthorityIndex.PERSONAL_NAME;
+      case "650":
+        return AuthorityIndex.TOPICAL_TERM;
+      default:
+        return NONE;
+    }
+  }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * A sorted index from authority headings to authority record control numbers, read through a memory-mapped file so
+ * none of it lives on the heap.
+ * <p>{@link #build(Path, Path)} writes the index from an ISO 2709 authority file. Each record contributes the heading
+ * in its 100 (personal name) or 150 (topical term), keyed by {@link #key(char, String)}, and maps it to its 001,
+ * prefixed with its 003 in parentheses when it has one, as in {@code (DLC)n79021164}. The index file holds:</p>
+ * <ul>
+ *   <li>a magic number and the number of entries, as ints;</li>
+ *   <li>the offset of every entry, in key order, as ints;</li>
+ *   <li>the entries, each a key and a control number as UTF-8 behind an unsigned short length.</li>
+ * </ul>
+ * <p>{@link #lookup(String)} binary searches the offsets, comparing keys as unsigned bytes, which is the order they
+ * were sorted in. Lookups only read the mapping, so one instance can serve any number of threads. An index is limited
+ * to 2 GB. {@link #close()} releases the mapping, after which the instance must not be used.</p>
+ */
+public final class AuthorityIndex implements Closeable {
+
+  /**
+   * Kind of the personal name headings: authority 100, bibliographic 100 and 600.
+   */
+  public static final char PERSONAL_NAME = 'p';
+  /**
+   * Kind of the topical term headings: authority 150, bibliographic 650.
+   */
+  public static final char TOPICAL_TERM = 't';
+
+  private static final int MAGIC = 0x4D415831;
+  private static final int HEADER_LENGTH = 8;
+  private static final int READ_BUFFER_SIZE = 1 << 20;
+
+  private ByteBuffer buffer;
+  private final int count;
+  private final int entries;
+
+  private AuthorityIndex(ByteBuffer buffer, int count) {
+    this.buffer = buffer;
+    this.count = count;
+    this.entries = HEADER_LENGTH + 4 * count;
+  }
+
+  /**
+   * Opens the index of an authority file, building it first if it does not exist or is older than the authority
+   * file.
+   *
+   * @param authorities ISO 2709 authority file
+   * @param index Where the index is kept
+   */
+  public static AuthorityIndex open(Path authorities, Path index) throws IOException {
+    if (!Files.exists(index)
+        || Files.getLastModifiedTime(index).compareTo(Files.getLastModifiedTime(authorities)) < 0) {
+      build(authorities, index);
+    }
+    return open(index);
+  }
+
+  /**
+   * Maps an index written by {@link #build(Path, Path)}.
+   */
+  public static AuthorityIndex open(Path index) throws IOException {
+    try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+        throw new IOException("Not an authority index: " + index);
+      }
+      // The mapping stays valid after the channel is closed.
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      int count = buffer.getInt(4);
+      if (buffer.getInt(0) != MAGIC || count < 0 || HEADER_LENGTH + 4L * count > size) {
+        MappedBuffers.unmap(buffer);
+        throw new IOException("Not an authority index: " + index);
+      }
+      return new AuthorityIndex(buffer, count);
+    }
+  }
+
+  /**
+   * Writes the index of an authority file. The index is written to a temporary file of its own next to its final
+   * path and moved there once complete, so a reader never maps a partial index and concurrent builds do not write
+   * over each other. Malformed records, name/title records and records without a
+   * 001 or a heading are skipped; when several records have the same heading, the first one wins.
+   *
+   * @param authorities ISO 2709 authority file
+   * @param index Where to write the index
+   * @return The number of headings indexed
+   */
+  public static int build(Path authorities, Path index) throws IOException {
+    HeadingCollector collector = new HeadingCollector();
+    Iso2709Decoder decoder = new Iso2709Decoder().setFieldSelector(
+        FieldSelector.of(true, Arrays.asList("001", "003", "100", "150"))
+    );
+    try (FileChannel channel = FileChannel.open(authorities, StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      boolean endOfFile = false;
+      int scanned = 0;
+      while (!endOfFile) {
+        endOfFile = channel.read(buffer) < 0;
+        byte[] buf = buffer.array();
+        int limit = buffer.position();
+        int start = 0;
+        for (int i = scanned; i < limit; i++) {
+          if (buf[i] != Iso2709Decoder.RECORD_TERMINATOR) {
+            continue;
+          }
+          try {
+            decoder.decode(buf, start, i + 1 - start, collector);
+          } catch (MarcFormatException e) {
+            // Not a heading we can index.
+          }
+          start = i + 1;
+        }
+        // Keep the partial record at the end of the buffer for the next read.
+        int remaining = limit - start;
+        if (remaining == buf.length) {
+          buffer = ByteBuffer.allocate(buf.length * 2).put(buf, 0, remaining);
+        } else {
+          System.arraycopy(buf, start, buf, 0, remaining);
+          buffer.position(remaining);
+        }
+        scanned = remaining;
+      }
+    }
+    return collector.write(index);
+  }
+
+  /**
+   * Looks up a key made by {@link #key(char, String)}.
+   *
+   * @return The control number of the authority record with that heading, or {@code null} if there is none
+   */
+  public String lookup(String key) {
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = entries + buffer.getInt(HEADER_LENGTH + 4 * middle);
+      int keyLength = buffer.getShort(entry) & 0xFFFF;
+      int comparison = compare(entry + 2, keyLength, bytes);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        int value = entry + 2 + keyLength;
+        byte[] controlNumber = new byte[buffer.getShort(value) & 0xFFFF];
+        for (int i = 0; i < controlNumber.length; i++) {
+          controlNumber[i] = buffer.get(value + 2 + i);
+        }
+        return new String(controlNumber, StandardCharsets.UTF_8);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The number of headings in the index
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Unmaps the index. Lookups must not be running or made afterwards.
+   */
+  @Override
+  public void close() {
+    MappedBuffers.unmap(buffer);
+    buffer = null;
+  }
+
+  /**
+   * Makes the key a heading is indexed and looked up by: its kind followed by the heading with diacritics removed,
+   * in lower case, and with every run of punctuation and blanks turned into one blank, so {@code Chabon, Michael.}
+   * and {@code chabon michael} share the key {@code pchabon michael}.
+   *
+   * @param kind {@link #PERSONAL_NAME} or {@link #TOPICAL_TERM}
+   * @param heading The text of the heading subfields
+   * @return The key, or {@code null} if the heading has no letters or digits
+   */
+  public static String key(char kind, String heading) {
+    String text = heading;
+    for (int i = 0; i < heading.length(); i++) {
+      if (heading.charAt(i) >= 0x80) {
+        text = Normalizer.normalize(heading, Normalizer.Form.NFKD);
+        break;
+      }
+    }
+    StringBuilder key = new StringBuilder(text.length() + 1).append(kind);
+    boolean blank = false;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        if (blank && key.length() > 1) {
+          key.append(' ');
+        }
+        blank = false;
+        key.append(Character.toLowerCase(c));
+      } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+        blank = true;
+      }
+    }
+    return key.length() > 1 ? key.toString() : null;
+  }
+
+  /**
+   * Whether a subfield is part of a heading, rather than a subdivision, relator or link: {@code $a$b$c$d$q} of a
+   * name, {@code $a$b} of a topical term.
+   */
+  public static boolean isHeadingSubfield(char kind, char code) {
+    if (kind == PERSONAL_NAME) {
+      return code == 'a' || code == 'b' || code == 'c' || code == 'd' || code == 'q';
+    }
+    return code == 'a' || code == 'b';
+  }
+
+  /**
+   * Compares the key at {@code buffer[offset, offset + length)} with {@code key}, as unsigned bytes.
+   */
+  private int compare(int offset, int length, byte[] key) {
+    int common = Math.min(length, key.length);
+    for (int i = 0; i < common; i++) {
+      int difference = (buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Collects the heading and control number of each authority record into one buffer of entries, then sorts and
+   * writes them.
+   */
+  private static final class HeadingCollector implements MarcRecordHandler {
+
+    private final ByteSink entries = new ByteSink(READ_BUFFER_SIZE);
+    private final StringBuilder heading = new StringBuilder();
+    private int[] offsets = new int[1024];
+    private int count;
+    private String controlNumber;
+    private String source;
+    private char kind;
+    private char fieldKind;
+    private boolean titled;
+
+    /** {@inheritDoc} */
+    @Override
+    public void startRecord(String leader) {
+      controlNumber = null;
+      source = null;
+      kind = 0;
+      titled = false;
+      heading.setLength(0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void controlField(String tag, String data) {
+      if (tag.equals("001")) {
+        controlNumber = data.trim();
+      } else if (tag.equals("003")) {
+        source = data.trim();
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void startDataField(String tag, char indicator1, char indicator2) {
+      fieldKind = kind == 0 ? (tag.equals("100") ? PERSONAL_NAME : TOPICAL_TERM) : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void subfield(char code, String data) {
+      if (fieldKind == 0) {
+        return;
+      }
+      if (isHeadingSubfield(fieldKind, code)) {
+        heading.append(' ').append(data);
+      } else if (fieldKind == PERSONAL_NAME && code == 't') {
+        // A name/title heading; indexing its name alone would claim the key of the name heading.
+        titled = true;
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endDataField() {
+      if (fieldKind != 0) {
+        kind = fieldKind;
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endRecord() {
+      if (controlNumber == null || controlNumber.isEmpty() || kind == 0 || titled) {
+        return;
+      }
+      String key = key(kind, heading.toString());
+      String value = source == null || source.isEmpty() ? controlNumber : "(" + source + ")" + controlNumber;
+      if (key == null || key.length() > ByteSink.MAX_SHORT_UTF8_CHARS
+          || value.length() > ByteSink.MAX_SHORT_UTF8_CHARS) {
+        return;
+      }
+      int offset = entries.size();
+      entries.writeShortUtf8(key);
+      entries.writeShortUtf8(value);
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+      }
+      offsets[count++] = offset;
+    }
+
+    int write(Path index) throws IOException {
+      byte[] buf = entries.array();
+      sort(buf, offsets, 0, count - 1);
+      // Sorting broke ties by position, so the first of each run of equal keys is the first record in the file.
+      int unique = 0;
+      for (int i = 0; i < count; i++) {
+        if (unique == 0 || compareKeys(buf, offsets[unique - 1], offsets[i]) != 0) {
+          offsets[unique++] = offsets[i];
+        }
+      }
+      long size = HEADER_LENGTH + 4L * unique;
+      for (int i = 0; i < unique; i++) {
+        size += entryLength(buf, offsets[i]);
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Authority index would be larger than 2 GB");
+      }
+
+      // Each build gets its own temporary file, as several pipeline runners may build the same index at once.
+      Path temp = Files.createTempFile(index.toAbsolutePath().getParent(), index.getFileName() + ".", ".tmp");
+      try {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+          out.writeInt(MAGIC);
+          out.writeInt(unique);
+          int position = 0;
+          for (int i = 0; i < unique; i++) {
+            out.writeInt(position);
+            position += entryLength(buf, offsets[i]);
+          }
+          for (int i = 0; i < unique; i++) {
+            out.write(buf, offsets[i], entryLength(buf, offsets[i]));
+          }
+        }
+        Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      return unique;
+    }
+
+    private static int entryLength(byte[] buf, int entry) {
+      int value = entry + 2 + unsignedShort(buf, entry);
+      return value + 2 + unsignedShort(buf, value) - entry;
+    }
+
+    private static int unsignedShort(byte[] buf, int offset) {
+      return (buf[offset] & 0xFF) << 8 | buf[offset + 1] & 0xFF;
+    }
+
+    /**
+     * Compares the keys of two entries as unsigned bytes.
+     */
+    private static int compareKeys(byte[] buf, int a, int b) {
+      int lengthA = unsignedShort(buf, a);
+      int lengthB = unsignedShort(buf, b);
+      int common = Math.min(lengthA, lengthB);
+      for (int i = 0; i < common; i++) {
+        int difference = (buf[a + 2 + i] & 0xFF) - (buf[b + 2 + i] & 0xFF);
+        if (difference != 0) {
+          return difference;
+        }
+      }
+      return lengthA - lengthB;
+    }
+
+    private static int compare(byte[] buf, int a, int b) {
+      int comparison = compareKeys(buf, a, b);
+      return comparison != 0 ? comparison : Integer.compare(a, b);
+    }
+
+    /**
+     * Quicksorts {@code offsets[low, high]} by key, then by position, without boxing ten million offsets. Recursing
+     * into the smaller side only keeps the stack shallow.
+     */
+    private static void sort(byte[] buf, int[] offsets, int low, int high) {
+      while (high - low > 16) {
+        int middle = (low + high) >>> 1;
+        if (compare(buf, offsets[middle], offsets[low]) < 0) {
+          swap(offsets, middle, low);
+        }
+        if (compare(buf, offsets[high], offsets[low]) < 0) {
+          swap(offsets, high, low);
+        }
+        if (compare(buf, offsets[high], offsets[middle]) < 0) {
+          swap(offsets, high, middle);
+        }
+        int pivot = offsets[middle];
+        int i = low;
+        int j = high;
+        while (i <= j) {
+          while (compare(buf, offsets[i], pivot) < 0) {
+            i++;
+          }
+          while (compare(buf, offsets[j], pivot) > 0) {
+            j--;
+          }
+          if (i <= j) {
+            swap(offsets, i++, j--);
+          }
+        }
+        if (j - low < high - i) {
+          sort(buf, offsets, low, j);
+          low = i;
+        } else {
+          sort(buf, offsets, i, high);
+          high = j;
+        }
+      }
+      for (int i = low + 1; i <= high; i++) {
+        int offset = offsets[i];
+        int j = i - 1;
+        while (j >= low && compare(buf, offsets[j], offset) > 0) {
+          offsets[j + 1] = offsets[j];
+          j--;
+        }
+        offsets[j + 1] = offset;
+      }
+    }
+
+    private static void swap(int[] offsets, int i, int j) {
+      int offset = offsets[i];
+      offsets[i] = offsets[j];
+      offsets[j] = offset;
+    }
+  }
+}
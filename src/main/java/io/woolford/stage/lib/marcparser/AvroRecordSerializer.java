@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+/**
+ * Writes records as Avro binary data of the {@link #SCHEMA} schema, without an Avro container header, so each record
+ * can be sent as a message of its own.
+ * <p>Avro puts the item count before the items of an array, so control fields, data fields and the subfields of the
+ * current data field are each collected in a buffer of their own and copied behind their count once it is known. The
+ * buffers are reused from record to record.</p>
+ */
+public final class AvroRecordSerializer extends RecordSerializer {
+
+  /**
+   * The schema of the records. It does not depend on the data or the stage configuration, so it is built once.
+   */
+  public static final String SCHEMA = "{"
+      + "\"type\":\"record\",\"name\":\"MarcRecord\",\"namespace\":\"io.woolford.marc\",\"fields\":["
+      + "{\"name\":\"leader\",\"type\":\"string\"},"
+      + "{\"name\":\"controlNumber\",\"type\":[\"null\",\"string\"],\"default\":null},"
+      + "{\"name\":\"controlFields\",\"type\":{\"type\":\"array\",\"items\":{"
+      + "\"type\":\"record\",\"name\":\"ControlField\",\"fields\":["
+      + "{\"name\":\"tag\",\"type\":\"string\"},"
+      + "{\"name\":\"data\",\"type\":\"string\"}]}}},"
+      + "{\"name\":\"dataFields\",\"type\":{\"type\":\"array\",\"items\":{"
+      + "\"type\":\"record\",\"name\":\"DataField\",\"fields\":["
+      + "{\"name\":\"tag\",\"type\":\"string\"},"
+      + "{\"name\":\"indicator1\",\"type\":\"string\"},"
+      + "{\"name\":\"indicator2\",\"type\":\"string\"},"
+      + "{\"name\":\"subfields\",\"type\":{\"type\":\"array\",\"items\":{"
+      + "\"type\":\"record\",\"name\":\"Subfield\",\"fields\":["
+      + "{\"name\":\"code\",\"type\":\"string\"},"
+      + "{\"name\":\"data\",\"type\":\"string\"}]}}}]}}}"
+      + "]}";
+
+  private final ByteSink out = new ByteSink(4096);
+  private final ByteSink controlFields = new ByteSink(512);
+  private final ByteSink dataFields = new ByteSink(4096);
+  private final ByteSink subfields = new ByteSink(1024);
+  private String leader;
+  private int controlFieldCount;
+  private int dataFieldCount;
+  private int subfieldCount;
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeLeader(String leader) {
+    this.leader = leader;
+    controlFields.clear();
+    dataFields.clear();
+    subfields.clear();
+    controlFieldCount = 0;
+    dataFieldCount = 0;
+    subfieldCount = 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeControlField(String tag, String data) {
+    controlFields.writeAvroString(tag);
+    controlFields.writeAvroString(data);
+    controlFieldCount++;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeDataFieldStart(String tag, char indicator1, char indicator2) {
+    dataFields.writeAvroString(tag);
+    dataFields.writeAvroString(String.valueOf(indicator1));
+    dataFields.writeAvroString(String.valueOf(indicator2));
+    subfields.clear();
+    subfieldCount = 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeSubfield(char code, String data) {
+    subfields.writeAvroString(MarcKeys.subfieldKey(code));
+    subfields.writeAvroString(data);
+    subfieldCount++;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeDataFieldEnd() {
+    writeArray(dataFields, subfieldCount, subfields);
+    dataFieldCount++;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected byte[] finish() {
+    out.clear();
+    out.writeAvroString(leader);
+    // Union branch 0 is null, branch 1 the string.
+    String controlNumber = getCurrentControlNumber();
+    if (controlNumber == null) {
+      out.writeAvroLong(0);
+    } else {
+      out.writeAvroLong(1);
+      out.writeAvroString(controlNumber);
+    }
+    writeArray(out, controlFieldCount, controlFields);
+    writeArray(out, dataFieldCount, dataFields);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes an array as a single block: the item count, the items, then the zero count that ends the array.
+   */
+  private static void writeArray(ByteSink target, int count, ByteSink items) {
+    if (count > 0) {
+      target.writeAvroLong(count);
+      target.write(items);
+    }
+    target.writeAvroLong(0);
+  }
+}
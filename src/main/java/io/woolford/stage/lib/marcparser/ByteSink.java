@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that is cleared rather than reallocated between records, with the UTF-8 and Avro primitives
+ * the record serializers need. Unlike {@link java.io.ByteArrayOutputStream} nothing is synchronized.
+ */
+final class ByteSink {
+
+  /**
+   * No char takes more than three bytes of UTF-8, so this many fit behind an unsigned short length.
+   */
+  static final int MAX_SHORT_UTF8_CHARS = 0xFFFF / 3;
+
+  private byte[] buf;
+  private int size;
+
+  ByteSink(int capacity) {
+    buf = new byte[capacity];
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  /**
+   * @return The backing array, holding the bytes written so far in {@code [0, size())} until the next write
+   */
+  byte[] array() {
+    return buf;
+  }
+
+  /**
+   * Copies the bytes written so far to {@code target[offset]}.
+   */
+  void copyTo(byte[] target, int offset) {
+    System.arraycopy(buf, 0, target, offset, size);
+  }
+
+  /**
+   * Writes {@code value} as exactly {@code digits} ASCII digits, padded with leading zeros.
+   */
+  void writeNumber(int value, int digits) {
+    ensure(digits);
+    for (int i = size + digits - 1; i >= size; i--) {
+      buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    size += digits;
+  }
+
+  void write(int b) {
+    ensure(1);
+    buf[size++] = (byte) b;
+  }
+
+  void write(ByteSink other) {
+    ensure(other.size);
+    System.arraycopy(other.buf, 0, buf, size, other.size);
+    size += other.size;
+  }
+
+  /**
+   * Writes an ASCII string, such as a JSON key or a tag, one byte per char.
+   */
+  void writeAscii(String s) {
+    int length = s.length();
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      buf[size++] = (byte) s.charAt(i);
+    }
+  }
+
+  /**
+   * Writes {@code s} as UTF-8. An unpaired surrogate is written as {@code ?}, like {@link String#getBytes}.
+   */
+  void writeUtf8(String s) {
+    int length = s.length();
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buf[size++] = (byte) c;
+      } else {
+        i = writeUtf8(s, i);
+        // The multi-byte char used room reserved for the rest of the string.
+        ensure(length - i);
+      }
+    }
+  }
+
+  /**
+   * Writes {@code s} as UTF-8 behind its length in bytes, as an unsigned big-endian short. Strings of up to
+   * {@link #MAX_SHORT_UTF8_CHARS} chars always fit.
+   */
+  void writeShortUtf8(String s) {
+    int length = utf8Length(s);
+    write(length >>> 8);
+    write(length);
+    writeUtf8(s);
+  }
+
+  /**
+   * Writes the non-ASCII char at {@code s[i]}, with its low surrogate if it has one.
+   *
+   * @return The index of the last char written
+   */
+  int writeUtf8(String s, int i) {
+    char c = s.charAt(i);
+    ensure(4);
+    if (c < 0x800) {
+      buf[size++] = (byte) (0xC0 | c >> 6);
+      buf[size++] = (byte) (0x80 | c & 0x3F);
+    } else if (!Character.isSurrogate(c)) {
+      buf[size++] = (byte) (0xE0 | c >> 12);
+      buf[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+      buf[size++] = (byte) (0x80 | c & 0x3F);
+    } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int codePoint = Character.toCodePoint(c, s.charAt(++i));
+      buf[size++] = (byte) (0xF0 | codePoint >> 18);
+      buf[size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+      buf[size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+      buf[size++] = (byte) (0x80 | codePoint & 0x3F);
+    } else {
+      buf[size++] = '?';
+    }
+    return i;
+  }
+
+  /**
+   * Writes an Avro {@code long} or {@code int}: zig-zag encoded, then seven bits per byte, low bits first.
+   */
+  void writeAvroLong(long value) {
+    ensure(10);
+    long n = (value << 1) ^ (value >> 63);
+    while ((n & ~0x7FL) != 0) {
+      buf[size++] = (byte) ((n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    buf[size++] = (byte) n;
+  }
+
+  /**
+   * Writes an Avro {@code string}: its UTF-8 length, then its UTF-8 bytes.
+   */
+  void writeAvroString(String s) {
+    writeAvroLong(utf8Length(s));
+    writeUtf8(s);
+  }
+
+  private static int utf8Length(String s) {
+    int length = s.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x800) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          // Four bytes for the two chars of the pair.
+          bytes += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          bytes += 2;
+        }
+      } else if (c >= 0x80) {
+        bytes++;
+      }
+    }
+    return bytes;
+  }
+
+  private void ensure(int extra) {
+    if (size + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(size + extra, buf.length * 2));
+    }
+  }
+}
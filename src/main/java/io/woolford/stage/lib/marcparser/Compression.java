@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression formats recognized by their magic bytes, so compressed MARC data can be read as a stream without being
+ * inflated up front. Concatenated gzip members and bzip2 streams are read through to the end.
+ */
+public enum Compression {
+  NONE,
+  GZIP,
+  BZIP2,
+  ZSTD,
+  ;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Tells the format of the data starting at {@code buf[offset]} from its first bytes. Neither ISO 2709, which starts
+   * with the digits of the record length, nor MARCXML or MARC-in-JSON text starts with any of these.
+   *
+   * @return The compression format, {@link #NONE} if the data is not compressed in a known format
+   */
+  public static Compression detect(byte[] buf, int offset, int length) {
+    if (length >= 2 && buf[offset] == (byte) 0x1F && buf[offset + 1] == (byte) 0x8B) {
+      return GZIP;
+    }
+    if (length >= 4 && buf[offset] == 'B' && buf[offset + 1] == 'Z' && buf[offset + 2] == 'h'
+        && buf[offset + 3] >= '1' && buf[offset + 3] <= '9') {
+      return BZIP2;
+    }
+    if (length >= 4 && buf[offset] == (byte) 0x28 && buf[offset + 1] == (byte) 0xB5 && buf[offset + 2] == (byte) 0x2F
+        && buf[offset + 3] == (byte) 0xFD) {
+      return ZSTD;
+    }
+    return NONE;
+  }
+
+  /**
+   * @return Whether {@code text}, holding binary data one char per byte as ISO-8859-1 decoding leaves it, starts with
+   * the magic bytes of a compression format
+   */
+  public static boolean isCompressed(String text) {
+    int length = Math.min(text.length(), 4);
+    byte[] head = new byte[length];
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c > 0xFF) {
+        return false;
+      }
+      head[i] = (byte) c;
+    }
+    return detect(head, 0, length) != NONE;
+  }
+
+  /**
+   * Wraps {@code in}, which holds data in this format, in a stream of the decompressed data.
+   *
+   * @throws IOException if the header of the compressed data is invalid
+   */
+  public InputStream decompress(InputStream in) throws IOException {
+    switch (this) {
+      case GZIP:
+        return new GZIPInputStream(in, BUFFER_SIZE);
+      case BZIP2:
+        return new BZip2CompressorInputStream(in, true);
+      case ZSTD:
+        return new ZstdCompressorInputStream(in);
+      default:
+        return in;
+    }
+  }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Tag and subfield frequencies, record size distributions and distinct value counts of a stream of MARC records, in
+ * memory that does not grow with the number of records.
+ * <ul>
+ *   <li>Fields with the numeric tags {@code 000} to {@code 999} are counted exactly, one counter per tag. Other fields
+ *   and subfields are counted in one {@link CountMinSketch}, and the {@code topN} most frequent are kept as candidates
+ *   to report.</li>
+ *   <li>Distinct values are counted by a {@link HyperLogLog} per control field and subfield, for the first
+ *   {@link #MAX_DISTINCT_COUNTED} seen.</li>
+ *   <li>Record lengths, from the leader, and fields per record go into histograms with power of two buckets.</li>
+ * </ul>
+ * <p>Profiles are filled in by a {@link CorpusProfiler} and can be merged, so every parser thread can keep its own.
+ * Instances are not thread safe.</p>
+ */
+public final class CorpusProfile {
+
+  public static final String RECORDS = "records";
+  public static final String RECORD_LENGTH = "recordLength";
+  public static final String FIELDS_PER_RECORD = "fieldsPerRecord";
+  public static final String TAGS = "tags";
+  public static final String SUBFIELDS = "subfields";
+  public static final String DISTINCT_VALUES = "distinctValues";
+  public static final String TAG = "tag";
+  public static final String SUBFIELD = "subfield";
+  public static final String FIELD = "field";
+  public static final String COUNT = "count";
+  public static final String DISTINCT = "distinct";
+  public static final String MIN = "min";
+  public static final String MAX = "max";
+
+  /**
+   * Number of control fields and subfields whose distinct values are counted.
+   */
+  public static final int MAX_DISTINCT_COUNTED = 256;
+
+  /**
+   * Key of a field whose tag is not three characters long, which is not profiled.
+   */
+  static final long NO_KEY = -1;
+
+  private static final int SKETCH_DEPTH = 4;
+  private static final int SKETCH_WIDTH = 2048;
+  private static final int HLL_PRECISION = 10;
+  private static final long P = 0x9E3779B97F4A7C15L;
+  private static final long P2 = P * P;
+  private static final long P3 = P2 * P;
+  private static final long P4 = P3 * P;
+
+  private final CountMinSketch counts = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+  private final int topN;
+  private final long[] numericTags = new long[1000];
+  private final TopKeys tags;
+  private final TopKeys subfields;
+  private final long[] distinctKeys = new long[MAX_DISTINCT_COUNTED * 2];
+  private final HyperLogLog[] distinct = new HyperLogLog[MAX_DISTINCT_COUNTED * 2];
+  private int distinctCount;
+  private final long[] recordLengths = new long[Long.SIZE];
+  private final long[] fieldsPerRecord = new long[Long.SIZE];
+  private long records;
+
+  /**
+   * @param topN Number of most frequent tags, and of subfields, to report
+   */
+  public CorpusProfile(int topN) {
+    this.topN = topN;
+    this.tags = new TopKeys(topN);
+    this.subfields = new TopKeys(topN);
+  }
+
+  /**
+   * @return The key of the field with tag {@code tag}, or {@link #NO_KEY}
+   */
+  static long key(String tag) {
+    if (tag.length() != 3) {
+      return NO_KEY;
+    }
+    return (long) tag.charAt(0) << 48 | (long) tag.charAt(1) << 32 | (long) tag.charAt(2) << 16;
+  }
+
+  /**
+   * @return The key of the field whose tag is in {@code buf[offset, offset + 3)}, as in a directory entry
+   */
+  static long key(byte[] buf, int offset) {
+    return (long) (buf[offset] & 0xFF) << 48 | (long) (buf[offset + 1] & 0xFF) << 32
+        | (long) (buf[offset + 2] & 0xFF) << 16;
+  }
+
+  /**
+   * Counts one occurrence of the control or data field {@code key}.
+   */
+  void field(long key) {
+    int number = number(key);
+    if (number >= 0) {
+      numericTags[number]++;
+    } else {
+      tags.offer(key, counts.add(key));
+    }
+  }
+
+  /**
+   * @return The numeric tag of the field {@code key}, or -1 if its tag is not three digits
+   */
+  private static int number(long key) {
+    int hundreds = (int) (key >>> 48 & 0xFFFF) - '0';
+    int tens = (int) (key >>> 32 & 0xFFFF) - '0';
+    int units = (int) (key >>> 16 & 0xFFFF) - '0';
+    if ((hundreds | tens | units) < 0 || hundreds > 9 || tens > 9 || units > 9) {
+      return -1;
+    }
+    return hundreds * 100 + tens * 10 + units;
+  }
+
+  /**
+   * Counts one occurrence of the subfield {@code key}, the key of its field with the code in the low bits.
+   */
+  void subfield(long key) {
+    subfields.offer(key, counts.add(key));
+  }
+
+  /**
+   * Counts {@code value} towards the distinct values of the control field or subfield {@code key}.
+   */
+  void value(long key, String value) {
+    HyperLogLog sketch = distinct(key);
+    if (sketch != null) {
+      sketch.add(hash(value));
+    }
+  }
+
+  /**
+   * A 64-bit polynomial hash of the chars of {@code value}, four at a time so that only every fourth multiplication
+   * waits for the one before.
+   */
+  static long hash(String value) {
+    int length = value.length();
+    long hash = length;
+    int i = 0;
+    for (; i + 4 <= length; i += 4) {
+      hash = hash * P4 + value.charAt(i) * P3 + value.charAt(i + 1) * P2 + value.charAt(i + 2) * P
+          + value.charAt(i + 3);
+    }
+    for (; i < length; i++) {
+      hash = hash * P + value.charAt(i);
+    }
+    return mix(hash);
+  }
+
+  /**
+   * Counts one record.
+   *
+   * @param length Length of the record in bytes, or -1 if it is not known
+   * @param fields Number of control and data fields in the record
+   */
+  void record(int length, int fields) {
+    records++;
+    if (length >= 0) {
+      recordLengths[bucket(length)]++;
+    }
+    fieldsPerRecord[bucket(fields)]++;
+  }
+
+  /**
+   * @return The number of records profiled
+   */
+  public long getRecordCount() {
+    return records;
+  }
+
+  /**
+   * Adds what another profile, with the same {@code topN}, has seen to this one.
+   */
+  public void merge(CorpusProfile other) {
+    counts.merge(other.counts);
+    for (int i = 0; i < numericTags.length; i++) {
+      numericTags[i] += other.numericTags[i];
+    }
+    rank(tags, other.tags);
+    rank(subfields, other.subfields);
+    for (int slot = 0; slot < other.distinct.length; slot++) {
+      if (other.distinct[slot] != null) {
+        HyperLogLog sketch = distinct(other.distinctKeys[slot]);
+        if (sketch != null) {
+          sketch.merge(other.distinct[slot]);
+        }
+      }
+    }
+    for (int i = 0; i < Long.SIZE; i++) {
+      recordLengths[i] += other.recordLengths[i];
+      fieldsPerRecord[i] += other.fieldsPerRecord[i];
+    }
+    records += other.records;
+  }
+
+  /**
+   * Forgets everything seen so far.
+   */
+  public void clear() {
+    counts.clear();
+    Arrays.fill(numericTags, 0);
+    tags.clear();
+    subfields.clear();
+    Arrays.fill(distinct, null);
+    distinctCount = 0;
+    Arrays.fill(recordLengths, 0);
+    Arrays.fill(fieldsPerRecord, 0);
+    records = 0;
+  }
+
+  /**
+   * @return A LIST_MAP with the record count, the histograms as LISTs of {@code min}/{@code max}/{@code count}
+   * buckets, the most frequent tags and subfields with their estimated counts, most frequent first, and the
+   * estimated distinct values per control field and subfield, in tag order
+   */
+  public Field toField() {
+    LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+    root.put(RECORDS, Field.create(records));
+    root.put(RECORD_LENGTH, histogram(recordLengths));
+    root.put(FIELDS_PER_RECORD, histogram(fieldsPerRecord));
+    root.put(TAGS, ranked(tags, numericTags, TAG));
+    root.put(SUBFIELDS, ranked(subfields, null, SUBFIELD));
+
+    long[] keys = new long[distinctCount];
+    int count = 0;
+    for (int slot = 0; slot < distinct.length; slot++) {
+      if (distinct[slot] != null) {
+        keys[count++] = distinctKeys[slot];
+      }
+    }
+    Arrays.sort(keys);
+    List<Field> values = new ArrayList<>(keys.length);
+    for (long key : keys) {
+      LinkedHashMap<String, Field> entry = new LinkedHashMap<>();
+      entry.put(FIELD, Field.create(name(key)));
+      entry.put(DISTINCT, Field.create(distinct(key).estimate()));
+      values.add(Field.createListMap(entry));
+    }
+    root.put(DISTINCT_VALUES, Field.create(values));
+    return Field.createListMap(root);
+  }
+
+  /**
+   * Refills {@code mine} with the most frequent of its own and {@code theirs} candidates, by their merged counts.
+   */
+  private void rank(TopKeys mine, TopKeys theirs) {
+    long[] mineKeys = mine.keys();
+    long[] theirKeys = theirs.keys();
+    mine.clear();
+    for (long key : mineKeys) {
+      mine.offer(key, counts.estimate(key));
+    }
+    for (long key : theirKeys) {
+      mine.offer(key, counts.estimate(key));
+    }
+  }
+
+  /**
+   * Lists the {@code topN} most frequent of the {@code candidates}, by their estimated counts, and of the numeric tags
+   * counted in {@code exact}, if any.
+   */
+  private Field ranked(TopKeys candidates, long[] exact, String name) {
+    List<long[]> ranked = new ArrayList<>();
+    for (long key : candidates.keys()) {
+      ranked.add(new long[]{key, counts.estimate(key)});
+    }
+    if (exact != null) {
+      for (int number = 0; number < exact.length; number++) {
+        if (exact[number] > 0) {
+          long key = (long) ('0' + number / 100) << 48 | (long) ('0' + number / 10 % 10) << 32
+              | (long) ('0' + number % 10) << 16;
+          ranked.add(new long[]{key, exact[number]});
+        }
+      }
+    }
+    ranked.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]));
+    List<Field> list = new ArrayList<>(Math.min(ranked.size(), topN));
+    for (long[] keyCount : ranked.subList(0, Math.min(ranked.size(), topN))) {
+      LinkedHashMap<String, Field> entry = new LinkedHashMap<>();
+      entry.put(name, Field.create(name(keyCount[0])));
+      entry.put(COUNT, Field.create(keyCount[1]));
+      list.add(Field.createListMap(entry));
+    }
+    return Field.create(list);
+  }
+
+  private static Field histogram(long[] buckets) {
+    List<Field> list = new ArrayList<>();
+    for (int bucket = 0; bucket < buckets.length; bucket++) {
+      if (buckets[bucket] == 0) {
+        continue;
+      }
+      LinkedHashMap<String, Field> entry = new LinkedHashMap<>();
+      entry.put(MIN, Field.create(bucket == 0 ? 0 : 1L << (bucket - 1)));
+      entry.put(MAX, Field.create((1L << bucket) - 1));
+      entry.put(COUNT, Field.create(buckets[bucket]));
+      list.add(Field.createListMap(entry));
+    }
+    return Field.create(list);
+  }
+
+  /**
+   * Bucket 0 holds 0, and bucket {@code b} the values from {@code 2^(b-1)} to {@code 2^b - 1}.
+   */
+  private static int bucket(long value) {
+    return Long.SIZE - Long.numberOfLeadingZeros(value);
+  }
+
+  /**
+   * @return The sketch for {@code key}, or {@code null} if it is not counted yet and no more keys can be
+   */
+  private HyperLogLog distinct(long key) {
+    int mask = distinct.length - 1;
+    int slot = slot(key, mask);
+    while (distinct[slot] != null) {
+      if (distinctKeys[slot] == key) {
+        return distinct[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (distinctCount == MAX_DISTINCT_COUNTED) {
+      return null;
+    }
+    distinctCount++;
+    distinctKeys[slot] = key;
+    distinct[slot] = new HyperLogLog(HLL_PRECISION);
+    return distinct[slot];
+  }
+
+  /**
+   * @return The tag, followed by {@code $} and the subfield code for a subfield, of {@code key}
+   */
+  static String name(long key) {
+    StringBuilder name = new StringBuilder(5)
+        .append((char) (key >>> 48))
+        .append((char) (key >>> 32))
+        .append((char) (key >>> 16));
+    char code = (char) key;
+    if (code != 0) {
+      name.append('$').append(code);
+    }
+    return name.toString();
+  }
+
+  /**
+   * @return The slot for {@code key} in an open addressing table of {@code mask + 1} slots, a power of two, from the
+   * high bits of the key times the golden ratio, which are cheaper than a full mix and good enough for table slots
+   */
+  private static int slot(long key, int mask) {
+    return (int) ((key * P) >>> (Long.SIZE - Integer.bitCount(mask)));
+  }
+
+  /**
+   * The finalizer of MurmurHash3, which spreads every input bit over the whole hash.
+   */
+  static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * At most {@code capacity} keys with their last known count, in an open addressing table. When it is full, a key
+   * with a higher count replaces the key with the lowest.
+   */
+  private static final class TopKeys {
+
+    private final int capacity;
+    private final int mask;
+    private final long[] keys;
+    private final long[] counts;
+    private final boolean[] used;
+    private int size;
+    // No key held has a lower count, so offers at or below it need no scan.
+    private long floor;
+
+    private TopKeys(int capacity) {
+      this.capacity = capacity;
+      int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+      this.mask = slots - 1;
+      this.keys = new long[slots];
+      this.counts = new long[slots];
+      this.used = new boolean[slots];
+    }
+
+    private void offer(long key, long count) {
+      // Estimates only grow, so a key held already has a count above the floor.
+      if (size == capacity && count <= floor) {
+        return;
+      }
+      int slot = find(key);
+      if (used[slot]) {
+        counts[slot] = count;
+        return;
+      }
+      if (size == capacity) {
+        int lowest = -1;
+        for (int i = 0; i < used.length; i++) {
+          if (used[i] && (lowest < 0 || counts[i] < counts[lowest])) {
+            lowest = i;
+          }
+        }
+        floor = counts[lowest];
+        if (count <= floor) {
+          return;
+        }
+        remove(lowest);
+        slot = find(key);
+      }
+      keys[slot] = key;
+      counts[slot] = count;
+      used[slot] = true;
+      size++;
+    }
+
+    private int find(long key) {
+      int slot = slot(key, mask);
+      while (used[slot] && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    /**
+     * Empties {@code slot}, moving back the keys after it that would no longer be found.
+     */
+    private void remove(int slot) {
+      used[slot] = false;
+      size--;
+      int hole = slot;
+      for (int next = (slot + 1) & mask; used[next]; next = (next + 1) & mask) {
+        int home = slot(keys[next], mask);
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          keys[hole] = keys[next];
+          counts[hole] = counts[next];
+          used[hole] = true;
+          used[next] = false;
+          hole = next;
+        }
+      }
+    }
+
+    private long[] keys() {
+      long[] held = new long[size];
+      int count = 0;
+      for (int i = 0; i < used.length; i++) {
+        if (used[i]) {
+          held[count++] = keys[i];
+        }
+      }
+      return held;
+    }
+
+    private void clear() {
+      Arrays.fill(used, false);
+      size = 0;
+      floor = 0;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.Arrays;
+
+/**
+ * Adds every record to a {@link CorpusProfile} while it is being decoded, and passes the parts of the record its
+ * selector keeps on to another handler.
+ * <p>When the record's bytes are at hand, {@link #directory(byte[], int, int)} reads its length and the tags of all its
+ * fields from the leader and directory, so the decoder can keep skipping the fields that are not selected. Otherwise
+ * the decoder has to be given {@link FieldSelector#ALL} for the tag counts to cover every field, and record lengths are
+ * read from the leader and left out when it holds no number.</p>
+ * <p>Subfield counts and distinct values are kept for the subfields the selector keeps, or for every subfield the
+ * decoder reports when {@code allSubfields} is set.</p>
+ * <p>Instances keep state between calls and are not thread safe.</p>
+ */
+public final class CorpusProfiler implements MarcRecordHandler {
+
+  private final MarcRecordHandler delegate;
+  private final FieldSelector selector;
+  // Spares the selector lookups per field and subfield in the common case.
+  private final boolean all;
+  private final boolean allSubfields;
+  private final CorpusProfile profile;
+  private String tag;
+  private long key;
+  private boolean forwarding;
+  private int length;
+  private int fields;
+  // The field keys read by directory(), counted when the record ends.
+  private long[] directoryKeys = new long[64];
+  private boolean fromDirectory;
+
+  /**
+   * @param delegate Receives the parts of the record that {@code selector} keeps
+   * @param selector The fields and subfields to pass on
+   * @param profile Profile the records are added to
+   */
+  public CorpusProfiler(MarcRecordHandler delegate, FieldSelector selector, CorpusProfile profile) {
+    this(delegate, selector, false, profile);
+  }
+
+  /**
+   * @param delegate Receives the parts of the record that {@code selector} keeps
+   * @param selector The fields and subfields to pass on
+   * @param allSubfields Whether subfields that {@code selector} does not keep are profiled too
+   * @param profile Profile the records are added to
+   */
+  public CorpusProfiler(
+      MarcRecordHandler delegate,
+      FieldSelector selector,
+      boolean allSubfields,
+      CorpusProfile profile
+  ) {
+    this.delegate = delegate;
+    this.selector = selector;
+    this.all = selector == FieldSelector.ALL;
+    this.allSubfields = allSubfields;
+    this.profile = profile;
+  }
+
+  /**
+   * Reads the length and field tags of the record about to be decoded from {@code buf[offset, offset + length)}. They
+   * are counted once it ends, in place of what the decoder reports.
+   */
+  public void directory(byte[] buf, int offset, int length) {
+    fromDirectory = false;
+    int directoryEnd;
+    try {
+      directoryEnd = Math.min(offset + Iso2709Decoder.parseNumber(buf, offset + 12, 5) - 1, offset + length);
+    } catch (RuntimeException e) {
+      // The decoder rejects the record too, so it is not counted.
+      return;
+    }
+    this.length = length;
+    fields = 0;
+    fromDirectory = true;
+    for (int entry = offset + Iso2709Decoder.LEADER_LENGTH; entry + Iso2709Decoder.DIRECTORY_ENTRY_LENGTH
+        <= directoryEnd; entry += Iso2709Decoder.DIRECTORY_ENTRY_LENGTH) {
+      if (fields == directoryKeys.length) {
+        directoryKeys = Arrays.copyOf(directoryKeys, fields * 2);
+      }
+      directoryKeys[fields++] = CorpusProfile.key(buf, entry);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startRecord(String leader) {
+    if (!fromDirectory) {
+      length = recordLength(leader);
+      fields = 0;
+    }
+    delegate.startRecord(leader);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void controlField(String tag, String data) {
+    long key = CorpusProfile.key(tag);
+    if (!fromDirectory) {
+      fields++;
+      if (key != CorpusProfile.NO_KEY) {
+        profile.field(key);
+      }
+    }
+    boolean selected = all || selector.isSelected(tag);
+    if (key != CorpusProfile.NO_KEY && (selected || allSubfields)) {
+      profile.value(key, data);
+    }
+    if (selected) {
+      delegate.controlField(tag, data);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDataField(String tag, char indicator1, char indicator2) {
+    this.tag = tag;
+    key = CorpusProfile.key(tag);
+    if (!fromDirectory) {
+      fields++;
+      if (key != CorpusProfile.NO_KEY) {
+        profile.field(key);
+      }
+    }
+    forwarding = all || selector.isSelected(tag);
+    if (forwarding) {
+      delegate.startDataField(tag, indicator1, indicator2);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subfield(char code, String data) {
+    boolean selected = forwarding && (all || selector.isSelected(tag, code));
+    if (key != CorpusProfile.NO_KEY && (selected || allSubfields)) {
+      profile.subfield(key | code);
+      profile.value(key | code, data);
+    }
+    if (selected) {
+      delegate.subfield(code, data);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDataField() {
+    if (forwarding) {
+      delegate.endDataField();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endRecord() {
+    if (fromDirectory) {
+      for (int i = 0; i < fields; i++) {
+        profile.field(directoryKeys[i]);
+      }
+      fromDirectory = false;
+    }
+    profile.record(length, fields);
+    delegate.endRecord();
+  }
+
+  /**
+   * @return The record length in leader/00-04, or -1 if those are not all digits
+   */
+  private static int recordLength(String leader) {
+    if (leader.length() < 5) {
+      return -1;
+    }
+    int length = 0;
+    for (int i = 0; i < 5; i++) {
+      char digit = leader.charAt(i);
+      if (digit < '0' || digit > '9') {
+        return -1;
+      }
+      length = length * 10 + digit - '0';
+    }
+    return length;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how often each 64-bit key was counted, in a fixed table of {@code depth} rows of {@code width} counters.
+ * <p>Every row counts a key in the counter its own hash of the key picks, and the estimate is the smallest of those
+ * counters. Estimates are never below the true count, and exceed it by more than {@code e / width} of the total only
+ * with a probability of {@code exp(-depth)}.</p>
+ * <p>Instances are not thread safe.</p>
+ */
+final class CountMinSketch {
+
+  private final int depth;
+  private final int mask;
+  private final long[] counters;
+  private long total;
+
+  /**
+   * @param depth Number of rows
+   * @param width Counters per row, a power of two
+   */
+  CountMinSketch(int depth, int width) {
+    if (Integer.bitCount(width) != 1) {
+      throw new IllegalArgumentException("Width " + width + " is not a power of two");
+    }
+    this.depth = depth;
+    this.mask = width - 1;
+    this.counters = new long[depth * width];
+  }
+
+  /**
+   * Counts {@code key} once.
+   *
+   * @return The estimated count of {@code key}, including this one
+   */
+  long add(long key) {
+    total++;
+    long hash = CorpusProfile.mix(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      int counter = row * (mask + 1) + ((h1 + row * h2) & mask);
+      estimate = Math.min(estimate, ++counters[counter]);
+    }
+    return estimate;
+  }
+
+  /**
+   * @return The estimated number of times {@code key} was counted
+   */
+  long estimate(long key) {
+    long hash = CorpusProfile.mix(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counters[row * (mask + 1) + ((h1 + row * h2) & mask)]);
+    }
+    return estimate;
+  }
+
+  /**
+   * @return The number of keys counted, duplicates included
+   */
+  long total() {
+    return total;
+  }
+
+  /**
+   * Adds the counts of a sketch of the same dimensions to this one.
+   */
+  void merge(CountMinSketch other) {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] += other.counters[i];
+    }
+    total += other.total;
+  }
+
+  void clear() {
+    Arrays.fill(counters, 0);
+    total = 0;
+  }
+}
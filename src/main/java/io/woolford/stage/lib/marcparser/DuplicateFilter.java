@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the records recently passed on, by control number (001) and control number identifier (003), to drop
+ * copies of a record that is delivered more than once.
+ * <p>A record is a duplicate when a record with the same 001 and 003 was remembered and its date and time of latest
+ * transaction (005) is the same or later. A record with a later 005 is kept and replaces the remembered one. A
+ * missing 005 sorts before any other, and records without a 001 are never duplicates.</p>
+ * <p>Checking a record does not remember it: the caller remembers it with {@link #remember} only once the record was
+ * passed on, so a copy that failed to parse does not cause a valid later copy to be dropped. Remembered records are
+ * staged, and count as seen, until {@link #commit()} keeps them or {@link #rollback()} drops them.</p>
+ * <p>At most {@code maxEntries} records are remembered, the least recently remembered being forgotten first, and each
+ * for at most {@code ttl} after it was remembered; finding a duplicate does not extend it. Instances are not thread
+ * safe.</p>
+ */
+public final class DuplicateFilter {
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+  private final LinkedHashMap<String, Entry> entries;
+  private final LinkedHashMap<String, Entry> staged = new LinkedHashMap<>();
+
+  /**
+   * @param maxEntries Maximum number of records remembered
+   * @param ttl How long a record is remembered
+   * @param unit Unit of {@code ttl}
+   */
+  public DuplicateFilter(int maxEntries, long ttl, TimeUnit unit) {
+    this(maxEntries, unit.toNanos(ttl), System::nanoTime);
+  }
+
+  DuplicateFilter(int maxEntries, long ttlNanos, LongSupplier clock) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = ttlNanos;
+    this.clock = clock;
+    // In insertion order, so the entries remembered first are at the head for both eviction and expiry.
+    this.entries = new LinkedHashMap<String, Entry>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > DuplicateFilter.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Checks the ISO 2709 record in {@code buf[offset, offset + length)} against the records remembered, reading its
+   * 001, 003 and 005 from the directory.
+   *
+   * @return Whether the record is a duplicate
+   * @throws MarcFormatException if the leader or directory is malformed
+   */
+  public boolean isDuplicate(byte[] buf, int offset, int length) {
+    String controlNumber = Iso2709Decoder.controlField(buf, offset, length, "001");
+    return controlNumber != null && isDuplicate(
+        Iso2709Decoder.controlField(buf, offset, length, "003"),
+        controlNumber,
+        Iso2709Decoder.controlField(buf, offset, length, "005")
+    );
+  }
+
+  /**
+   * Checks a record against the records remembered.
+   *
+   * @param source The 003 of the record, may be {@code null}
+   * @param controlNumber The 001 of the record
+   * @param latestTransaction The 005 of the record, may be {@code null}
+   * @return Whether the record is a duplicate
+   */
+  public boolean isDuplicate(String source, String controlNumber, String latestTransaction) {
+    long now = clock.getAsLong();
+    expire(now);
+    String key = key(source, controlNumber);
+    Entry seen = staged.get(key);
+    if (seen == null || now - seen.remembered >= ttlNanos) {
+      seen = entries.get(key);
+    }
+    return seen != null && compare(latestTransaction, seen.latestTransaction) <= 0;
+  }
+
+  /**
+   * Stages the ISO 2709 record in {@code buf[offset, offset + length)} until the next {@link #commit()}, unless it is
+   * a duplicate, reading its 001, 003 and 005 from the directory.
+   *
+   * @return Whether the record was remembered, {@code false} if it is a duplicate
+   * @throws MarcFormatException if the leader or directory is malformed
+   */
+  public boolean remember(byte[] buf, int offset, int length) {
+    String controlNumber = Iso2709Decoder.controlField(buf, offset, length, "001");
+    return controlNumber == null || remember(
+        Iso2709Decoder.controlField(buf, offset, length, "003"),
+        controlNumber,
+        Iso2709Decoder.controlField(buf, offset, length, "005")
+    );
+  }
+
+  /**
+   * Stages a record until the next {@link #commit()}, unless it is a duplicate.
+   *
+   * @param source The 003 of the record, may be {@code null}
+   * @param controlNumber The 001 of the record
+   * @param latestTransaction The 005 of the record, may be {@code null}
+   * @return Whether the record was remembered, {@code false} if it is a duplicate
+   */
+  public boolean remember(String source, String controlNumber, String latestTransaction) {
+    if (isDuplicate(source, controlNumber, latestTransaction)) {
+      return false;
+    }
+    String key = key(source, controlNumber);
+    staged.remove(key);
+    staged.put(key, new Entry(latestTransaction, clock.getAsLong()));
+    return true;
+  }
+
+  /**
+   * Keeps the staged records, in the order they were staged.
+   */
+  public void commit() {
+    for (Map.Entry<String, Entry> entry : staged.entrySet()) {
+      // Removed first so a replaced record moves to the tail with its new time.
+      entries.remove(entry.getKey());
+      entries.put(entry.getKey(), entry.getValue());
+    }
+    staged.clear();
+  }
+
+  /**
+   * Drops the staged records.
+   */
+  public void rollback() {
+    staged.clear();
+  }
+
+  /**
+   * @return The number of committed records currently remembered
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private static String key(String source, String controlNumber) {
+    return source == null ? controlNumber : source + '\u001F' + controlNumber;
+  }
+
+  /**
+   * Forgets the records remembered longer than the TTL. They are all at the head of the map.
+   */
+  private void expire(long now) {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().remembered < ttlNanos) {
+        return;
+      }
+      iterator.remove();
+    }
+  }
+
+  /**
+   * 005 is yyyymmddhhmmss.f, so its values order as strings.
+   */
+  private static int compare(String a, String b) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    }
+    return a.compareTo(b);
+  }
+
+  private static final class Entry {
+    private final String latestTransaction;
+    private final long remembered;
+
+    private Entry(String latestTransaction, long remembered) {
+      this.latestTransaction = latestTransaction;
+      this.remembered = remembered;
+    }
+  }
+}
@@ -23,6 +23,19 @@ public enum Errors implements ErrorCode {
 
   MARC_PARSER_00("A configuration is invalid because: {}"),
   MARC_PARSER_01("Specific reason writing record failed: {}"),
+  MARC_PARSER_02("Input field '{}' does not exist in the record"),
+  MARC_PARSER_03("Input field '{}' is of type '{}', expected STRING or BYTE_ARRAY"),
+  MARC_PARSER_04("Directory '{}' does not exist or is not a directory"),
+  MARC_PARSER_05("Could not read '{}': {}"),
+  MARC_PARSER_06("Malformed MARC record in '{}' at byte offset {}: {}"),
+  MARC_PARSER_07("Invalid field selection: {}"),
+  MARC_PARSER_08("Could not parse MARC record {} of the input: {}"),
+  MARC_PARSER_09("Skipped malformed MARC record {} at byte offset {} of the input: {}"),
+  MARC_PARSER_10("Could not write field '{}' as a MARC record: {}"),
+  MARC_PARSER_11("Could not commit fingerprints to '{}': {}"),
+  MARC_PARSER_12("Holdings record references bibliographic record '{}', which was not found within the merge window"),
+  MARC_PARSER_13("Could not decompress {} input: {}"),
+  MARC_PARSER_14("{} is not available with exploded output"),
   ;
   private final String msg;
 
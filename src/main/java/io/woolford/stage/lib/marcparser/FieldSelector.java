@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which fields and subfields of a MARC record are decoded.
+ * <p>Selections are written as a tag, optionally followed by subfield codes: {@code 245}, {@code 245$a$c}. An
+ * {@code X} in a numeric tag matches any digit, so {@code 6XX} covers 600-699. When including, a tag selects the whole
+ * field and {@code $} codes narrow it down to those subfields. When excluding, a tag drops the whole field and
+ * {@code $} codes drop only those subfields. The leader is always kept.</p>
+ * <p>Lookups for numeric tags go through flat arrays indexed by tag value, so checking a directory entry costs no
+ * allocation.</p>
+ */
+public final class FieldSelector {
+
+  /**
+   * Keeps every field and subfield.
+   */
+  public static final FieldSelector ALL = new FieldSelector(false);
+
+  private static final int TAGS = 1000;
+
+  private final boolean include;
+  private final boolean[] selected = new boolean[TAGS];
+  private final long[] lowCodes = new long[TAGS];
+  private final long[] highCodes = new long[TAGS];
+  private final Map<String, Rule> otherTags = new HashMap<>();
+
+  private FieldSelector(boolean include) {
+    this.include = include;
+    for (int tag = 0; tag < TAGS; tag++) {
+      selected[tag] = !include;
+      lowCodes[tag] = include ? 0 : -1L;
+      highCodes[tag] = include ? 0 : -1L;
+    }
+  }
+
+  /**
+   * Builds a selector from a list of selections.
+   *
+   * @param include {@code true} to keep only the selected fields, {@code false} to drop them
+   * @param selections Selections such as {@code 245$a$c} or {@code 6XX}
+   * @return The selector
+   * @throws IllegalArgumentException if a selection is malformed
+   */
+  public static FieldSelector of(boolean include, List<String> selections) {
+    FieldSelector selector = new FieldSelector(include);
+    for (String selection : selections) {
+      selector.add(selection.trim());
+    }
+    return selector;
+  }
+
+  /**
+   * Returns a selector that also keeps the whole of the given numeric fields, for callers that need to see fields
+   * whether or not the user selected them.
+   *
+   * @param tags Numeric tags such as {@code 020}
+   * @return This selector if it already keeps all of them, a widened copy otherwise
+   */
+  public FieldSelector withFields(String... tags) {
+    boolean complete = true;
+    for (String tag : tags) {
+      int value = MarcKeys.numericTag(tag);
+      complete &= selected[value] && lowCodes[value] == -1L && highCodes[value] == -1L;
+    }
+    if (complete) {
+      return this;
+    }
+    FieldSelector widened = new FieldSelector(include);
+    System.arraycopy(selected, 0, widened.selected, 0, TAGS);
+    System.arraycopy(lowCodes, 0, widened.lowCodes, 0, TAGS);
+    System.arraycopy(highCodes, 0, widened.highCodes, 0, TAGS);
+    widened.otherTags.putAll(otherTags);
+    for (String tag : tags) {
+      int value = MarcKeys.numericTag(tag);
+      widened.selected[value] = true;
+      widened.lowCodes[value] = -1L;
+      widened.highCodes[value] = -1L;
+    }
+    return widened;
+  }
+
+  private void add(String selection) {
+    String[] parts = selection.split("\\$", -1);
+    String tag = parts[0];
+    if (tag.length() != 3) {
+      throw new IllegalArgumentException("Tag must have three characters: '" + selection + "'");
+    }
+    long low = 0;
+    long high = 0;
+    for (int i = 1; i < parts.length; i++) {
+      if (parts[i].length() != 1 || parts[i].charAt(0) > 127) {
+        throw new IllegalArgumentException("Subfield code must be a single ASCII character: '" + selection + "'");
+      }
+      char code = parts[i].charAt(0);
+      if (code < 64) {
+        low |= 1L << code;
+      } else {
+        high |= 1L << (code - 64);
+      }
+    }
+    boolean wholeField = parts.length == 1;
+
+    if (isNumericPattern(tag)) {
+      for (int value = 0; value < TAGS; value++) {
+        if (matches(tag, value)) {
+          apply(value, wholeField, low, high);
+        }
+      }
+    } else {
+      Rule rule = otherTags.computeIfAbsent(tag, key -> new Rule(!include));
+      if (wholeField) {
+        rule.selected = include;
+        rule.lowCodes = -1L;
+        rule.highCodes = -1L;
+      } else if (include) {
+        rule.selected = true;
+        rule.lowCodes |= low;
+        rule.highCodes |= high;
+      } else {
+        rule.lowCodes &= ~low;
+        rule.highCodes &= ~high;
+      }
+    }
+  }
+
+  private void apply(int tag, boolean wholeField, long low, long high) {
+    if (wholeField) {
+      selected[tag] = include;
+      lowCodes[tag] = -1L;
+      highCodes[tag] = -1L;
+    } else if (include) {
+      selected[tag] = true;
+      lowCodes[tag] |= low;
+      highCodes[tag] |= high;
+    } else {
+      lowCodes[tag] &= ~low;
+      highCodes[tag] &= ~high;
+    }
+  }
+
+  /**
+   * @return Whether the field whose three tag bytes start at {@code buf[offset]} is selected
+   */
+  public boolean isSelected(byte[] buf, int offset) {
+    int tag = MarcKeys.numericTag(buf, offset);
+    if (tag >= 0) {
+      return selected[tag];
+    }
+    Rule rule = otherTags.get(new String(buf, offset, 3, StandardCharsets.ISO_8859_1));
+    return rule != null ? rule.selected : !include;
+  }
+
+  /**
+   * @return Whether the field with this tag is selected
+   */
+  public boolean isSelected(String tag) {
+    int value = MarcKeys.numericTag(tag);
+    if (value >= 0) {
+      return selected[value];
+    }
+    Rule rule = otherTags.get(tag);
+    return rule != null ? rule.selected : !include;
+  }
+
+  /**
+   * @return Whether subfield {@code code} of a selected field with this tag is selected
+   */
+  public boolean isSelected(String tag, char code) {
+    long low;
+    long high;
+    int value = MarcKeys.numericTag(tag);
+    if (value >= 0) {
+      low = lowCodes[value];
+      high = highCodes[value];
+    } else {
+      Rule rule = otherTags.get(tag);
+      if (rule == null) {
+        return !include;
+      }
+      low = rule.lowCodes;
+      high = rule.highCodes;
+    }
+    if (code < 64) {
+      return (low & (1L << code)) != 0;
+    }
+    return code < 128 ? (high & (1L << (code - 64))) != 0 : (low == -1L && high == -1L);
+  }
+
+  private static boolean isNumericPattern(String tag) {
+    for (int i = 0; i < 3; i++) {
+      char c = tag.charAt(i);
+      if ((c < '0' || c > '9') && c != 'X' && c != 'x') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matches(String pattern, int tag) {
+    int[] digits = {tag / 100, tag / 10 % 10, tag % 10};
+    for (int i = 0; i < 3; i++) {
+      char c = pattern.charAt(i);
+      if (c != 'X' && c != 'x' && c - '0' != digits[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static final class Rule {
+    private boolean selected;
+    private long lowCodes;
+    private long highCodes;
+
+    private Rule(boolean selected) {
+      this.selected = selected;
+      this.lowCodes = selected ? -1L : 0;
+      this.highCodes = selected ? -1L : 0;
+    }
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.impl.CreateByRef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the SDC {@link Field} tree for a MARC record.
+ * <p>The root is a LIST_MAP holding {@code leader} and one STRING per control field. How data fields are laid out
+ * depends on the {@link OutputShape}:</p>
+ * <ul>
+ *   <li>{@link OutputShape#VERBOSE}: for every tag, a LIST of LIST_MAPs shaped like
+ *   {@code MarcParserProcessor.getMapOfDataField()}, with the two indicators as CHAR fields followed by one LIST of
+ *   STRING fields per subfield code.</li>
+ *   <li>{@link OutputShape#SCALAR_WHEN_SINGLE}: the same, except that a tag occurring once maps straight to its
+ *   LIST_MAP and a subfield code occurring once in a field maps straight to its STRING.</li>
+ *   <li>{@link OutputShape#FLAT}: root keys such as {@code 245_a} holding a LIST of every value of that subfield in
+ *   the record, and {@code 245_ind} holding a LIST with the two indicators of each occurrence as one STRING.</li>
+ * </ul>
+ * <p>Data fields and subfields are collected in scratch arrays that are reused from record to record, and the tree is
+ * assembled once the record ends. Every list and map is then allocated at its final size and handed to the
+ * {@link Field}s by reference, since a plain {@code Field.create()} deep-copies its list or map. Tags, subfield keys
+ * and blank or digit indicators come from {@link MarcKeys}.</p>
+ */
+public class FieldTreeBuilder implements MarcRecordHandler {
+
+  private static final int NUMERIC_TAGS = 1000;
+
+  private OutputShape shape = OutputShape.VERBOSE;
+  private LinkedHashMap<String, Field> root;
+  private Field result;
+  private int controlFieldCount;
+  private int resultFieldCount;
+  private int resultSubfieldCount;
+
+  // Data fields of the current record, in record order.
+  private int fieldCount;
+  private int[] fieldTags = new int[64];
+  private char[] indicators1 = new char[64];
+  private char[] indicators2 = new char[64];
+  private int[] firstSubfields = new int[65];
+
+  // Subfields of the current record, in record order.
+  private int subfieldCount;
+  private char[] codes = new char[256];
+  private String[] values = new String[256];
+
+  // Data field tags of the current record, in order of first appearance. Non-numeric tags get ids from 1000 up.
+  private int tagCount;
+  private int[] tagOrder = new int[64];
+  private int[] fieldsPerTag = new int[NUMERIC_TAGS];
+  private int[] firstFieldOfTag = new int[NUMERIC_TAGS];
+  private final List<String> otherTags = new ArrayList<>();
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private List<Field>[] tagLists = new List[NUMERIC_TAGS];
+
+  // Per data field grouping of subfield codes.
+  private char[] distinctCodes = new char[16];
+  private int[] codeCounts = new int[16];
+  private int[] firstCodeIndex = new int[16];
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private List<Field>[] codeLists = new List[16];
+
+  /**
+   * Sets the layout of data fields in the records built from now on.
+   *
+   * @param shape The output shape
+   * @return This builder
+   */
+  public FieldTreeBuilder setOutputShape(OutputShape shape) {
+    this.shape = shape;
+    return this;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startRecord(String leader) {
+    // Clears whatever a record that failed half way through left behind.
+    reset();
+    root = new LinkedHashMap<>();
+    result = null;
+    resultFieldCount = 0;
+    resultSubfieldCount = 0;
+    root.put(MarcKeys.LEADER, Field.create(leader));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void controlField(String tag, String data) {
+    root.put(tag, Field.create(data));
+    controlFieldCount++;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDataField(String tag, char indicator1, char indicator2) {
+    if (fieldCount == fieldTags.length) {
+      int size = fieldCount * 2;
+      fieldTags = Arrays.copyOf(fieldTags, size);
+      indicators1 = Arrays.copyOf(indicators1, size);
+      indicators2 = Arrays.copyOf(indicators2, size);
+      firstSubfields = Arrays.copyOf(firstSubfields, size + 1);
+    }
+    int id = tagId(tag);
+    if (fieldsPerTag[id]++ == 0) {
+      if (tagCount == tagOrder.length) {
+        tagOrder = Arrays.copyOf(tagOrder, tagCount * 2);
+      }
+      tagOrder[tagCount++] = id;
+      firstFieldOfTag[id] = fieldCount;
+    }
+    fieldTags[fieldCount] = id;
+    indicators1[fieldCount] = indicator1;
+    indicators2[fieldCount] = indicator2;
+    firstSubfields[fieldCount] = subfieldCount;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subfield(char code, String data) {
+    if (subfieldCount == codes.length) {
+      codes = Arrays.copyOf(codes, subfieldCount * 2);
+      values = Arrays.copyOf(values, subfieldCount * 2);
+    }
+    codes[subfieldCount] = code;
+    values[subfieldCount] = data;
+    subfieldCount++;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDataField() {
+    fieldCount++;
+    firstSubfields[fieldCount] = subfieldCount;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endRecord() {
+    try {
+      CreateByRef.call(() -> {
+        if (shape == OutputShape.FLAT) {
+          buildFlatFields();
+        } else {
+          buildDataFields();
+        }
+        result = Field.createListMap(root);
+        return null;
+      });
+      resultFieldCount = controlFieldCount + fieldCount;
+      resultSubfieldCount = subfieldCount;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * @return The root field of the last record that was completed
+   */
+  public Field getRecordField() {
+    return result;
+  }
+
+  /**
+   * @return The number of control and data fields in the last record that was completed
+   */
+  public int getFieldCount() {
+    return resultFieldCount;
+  }
+
+  /**
+   * @return The number of subfields in the last record that was completed
+   */
+  public int getSubfieldCount() {
+    return resultSubfieldCount;
+  }
+
+  private void buildDataFields() {
+    boolean scalars = shape == OutputShape.SCALAR_WHEN_SINGLE;
+    for (int i = 0; i < tagCount; i++) {
+      int id = tagOrder[i];
+      if (scalars && fieldsPerTag[id] == 1) {
+        root.put(tagName(id), Field.createListMap(buildDataField(firstFieldOfTag[id], true)));
+        continue;
+      }
+      List<Field> fields = new ArrayList<>(fieldsPerTag[id]);
+      tagLists[id] = fields;
+      root.put(tagName(id), Field.create(fields));
+    }
+    for (int field = 0; field < fieldCount; field++) {
+      List<Field> fields = tagLists[fieldTags[field]];
+      if (fields != null) {
+        fields.add(Field.createListMap(buildDataField(field, scalars)));
+      }
+    }
+  }
+
+  private LinkedHashMap<String, Field> buildDataField(int field, boolean scalars) {
+    int from = firstSubfields[field];
+    int to = firstSubfields[field + 1];
+
+    int distinct = 0;
+    for (int i = from; i < to; i++) {
+      int slot = 0;
+      while (slot < distinct && distinctCodes[slot] != codes[i]) {
+        slot++;
+      }
+      if (slot == distinct) {
+        if (distinct == distinctCodes.length) {
+          distinctCodes = Arrays.copyOf(distinctCodes, distinct * 2);
+          codeCounts = Arrays.copyOf(codeCounts, distinct * 2);
+          firstCodeIndex = Arrays.copyOf(firstCodeIndex, distinct * 2);
+          codeLists = Arrays.copyOf(codeLists, distinct * 2);
+        }
+        distinctCodes[distinct] = codes[i];
+        codeCounts[distinct] = 0;
+        firstCodeIndex[distinct] = i;
+        distinct++;
+      }
+      codeCounts[slot]++;
+    }
+
+    LinkedHashMap<String, Field> dataField = new LinkedHashMap<>();
+    dataField.put(MarcKeys.INDICATOR1, MarcKeys.indicator(indicators1[field]));
+    dataField.put(MarcKeys.INDICATOR2, MarcKeys.indicator(indicators2[field]));
+    for (int slot = 0; slot < distinct; slot++) {
+      if (scalars && codeCounts[slot] == 1) {
+        dataField.put(MarcKeys.subfieldKey(distinctCodes[slot]), Field.create(values[firstCodeIndex[slot]]));
+        continue;
+      }
+      List<Field> list = new ArrayList<>(codeCounts[slot]);
+      codeLists[slot] = list;
+      dataField.put(MarcKeys.subfieldKey(distinctCodes[slot]), Field.create(list));
+    }
+    for (int i = from; i < to; i++) {
+      int slot = 0;
+      while (distinctCodes[slot] != codes[i]) {
+        slot++;
+      }
+      if (codeLists[slot] != null) {
+        codeLists[slot].add(Field.create(values[i]));
+      }
+    }
+    Arrays.fill(codeLists, 0, distinct, null);
+    return dataField;
+  }
+
+  private void buildFlatFields() {
+    Map<String, List<Field>> flat = new LinkedHashMap<>();
+    for (int field = 0; field < fieldCount; field++) {
+      int id = fieldTags[field];
+      String indicators = new String(new char[]{indicators1[field], indicators2[field]});
+      flat.computeIfAbsent(flatIndicatorsKey(id), key -> new ArrayList<>())
+          .add(Field.create(indicators));
+      for (int i = firstSubfields[field]; i < firstSubfields[field + 1]; i++) {
+        flat.computeIfAbsent(flatKey(id, codes[i]), key -> new ArrayList<>()).add(Field.create(values[i]));
+      }
+    }
+    flat.forEach((key, list) -> root.put(key, Field.create(list)));
+  }
+
+  private String flatKey(int id, char code) {
+    return id < NUMERIC_TAGS ? MarcKeys.flatKey(id, code) : otherTags.get(id - NUMERIC_TAGS) + '_' + code;
+  }
+
+  private String flatIndicatorsKey(int id) {
+    return id < NUMERIC_TAGS ? MarcKeys.flatIndicatorsKey(id) : otherTags.get(id - NUMERIC_TAGS) + "_ind";
+  }
+
+  private int tagId(String tag) {
+    int id = MarcKeys.numericTag(tag);
+    if (id >= 0) {
+      return id;
+    }
+    int index = otherTags.indexOf(tag);
+    if (index < 0) {
+      index = otherTags.size();
+      otherTags.add(tag);
+    }
+    id = NUMERIC_TAGS + index;
+    if (id >= fieldsPerTag.length) {
+      fieldsPerTag = Arrays.copyOf(fieldsPerTag, id + 1);
+      firstFieldOfTag = Arrays.copyOf(firstFieldOfTag, id + 1);
+      tagLists = Arrays.copyOf(tagLists, id + 1);
+    }
+    return id;
+  }
+
+  private String tagName(int id) {
+    return id < NUMERIC_TAGS ? MarcKeys.tag(id) : otherTags.get(id - NUMERIC_TAGS);
+  }
+
+  private void reset() {
+    for (int i = 0; i < tagCount; i++) {
+      fieldsPerTag[tagOrder[i]] = 0;
+      tagLists[tagOrder[i]] = null;
+    }
+    tagCount = 0;
+    otherTags.clear();
+    Arrays.fill(values, 0, subfieldCount, null);
+    controlFieldCount = 0;
+    fieldCount = 0;
+    subfieldCount = 0;
+    root = null;
+  }
+}
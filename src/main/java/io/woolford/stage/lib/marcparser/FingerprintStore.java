@@ -0,0 +1,402 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the fingerprint of every record by its key, across pipeline runs, in a memory-mapped open addressing
+ * hash table on local disk.
+ * <p>Changes are staged with {@link #put(long, long)} and made durable together by {@link #commit()}. The staged
+ * entries are first written to a journal next to the table and synced, then applied to the table, which is forced
+ * to disk before the journal is deleted. A journal left behind by a crash is replayed when the store is opened, or
+ * ignored when it was not completely written, so the table always holds a whole number of commits.</p>
+ * <p>A slot is a key and a fingerprint, 16 bytes, and collisions are resolved by linear probing. Key 0 marks an empty
+ * slot, so keys must not be 0. Once the table is three quarters full it is doubled into a new file that replaces the
+ * old one. It is limited to 2^26 slots, a 1 GB file.</p>
+ * <p>Every store opened on the same file in this JVM shares one table, as the runners of a multithreaded pipeline
+ * each have their own processor. Each instance stages its own entries, and commits are applied one at a time. An
+ * exclusive lock on a file next to the table keeps other processes out until the last instance is closed. Instances
+ * are not thread safe.</p>
+ */
+public final class FingerprintStore implements Closeable {
+
+  private static final int MAGIC = 0x4D465031;
+  private static final int JOURNAL_MAGIC = 0x4D464A31;
+  private static final int HEADER_LENGTH = 16;
+  private static final int SLOT_LENGTH = 16;
+  private static final int MIN_CAPACITY = 1 << 12;
+  private static final int MAX_CAPACITY = 1 << 26;
+  static final String JOURNAL_SUFFIX = ".journal";
+  static final String LOCK_SUFFIX = ".lock";
+
+  /**
+   * The open tables by absolute path. Guards their reference counts.
+   */
+  private static final Map<Path, Table> TABLES = new HashMap<>();
+
+  private final Table table;
+  private final Map<Long, Long> pending = new HashMap<>();
+  private boolean closed;
+
+  private FingerprintStore(Table table) {
+    this.table = table;
+  }
+
+  /**
+   * Opens the store kept in {@code path}, creating an empty one if the file does not exist, and replays the journal
+   * of a commit that was interrupted. A store that is already open in this JVM is shared.
+   *
+   * @throws IOException if the file could not be read or another process has the store open
+   */
+  public static FingerprintStore open(Path path) throws IOException {
+    Path absolute = path.toAbsolutePath().normalize();
+    synchronized (TABLES) {
+      Table table = TABLES.get(absolute);
+      if (table == null) {
+        table = Table.open(absolute);
+        TABLES.put(absolute, table);
+      }
+      table.references++;
+      return new FingerprintStore(table);
+    }
+  }
+
+  /**
+   * @return Whether the record with this key was committed or staged with this fingerprint
+   */
+  public boolean isUnchanged(long key, long fingerprint) {
+    Long staged = pending.get(key);
+    if (staged != null) {
+      return staged == fingerprint;
+    }
+    return table.contains(key, fingerprint);
+  }
+
+  /**
+   * Stages the fingerprint of a record until the next {@link #commit()}.
+   */
+  public void put(long key, long fingerprint) {
+    pending.put(key, fingerprint);
+  }
+
+  /**
+   * Makes the staged entries durable, all of them or, if this fails, none of them once the store is opened again.
+   * The staged entries are dropped either way.
+   */
+  public void commit() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    try {
+      table.commit(pending);
+    } finally {
+      pending.clear();
+    }
+  }
+
+  /**
+   * Drops the staged entries.
+   */
+  public void rollback() {
+    pending.clear();
+  }
+
+  /**
+   * @return The number of committed entries
+   */
+  public int size() {
+    return table.size();
+  }
+
+  /**
+   * Drops the staged entries and, when this is the last instance open on the file, unmaps the table and releases the
+   * lock. The instance must not be used afterwards.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    pending.clear();
+    synchronized (TABLES) {
+      if (--table.references == 0) {
+        TABLES.remove(table.path);
+        table.close();
+      }
+    }
+  }
+
+  void writeJournal() throws IOException {
+    table.writeJournal(pending);
+  }
+
+  /**
+   * The mapped table and journal of one file, shared by every instance open on it.
+   */
+  private static final class Table {
+    private final Path path;
+    private final Path journal;
+    private final FileChannel lockChannel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    private int references;
+
+    private Table(Path path, FileChannel lockChannel) {
+      this.path = path;
+      this.journal = path.resolveSibling(path.getFileName() + JOURNAL_SUFFIX);
+      this.lockChannel = lockChannel;
+    }
+
+    static Table open(Path path) throws IOException {
+      FileChannel lockChannel = FileChannel.open(
+          path.resolveSibling(path.getFileName() + LOCK_SUFFIX), StandardOpenOption.CREATE, StandardOpenOption.WRITE
+      );
+      Table table = new Table(path, lockChannel);
+      try {
+        FileLock lock;
+        try {
+          lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+          lock = null;
+        }
+        if (lock == null) {
+          throw new IOException("Fingerprint store " + path + " is in use by another process");
+        }
+        if (Files.exists(path)) {
+          table.map();
+        } else {
+          table.create(MIN_CAPACITY);
+        }
+        table.recover();
+        return table;
+      } catch (IOException | RuntimeException e) {
+        table.close();
+        throw e;
+      }
+    }
+
+    synchronized boolean contains(long key, long fingerprint) {
+      int slot = find(buffer, capacity, key);
+      return buffer.getLong(slot) == key && buffer.getLong(slot + 8) == fingerprint;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized void commit(Map<Long, Long> entries) throws IOException {
+      writeJournal(entries);
+      apply(entries);
+      Files.delete(journal);
+    }
+
+    synchronized void writeJournal(Map<Long, Long> entries) throws IOException {
+      ByteBuffer journalBuffer = ByteBuffer.allocate(8 + entries.size() * SLOT_LENGTH + 8);
+      journalBuffer.putInt(JOURNAL_MAGIC).putInt(entries.size());
+      for (Map.Entry<Long, Long> entry : entries.entrySet()) {
+        journalBuffer.putLong(entry.getKey()).putLong(entry.getValue());
+      }
+      journalBuffer.putLong(checksum(journalBuffer, 8, entries.size()));
+      journalBuffer.flip();
+      try (FileChannel channel = FileChannel.open(
+          journal, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+      )) {
+        while (journalBuffer.hasRemaining()) {
+          channel.write(journalBuffer);
+        }
+        channel.force(true);
+      }
+    }
+
+    /**
+     * Unmaps the table and releases the lock, which closing the channel does.
+     */
+    synchronized void close() {
+      MappedBuffers.unmap(buffer);
+      buffer = null;
+      try {
+        lockChannel.close();
+      } catch (IOException e) {
+        // Nothing is left to write; the lock goes with the process at the latest.
+      }
+    }
+
+    /**
+     * Replays a complete journal, or deletes a partial one.
+     */
+    private void recover() throws IOException {
+      if (!Files.exists(journal)) {
+        return;
+      }
+      ByteBuffer journalBuffer = ByteBuffer.wrap(Files.readAllBytes(journal));
+      int count = journalBuffer.remaining() >= 8 && journalBuffer.getInt(0) == JOURNAL_MAGIC
+          ? journalBuffer.getInt(4) : -1;
+      if (count >= 0 && journalBuffer.remaining() == 8 + count * (long) SLOT_LENGTH + 8
+          && journalBuffer.getLong(8 + count * SLOT_LENGTH) == checksum(journalBuffer, 8, count)) {
+        Map<Long, Long> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+          entries.put(journalBuffer.getLong(8 + i * SLOT_LENGTH), journalBuffer.getLong(16 + i * SLOT_LENGTH));
+        }
+        apply(entries);
+      }
+      Files.delete(journal);
+    }
+
+    private void apply(Map<Long, Long> entries) throws IOException {
+      int needed = size + entries.size();
+      if (needed > capacity / 4 * 3) {
+        int grown = capacity;
+        while (needed > grown / 4 * 3 && grown < MAX_CAPACITY) {
+          grown *= 2;
+        }
+        if (needed > grown / 4 * 3) {
+          throw new IOException("Fingerprint store is full at " + size + " records");
+        }
+        grow(grown);
+      }
+      for (Map.Entry<Long, Long> entry : entries.entrySet()) {
+        if (insert(buffer, capacity, entry.getKey(), entry.getValue())) {
+          size++;
+        }
+      }
+      buffer.putInt(8, size);
+      buffer.force();
+    }
+
+    /**
+     * Rehashes the table into a new file of {@code grown} slots, which replaces the current one once it is complete.
+     */
+    private void grow(int grown) throws IOException {
+      Path temp = createTemp();
+      try {
+        MappedByteBuffer larger = mapNew(temp, grown);
+        for (int slot = HEADER_LENGTH; slot < HEADER_LENGTH + capacity * SLOT_LENGTH; slot += SLOT_LENGTH) {
+          long key = buffer.getLong(slot);
+          if (key != 0) {
+            insert(larger, grown, key, buffer.getLong(slot + 8));
+          }
+        }
+        larger.putInt(8, size);
+        larger.force();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Every reader goes through this table, so nothing else has the old mapping.
+        MappedBuffers.unmap(buffer);
+        buffer = larger;
+        capacity = grown;
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+
+    private void create(int slots) throws IOException {
+      Path temp = createTemp();
+      try {
+        buffer = mapNew(temp, slots);
+        buffer.force();
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      capacity = slots;
+      size = 0;
+    }
+
+    private Path createTemp() throws IOException {
+      return Files.createTempFile(path.getParent(), path.getFileName() + ".", ".tmp");
+    }
+
+    private void map() throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long length = channel.size();
+        if (length < HEADER_LENGTH) {
+          throw new IOException("Not a fingerprint store: " + path);
+        }
+        // The mapping stays valid after the channel is closed.
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+      }
+      capacity = buffer.getInt(4);
+      size = buffer.getInt(8);
+      if (buffer.getInt(0) != MAGIC || Integer.bitCount(capacity) != 1 || capacity > MAX_CAPACITY
+          || buffer.capacity() != HEADER_LENGTH + (long) capacity * SLOT_LENGTH) {
+        throw new IOException("Not a fingerprint store: " + path);
+      }
+    }
+  }
+
+  private static MappedByteBuffer mapNew(Path file, int slots) throws IOException {
+    try (FileChannel channel = FileChannel.open(
+        file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+    )) {
+      // Mapping past the end extends the file with zeros, which are empty slots.
+      MappedByteBuffer buffer = channel.map(
+          FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + (long) slots * SLOT_LENGTH
+      );
+      buffer.putInt(0, MAGIC).putInt(4, slots).putInt(8, 0);
+      return buffer;
+    }
+  }
+
+  /**
+   * @return Whether the key was new
+   */
+  private static boolean insert(ByteBuffer table, int capacity, long key, long fingerprint) {
+    int slot = find(table, capacity, key);
+    boolean added = table.getLong(slot) == 0;
+    table.putLong(slot, key).putLong(slot + 8, fingerprint);
+    return added;
+  }
+
+  /**
+   * @return The position of the slot holding {@code key}, or of the empty slot where it belongs
+   */
+  private static int find(ByteBuffer table, int capacity, long key) {
+    int mask = capacity - 1;
+    // Keys are hashes already; fold the high bits in so both halves pick the slot.
+    int index = (int) (key ^ key >>> 32) & mask;
+    while (true) {
+      int slot = HEADER_LENGTH + index * SLOT_LENGTH;
+      long stored = table.getLong(slot);
+      if (stored == key || stored == 0) {
+        return slot;
+      }
+      index = (index + 1) & mask;
+    }
+  }
+
+  private static long checksum(ByteBuffer buffer, int offset, int count) {
+    long checksum = JOURNAL_MAGIC;
+    for (int i = offset; i < offset + count * SLOT_LENGTH; i += 8) {
+      checksum = (checksum ^ buffer.getLong(i)) * 0x9E3779B97F4A7C15L;
+    }
+    return checksum;
+  }
+}
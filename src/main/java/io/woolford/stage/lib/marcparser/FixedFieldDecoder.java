@@ -0,0 +1,476 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Decodes the positions of the leader and of the 008, 006 and 007 fixed-length fields into named fields while a
+ * record is being decoded, and passes every part of the record on to another handler.
+ * <p>The result is a map with {@code leader}, {@code 008} and lists {@code 006} and {@code 007}, each holding one
+ * field per defined position, named after MARC 21 in camel case, such as {@code 008/language}. Positions that hold
+ * numbers by definition, such as the record length, are INTEGERs; all others are STRINGs, with their blanks, since
+ * dates may hold {@code u} and blank is a code in its own right. Positions that do not fit in a short field are
+ * left out.</p>
+ * <p>The 008 and 006 positions depend on the type of material, which is taken from leader/06-07 and 006/00 and
+ * added to the leader map as {@code materialType}: {@code BK}, {@code CR}, {@code CF}, {@code MP}, {@code MU},
+ * {@code VM} or {@code MX}. The 007 positions depend on the category of material in 007/00; categories without a
+ * table of their own get their first two positions. Every table is built once, so a record costs one table lookup
+ * per field and one string per position. The 008 and 006 of records other than bibliographic ones are not decoded.
+ * </p>
+ * <p>The decoder has to be given a selector widened with {@link #TAGS}, so the fixed fields are seen even when they
+ * are not selected for output; only the parts the output selector keeps are passed on.</p>
+ * <p>Instances keep state between calls and are not thread safe.</p>
+ */
+public final class FixedFieldDecoder implements MarcRecordHandler {
+
+  /**
+   * Tags the positions are read from, besides the leader.
+   */
+  public static final String[] TAGS = {"006", "007", "008"};
+
+  public static final String MATERIAL_TYPE = "materialType";
+
+  private static final Position[] LEADER = {
+      number("recordLength", 0, 5),
+      code("recordStatus", 5),
+      code("typeOfRecord", 6),
+      code("bibliographicLevel", 7),
+      code("typeOfControl", 8),
+      code("characterCodingScheme", 9),
+      number("indicatorCount", 10, 11),
+      number("subfieldCodeCount", 11, 12),
+      number("baseAddressOfData", 12, 17),
+      code("encodingLevel", 17),
+      code("descriptiveCatalogingForm", 18),
+      code("multipartResourceRecordLevel", 19),
+      number("lengthOfFieldLength", 20, 21),
+      number("lengthOfStartingCharacterPosition", 21, 22),
+      number("lengthOfImplementationDefinedPortion", 22, 23),
+  };
+
+  private static final Position[] COMMON_008_START = {
+      code("dateEnteredOnFile", 0, 6),
+      code("typeOfDate", 6),
+      code("date1", 7, 11),
+      code("date2", 11, 15),
+      code("placeOfPublication", 15, 18),
+  };
+
+  private static final Position[] COMMON_008_END = {
+      code("language", 35, 38),
+      code("modifiedRecord", 38),
+      code("catalogingSource", 39),
+  };
+
+  private static final Position[] CATEGORY_007 = {
+      code("categoryOfMaterial", 0),
+      code("specificMaterialDesignation", 1),
+  };
+
+  private static final Position[] MAP_007 = with(
+      CATEGORY_007,
+      code("color", 3),
+      code("physicalMedium", 4),
+      code("typeOfReproduction", 5),
+      code("productionReproductionDetails", 6),
+      code("positiveNegativeAspect", 7)
+  );
+
+  private static final Position[] ELECTRONIC_RESOURCE_007 = with(
+      CATEGORY_007,
+      code("color", 3),
+      code("dimensions", 4),
+      code("sound", 5),
+      code("imageBitDepth", 6, 9),
+      code("fileFormats", 9),
+      code("qualityAssuranceTargets", 10),
+      code("antecedentSource", 11),
+      code("levelOfCompression", 12),
+      code("reformattingQuality", 13)
+  );
+
+  private static final Position[] MICROFORM_007 = with(
+      CATEGORY_007,
+      code("positiveNegativeAspect", 3),
+      code("dimensions", 4),
+      code("reductionRatioRange", 5),
+      code("reductionRatio", 6, 9),
+      code("color", 9),
+      code("emulsionOnFilm", 10),
+      code("generation", 11),
+      code("baseOfFilm", 12)
+  );
+
+  private static final Position[] MOTION_PICTURE_007 = with(
+      CATEGORY_007,
+      code("color", 3),
+      code("motionPicturePresentationFormat", 4),
+      code("soundOnMedium", 5),
+      code("mediumForSound", 6),
+      code("dimensions", 7),
+      code("configurationOfPlaybackChannels", 8),
+      code("productionElements", 9),
+      code("positiveNegativeAspect", 10),
+      code("generation", 11),
+      code("baseOfFilm", 12),
+      code("refinedCategoriesOfColor", 13),
+      code("kindOfColorStockOrPrint", 14),
+      code("deteriorationStage", 15),
+      code("completeness", 16),
+      code("filmInspectionDate", 17, 23)
+  );
+
+  private static final Position[] SOUND_RECORDING_007 = with(
+      CATEGORY_007,
+      code("speed", 3),
+      code("configurationOfPlaybackChannels", 4),
+      code("grooveWidthPitch", 5),
+      code("dimensions", 6),
+      code("tapeWidth", 7),
+      code("tapeConfiguration", 8),
+      code("kindOfDiscCylinderOrTape", 9),
+      code("kindOfMaterial", 10),
+      code("kindOfCutting", 11),
+      code("specialPlaybackCharacteristics", 12),
+      code("captureAndStorageTechnique", 13)
+  );
+
+  private static final Position[] VIDEORECORDING_007 = with(
+      CATEGORY_007,
+      code("color", 3),
+      code("videorecordingFormat", 4),
+      code("soundOnMedium", 5),
+      code("mediumForSound", 6),
+      code("dimensions", 7),
+      code("configurationOfPlaybackChannels", 8)
+  );
+
+  /**
+   * Types of material, with their 008/18-34 positions numbered as in the 008.
+   */
+  private enum Material {
+    BK(
+        code("illustrations", 18, 22),
+        code("targetAudience", 22),
+        code("formOfItem", 23),
+        code("natureOfContents", 24, 28),
+        code("governmentPublication", 28),
+        code("conferencePublication", 29),
+        code("festschrift", 30),
+        code("index", 31),
+        code("literaryForm", 33),
+        code("biography", 34)
+    ),
+    CR(
+        code("frequency", 18),
+        code("regularity", 19),
+        code("typeOfContinuingResource", 21),
+        code("formOfOriginalItem", 22),
+        code("formOfItem", 23),
+        code("natureOfEntireWork", 24),
+        code("natureOfContents", 25, 28),
+        code("governmentPublication", 28),
+        code("conferencePublication", 29),
+        code("originalAlphabetOrScriptOfTitle", 33),
+        code("entryConvention", 34)
+    ),
+    CF(
+        code("targetAudience", 22),
+        code("formOfItem", 23),
+        code("typeOfComputerFile", 26),
+        code("governmentPublication", 28)
+    ),
+    MP(
+        code("relief", 18, 22),
+        code("projection", 22, 24),
+        code("typeOfCartographicMaterial", 25),
+        code("governmentPublication", 28),
+        code("formOfItem", 29),
+        code("index", 31),
+        code("specialFormatCharacteristics", 33, 35)
+    ),
+    MU(
+        code("formOfComposition", 18, 20),
+        code("formatOfMusic", 20),
+        code("musicParts", 21),
+        code("targetAudience", 22),
+        code("formOfItem", 23),
+        code("accompanyingMatter", 24, 30),
+        code("literaryTextForSoundRecordings", 30, 32),
+        code("transpositionAndArrangement", 33)
+    ),
+    VM(
+        code("runningTime", 18, 21),
+        code("targetAudience", 22),
+        code("governmentPublication", 28),
+        code("formOfItem", 29),
+        code("typeOfVisualMaterial", 33),
+        code("technique", 34)
+    ),
+    MX(
+        code("formOfItem", 23)
+    );
+
+    private final String name;
+    private final Position[] positions008;
+    private final Position[] positions006;
+
+    Material(Position... positions) {
+      name = name().intern();
+      positions008 = with(with(COMMON_008_START, positions), COMMON_008_END);
+      // 006/01-17 repeat 008/18-34 after the form of material in 006/00.
+      positions006 = new Position[positions.length + 1];
+      positions006[0] = code("formOfMaterial", 0);
+      for (int i = 0; i < positions.length; i++) {
+        Position position = positions[i];
+        positions006[i + 1] = new Position(position.name, position.start - 17, position.end - 17, position.number);
+      }
+    }
+  }
+
+  private final MarcRecordHandler delegate;
+  private final FieldSelector selector;
+  private final List<Field> fields006 = new ArrayList<>();
+  private final List<Field> fields007 = new ArrayList<>();
+  private LinkedHashMap<String, Field> leader;
+  private Material material;
+  private Field field008;
+  private boolean forwarding;
+  private Field result;
+
+  /**
+   * @param delegate Receives the parts of the record that {@code selector} keeps
+   * @param selector The fields and subfields to pass on
+   */
+  public FixedFieldDecoder(MarcRecordHandler delegate, FieldSelector selector) {
+    this.delegate = delegate;
+    this.selector = selector;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startRecord(String leader) {
+    this.leader = decode(leader, LEADER);
+    material = leader.length() > 7 ? material(leader.charAt(6), leader.charAt(7)) : null;
+    if (material != null) {
+      this.leader.put(MATERIAL_TYPE, Field.create(material.name));
+    }
+    field008 = null;
+    fields006.clear();
+    fields007.clear();
+    result = null;
+    delegate.startRecord(leader);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void controlField(String tag, String data) {
+    switch (tag) {
+      case "008":
+        if (field008 == null && material != null) {
+          field008 = Field.createListMap(decode(data, material.positions008));
+        }
+        break;
+      case "006":
+        Material form = data.isEmpty() || material == null ? null : material(data.charAt(0), ' ');
+        if (form != null) {
+          fields006.add(Field.createListMap(decode(data, form.positions006)));
+        }
+        break;
+      case "007":
+        fields007.add(Field.createListMap(decode(data, positions007(data))));
+        break;
+      default:
+        break;
+    }
+    if (selector.isSelected(tag)) {
+      delegate.controlField(tag, data);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDataField(String tag, char indicator1, char indicator2) {
+    forwarding = selector.isSelected(tag);
+    if (forwarding) {
+      delegate.startDataField(tag, indicator1, indicator2);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subfield(char code, String data) {
+    if (forwarding) {
+      delegate.subfield(code, data);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDataField() {
+    if (forwarding) {
+      delegate.endDataField();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endRecord() {
+    LinkedHashMap<String, Field> fixed = new LinkedHashMap<>();
+    fixed.put(MarcKeys.LEADER, Field.createListMap(leader));
+    if (field008 != null) {
+      fixed.put("008", field008);
+    }
+    fixed.put("006", Field.create(new ArrayList<>(fields006)));
+    fixed.put("007", Field.create(new ArrayList<>(fields007)));
+    result = Field.createListMap(fixed);
+    delegate.endRecord();
+  }
+
+  /**
+   * @return A LIST_MAP with the decoded positions of the last record that was completed
+   */
+  public Field getFixedFields() {
+    return result;
+  }
+
+  /**
+   * Type of material from leader/06 and leader/07, or from 006/00 with a blank level.
+   *
+   * @return The type of material, or {@code null} for records other than bibliographic ones
+   */
+  private static Material material(char type, char level) {
+    switch (type) {
+      case 'a':
+        return level == 'b' || level == 'i' || level == 's' ? Material.CR : Material.BK;
+      case 't':
+        return Material.BK;
+      case 's':
+        return Material.CR;
+      case 'm':
+        return Material.CF;
+      case 'e':
+      case 'f':
+        return Material.MP;
+      case 'c':
+      case 'd':
+      case 'i':
+      case 'j':
+        return Material.MU;
+      case 'g':
+      case 'k':
+      case 'o':
+      case 'r':
+        return Material.VM;
+      case 'p':
+        return Material.MX;
+      default:
+        return null;
+    }
+  }
+
+  private static Position[] positions007(String data) {
+    switch (data.isEmpty() ? ' ' : data.charAt(0)) {
+      case 'a':
+        return MAP_007;
+      case 'c':
+        return ELECTRONIC_RESOURCE_007;
+      case 'h':
+        return MICROFORM_007;
+      case 'm':
+        return MOTION_PICTURE_007;
+      case 's':
+        return SOUND_RECORDING_007;
+      case 'v':
+        return VIDEORECORDING_007;
+      default:
+        return CATEGORY_007;
+    }
+  }
+
+  private static LinkedHashMap<String, Field> decode(String data, Position[] positions) {
+    LinkedHashMap<String, Field> fields = new LinkedHashMap<>();
+    for (Position position : positions) {
+      if (position.end > data.length()) {
+        break;
+      }
+      if (position.number) {
+        fields.put(position.name, Field.create(Field.Type.INTEGER, parseNumber(data, position.start, position.end)));
+      } else if (position.end - position.start == 1) {
+        fields.put(position.name, Field.create(MarcKeys.character(data.charAt(position.start))));
+      } else {
+        fields.put(position.name, Field.create(data.substring(position.start, position.end)));
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * @return The number in {@code data[start, end)}, or {@code null} if it holds anything but digits
+   */
+  private static Integer parseNumber(String data, int start, int end) {
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      char c = data.charAt(i);
+      if (c < '0' || c > '9') {
+        return null;
+      }
+      value = value * 10 + c - '0';
+    }
+    return value;
+  }
+
+  private static Position code(String name, int position) {
+    return new Position(name, position, position + 1, false);
+  }
+
+  private static Position code(String name, int start, int end) {
+    return new Position(name, start, end, false);
+  }
+
+  private static Position number(String name, int start, int end) {
+    return new Position(name, start, end, true);
+  }
+
+  private static Position[] with(Position[] first, Position... more) {
+    Position[] positions = new Position[first.length + more.length];
+    System.arraycopy(first, 0, positions, 0, first.length);
+    System.arraycopy(more, 0, positions, first.length, more.length);
+    return positions;
+  }
+
+  /**
+   * Characters {@code [start, end)} of a fixed field, in ascending order within a table.
+   */
+  private static final class Position {
+    private final String name;
+    private final int start;
+    private final int end;
+    private final boolean number;
+
+    private Position(String name, int start, int end, boolean number) {
+      this.name = name;
+      this.start = start;
+      this.end = end;
+      this.number = number;
+    }
+  }
+}
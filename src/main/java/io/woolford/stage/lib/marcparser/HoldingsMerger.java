@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.impl.CreateByRef;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attaches MARC holdings records (MFHD) to the bibliographic records they belong to, as a {@link #HOLDINGS} list on
+ * the root of the bibliographic record.
+ * <p>A holdings record is one whose leader/06 is {@code u}, {@code v}, {@code x} or {@code y}; its 004 holds the 001
+ * of its bibliographic record. Records are held in a window of at most {@code window} MARC records, counting the
+ * holdings already attached, and leave it in arrival order: a bibliographic record with the holdings found for it, a
+ * holdings record whose bibliographic record was not found as an orphan. Holdings that arrive before their
+ * bibliographic record are attached as long as both meet within the window, so sorted and nearly sorted exports are
+ * merged with memory bounded by the window. A caller that flushes the window at the end of every batch only merges
+ * records that arrive in the same batch.</p>
+ * <p>Every record added leaves through the {@link Output} passed to {@link #add} or {@link #flush}, exactly once.
+ * Instances are not thread safe.</p>
+ *
+ * @param <T> What the caller keeps with each record, handed back to the output
+ */
+public final class HoldingsMerger<T> {
+
+  public static final String HOLDINGS = "holdings";
+
+  /**
+   * Receives the records leaving the window.
+   */
+  public interface Output<T> {
+
+    /**
+     * @param bib A bibliographic record, or any other record that is not a holdings record
+     * @param root Its root field, with the attached holdings in {@link #HOLDINGS}
+     * @param holdings The number of holdings records attached
+     */
+    void bibliographic(T bib, Field root, int holdings);
+
+    /**
+     * @param holdings A holdings record whose bibliographic record was not found within the window
+     * @param root Its root field
+     * @param parent The 001 of the bibliographic record it references, {@code null} if it has no 004
+     */
+    void orphan(T holdings, Field root, String parent);
+  }
+
+  private final int window;
+  private final ArrayDeque<Held<T>> arrivals = new ArrayDeque<>();
+  private final Map<String, Held<T>> bibs = new HashMap<>();
+  private final Map<String, List<Held<T>>> orphans = new HashMap<>();
+  private int size;
+
+  /**
+   * @param window Maximum number of MARC records held
+   */
+  public HoldingsMerger(int window) {
+    if (window < 1) {
+      throw new IllegalArgumentException("The window must hold at least one record");
+    }
+    this.window = window;
+  }
+
+  /**
+   * @return Whether leader/06 of the ISO 2709 record starting at {@code buf[offset]} marks a holdings record
+   */
+  public static boolean isHoldings(byte[] buf, int offset) {
+    return isHoldingsType((char) (buf[offset + 6] & 0xFF));
+  }
+
+  /**
+   * @return Whether {@code type}, a leader/06 value, marks a holdings record
+   */
+  public static boolean isHoldingsType(char type) {
+    return type == 'u' || type == 'v' || type == 'x' || type == 'y';
+  }
+
+  /**
+   * Adds the ISO 2709 record in {@code buf[offset, offset + length)}, reading its type, 001 and 004 from the leader
+   * and directory.
+   *
+   * @throws MarcFormatException if the leader or directory is malformed
+   */
+  public void add(byte[] buf, int offset, int length, T source, Field root, Output<T> output) {
+    boolean holdings = isHoldings(buf, offset);
+    String key = Iso2709Decoder.controlField(buf, offset, length, holdings ? "004" : "001");
+    add(source, root, holdings, key == null ? null : key.trim(), output);
+  }
+
+  /**
+   * Adds a record to the window, passing on the records it pushes out of the window to {@code output}.
+   *
+   * @param source What to hand back to {@code output} with the record
+   * @param root The root LIST_MAP field of the record
+   * @param holdings Whether the record is a holdings record
+   * @param key The 004 of a holdings record, the 001 of any other record; may be {@code null}
+   * @param output Receives the records leaving the window
+   */
+  public void add(T source, Field root, boolean holdings, String key, Output<T> output) {
+    if (holdings) {
+      Held<T> bib = key == null ? null : bibs.get(key);
+      if (bib != null) {
+        bib.holdings.add(root);
+      } else if (key == null) {
+        // Nothing could ever claim it.
+        output.orphan(source, root, null);
+        return;
+      } else {
+        Held<T> orphan = new Held<>(source, root, key, null);
+        orphans.computeIfAbsent(key, k -> new ArrayList<>()).add(orphan);
+        arrivals.add(orphan);
+      }
+    } else {
+      Held<T> bib = new Held<>(source, root, key, new ArrayList<>());
+      if (key != null) {
+        bibs.put(key, bib);
+        List<Held<T>> early = orphans.remove(key);
+        if (early != null) {
+          for (Held<T> orphan : early) {
+            orphan.attached = true;
+            bib.holdings.add(orphan.root);
+          }
+        }
+      }
+      arrivals.add(bib);
+    }
+    size++;
+    while (size > window) {
+      evict(output);
+    }
+  }
+
+  /**
+   * Passes every record still held to {@code output}, in arrival order, leaving the window empty.
+   */
+  public void flush(Output<T> output) {
+    while (!arrivals.isEmpty()) {
+      evict(output);
+    }
+  }
+
+  /**
+   * Forgets every record held without passing it on.
+   */
+  public void clear() {
+    arrivals.clear();
+    bibs.clear();
+    orphans.clear();
+    size = 0;
+  }
+
+  /**
+   * @return The number of MARC records held, including the holdings attached to held bibliographic records
+   */
+  public int size() {
+    return size;
+  }
+
+  private void evict(Output<T> output) {
+    Held<T> held = arrivals.poll();
+    // Holdings claimed by a later bibliographic record leave with it.
+    while (held != null && held.attached) {
+      held = arrivals.poll();
+    }
+    if (held == null) {
+      return;
+    }
+    if (held.holdings == null) {
+      List<Held<T>> waiting = orphans.get(held.key);
+      waiting.remove(held);
+      if (waiting.isEmpty()) {
+        orphans.remove(held.key);
+      }
+      size--;
+      output.orphan(held.source, held.root, held.key);
+      return;
+    }
+    // A later record with the same 001 replaces the earlier one in the map, but both are passed on.
+    if (held.key != null && bibs.get(held.key) == held) {
+      bibs.remove(held.key);
+    }
+    size -= 1 + held.holdings.size();
+    held.root.getValueAsListMap().put(HOLDINGS, byRef(held.holdings));
+    output.bibliographic(held.source, held.root, held.holdings.size());
+  }
+
+  /**
+   * Wraps the holdings without copying them, as the merger owns them and nothing else refers to them.
+   */
+  private static Field byRef(List<Field> holdings) {
+    try {
+      return CreateByRef.call(() -> Field.create(holdings));
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class Held<T> {
+    private final T source;
+    private final Field root;
+    private final String key;
+    private final List<Field> holdings;
+    private boolean attached;
+
+    private Held(T source, Field root, String key, List<Field> holdings) {
+      this.source = source;
+      this.root = root;
+      this.key = key;
+      this.holdings = holdings;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct 64-bit hashes added, in {@code 2^precision} one-byte registers.
+ * <p>The first {@code precision} bits of a hash pick a register, which keeps the longest run of leading zeros seen in
+ * the remaining bits. The standard error of the estimate is {@code 1.04 / sqrt(2^precision)}; small counts fall back
+ * to linear counting over the empty registers.</p>
+ * <p>Instances are not thread safe.</p>
+ */
+final class HyperLogLog {
+
+  private final int precision;
+  private final byte[] registers;
+
+  /**
+   * @param precision Number of hash bits that pick a register, from 4 to 16
+   */
+  HyperLogLog(int precision) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException("Precision " + precision + " is not between 4 and 16");
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /**
+   * Adds a well mixed 64-bit hash of a value.
+   */
+  void add(long hash) {
+    int register = (int) (hash >>> (64 - precision));
+    // The marker bit bounds the run of zeros when the remaining bits are all zero.
+    byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+    if (rank > registers[register]) {
+      registers[register] = rank;
+    }
+  }
+
+  /**
+   * @return The estimated number of distinct hashes added
+   */
+  long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int empty = 0;
+    for (byte rank : registers) {
+      sum += 1.0 / (1L << rank);
+      if (rank == 0) {
+        empty++;
+      }
+    }
+    double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && empty > 0) {
+      estimate = m * Math.log((double) m / empty);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * Adds the hashes of a sketch of the same precision to this one.
+   */
+  void merge(HyperLogLog other) {
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  void clear() {
+    Arrays.fill(registers, (byte) 0);
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects normalized standard identifiers from a record while it is being decoded, and passes every part of the
+ * record on to another handler.
+ * <ul>
+ *   <li>{@code isbn}: 020 $a as ISBN-13, with qualifiers such as {@code (pbk.)} dropped and ISBN-10s converted.</li>
+ *   <li>{@code issn}: 022 $a as {@code 1234-567X}.</li>
+ *   <li>{@code lccn}: 010 $a normalized the Library of Congress way: no blanks, nothing from a slash on, and the
+ *   serial number after a hyphen padded to six digits.</li>
+ *   <li>{@code oclc}: the digits of 035 $a values with the {@code (OCoLC)} prefix, without {@code ocm}, {@code ocn}
+ *   or {@code on} and leading zeros.</li>
+ * </ul>
+ * <p>Values with a wrong check digit or an unexpected length are skipped, and each list holds a value once. The
+ * decoder has to be given a selector widened with {@link #TAGS}, so identifier fields are seen even when they are
+ * not selected for output; only the parts the output selector keeps are passed on.</p>
+ * <p>Instances keep state between calls and are not thread safe.</p>
+ */
+public final class IdentifierExtractor implements MarcRecordHandler {
+
+  /**
+   * Tags the identifiers are read from.
+   */
+  public static final String[] TAGS = {"010", "020", "022", "035"};
+
+  private static final int NONE = -1;
+  private static final int ISBN = 0;
+  private static final int ISSN = 1;
+  private static final int LCCN = 2;
+  private static final int OCLC = 3;
+  private static final String[] KEYS = {"isbn", "issn", "lccn", "oclc"};
+  private static final String OCLC_PREFIX = "(OCoLC)";
+
+  private final MarcRecordHandler delegate;
+  private final FieldSelector selector;
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final List<String>[] values = new List[KEYS.length];
+  private String tag;
+  private int kind;
+  private boolean forwarding;
+  private Field result;
+
+  /**
+   * @param delegate Receives the parts of the record that {@code selector} keeps
+   * @param selector The fields and subfields to pass on
+   */
+  public IdentifierExtractor(MarcRecordHandler delegate, FieldSelector selector) {
+    this.delegate = delegate;
+    this.selector = selector;
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new ArrayList<>();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startRecord(String leader) {
+    for (List<String> list : values) {
+      list.clear();
+    }
+    result = null;
+    delegate.startRecord(leader);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void controlField(String tag, String data) {
+    if (selector.isSelected(tag)) {
+      delegate.controlField(tag, data);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDataField(String tag, char indicator1, char indicator2) {
+    this.tag = tag;
+    kind = kind(tag);
+    forwarding = selector.isSelected(tag);
+    if (forwarding) {
+      delegate.startDataField(tag, indicator1, indicator2);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subfield(char code, String data) {
+    if (kind != NONE && code == 'a') {
+      add(kind, normalize(kind, data));
+    }
+    if (forwarding && selector.isSelected(tag, code)) {
+      delegate.subfield(code, data);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDataField() {
+    if (forwarding) {
+      delegate.endDataField();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endRecord() {
+    LinkedHashMap<String, Field> ids = new LinkedHashMap<>();
+    for (int i = 0; i < KEYS.length; i++) {
+      List<Field> list = new ArrayList<>(values[i].size());
+      for (String value : values[i]) {
+        list.add(Field.create(value));
+      }
+      ids.put(KEYS[i], Field.create(list));
+    }
+    result = Field.createListMap(ids);
+    delegate.endRecord();
+  }
+
+  /**
+   * @return A LIST_MAP with a LIST of STRINGs per kind of identifier in the last record that was completed
+   */
+  public Field getIdentifiers() {
+    return result;
+  }
+
+  private void add(int kind, String value) {
+    if (value != null && !values[kind].contains(value)) {
+      values[kind].add(value);
+    }
+  }
+
+  private static int kind(String tag) {
+    switch (tag) {
+      case "020":
+        return ISBN;
+      case "022":
+        return ISSN;
+      case "010":
+        return LCCN;
+      case "035":
+        return OCLC;
+      default:
+        return NONE;
+    }
+  }
+
+  private static String normalize(int kind, String value) {
+    switch (kind) {
+      case ISBN:
+        return isbn13(value);
+      case ISSN:
+        return issn(value);
+      case LCCN:
+        return lccn(value);
+      default:
+        return oclc(value);
+    }
+  }
+
+  /**
+   * Reads the ISBN at the start of an 020 $a, ignoring hyphens and stopping at the first blank, so
+   * {@code 0-7868-1615-5 (pbk.)} gives {@code 9780786816156}.
+   *
+   * @return The ISBN-13, or {@code null} if the value does not start with a valid ISBN-10 or ISBN-13
+   */
+  public static String isbn13(String value) {
+    char[] digits = new char[13];
+    int count = identifierChars(value, digits);
+    if (count == 10) {
+      int sum = 0;
+      for (int i = 0; i < 10; i++) {
+        char c = digits[i];
+        if (c == 'X' && i != 9) {
+          return null;
+        }
+        sum += (10 - i) * (c == 'X' ? 10 : c - '0');
+      }
+      if (sum % 11 != 0) {
+        return null;
+      }
+      System.arraycopy(digits, 0, digits, 3, 9);
+      digits[0] = '9';
+      digits[1] = '7';
+      digits[2] = '8';
+      digits[12] = isbn13CheckDigit(digits);
+      return new String(digits);
+    }
+    if (count == 13 && digits[0] == '9' && digits[1] == '7' && (digits[2] == '8' || digits[2] == '9')) {
+      for (char c : digits) {
+        if (c == 'X') {
+          return null;
+        }
+      }
+      return isbn13CheckDigit(digits) == digits[12] ? new String(digits) : null;
+    }
+    return null;
+  }
+
+  /**
+   * Reads the ISSN at the start of a 022 $a.
+   *
+   * @return The ISSN as {@code 1234-567X}, or {@code null} if the value does not start with a valid ISSN
+   */
+  public static String issn(String value) {
+    char[] digits = new char[8];
+    if (identifierChars(value, digits) != 8) {
+      return null;
+    }
+    int sum = 0;
+    for (int i = 0; i < 7; i++) {
+      if (digits[i] == 'X') {
+        return null;
+      }
+      sum += (8 - i) * (digits[i] - '0');
+    }
+    int check = (11 - sum % 11) % 11;
+    if (digits[7] != (check == 10 ? 'X' : (char) ('0' + check))) {
+      return null;
+    }
+    return new String(digits, 0, 4) + '-' + new String(digits, 4, 4);
+  }
+
+  /**
+   * Normalizes an LCCN: {@code "n  79-1164 "} gives {@code n79001164} and {@code "85-2 //r86"} gives
+   * {@code 85000002}.
+   *
+   * @return The normalized LCCN, or {@code null} if nothing is left of it
+   */
+  public static String lccn(String value) {
+    StringBuilder lccn = new StringBuilder(value.length());
+    int hyphen = -1;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '/') {
+        break;
+      } else if (c == '-' && hyphen < 0) {
+        hyphen = lccn.length();
+      } else if (c != ' ') {
+        lccn.append(c);
+      }
+    }
+    if (hyphen >= 0) {
+      boolean digits = true;
+      for (int i = hyphen; i < lccn.length(); i++) {
+        digits &= Character.isDigit(lccn.charAt(i));
+      }
+      while (digits && lccn.length() - hyphen < 6) {
+        lccn.insert(hyphen, '0');
+      }
+    }
+    return lccn.length() == 0 ? null : lccn.toString();
+  }
+
+  /**
+   * Reads an OCLC number from an 035 $a: {@code (OCoLC)ocm00012345} gives {@code 12345}.
+   *
+   * @return The OCLC number, or {@code null} if the value is not one
+   */
+  public static String oclc(String value) {
+    if (!value.startsWith(OCLC_PREFIX)) {
+      return null;
+    }
+    int start = OCLC_PREFIX.length();
+    while (start < value.length() && value.charAt(start) == ' ') {
+      start++;
+    }
+    if (value.startsWith("ocm", start) || value.startsWith("ocn", start)) {
+      start += 3;
+    } else if (value.startsWith("on", start)) {
+      start += 2;
+    }
+    int end = start;
+    while (end < value.length() && value.charAt(end) >= '0' && value.charAt(end) <= '9') {
+      end++;
+    }
+    if (end == start || end != value.trim().length()) {
+      return null;
+    }
+    while (start < end - 1 && value.charAt(start) == '0') {
+      start++;
+    }
+    return value.substring(start, end);
+  }
+
+  /**
+   * Copies the digits and X check characters at the start of {@code value} into {@code chars}, skipping leading
+   * blanks and any hyphens, up to the first other character.
+   *
+   * @return The number of characters found, or {@code chars.length + 1} if there are too many
+   */
+  private static int identifierChars(String value, char[] chars) {
+    int i = 0;
+    while (i < value.length() && value.charAt(i) == ' ') {
+      i++;
+    }
+    int count = 0;
+    for (; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '-') {
+        continue;
+      }
+      if ((c < '0' || c > '9') && c != 'X' && c != 'x') {
+        break;
+      }
+      if (count == chars.length) {
+        return count + 1;
+      }
+      chars[count++] = Character.toUpperCase(c);
+    }
+    return count;
+  }
+
+  private static char isbn13CheckDigit(char[] digits) {
+    int sum = 0;
+    for (int i = 0; i < 12; i++) {
+      sum += (i % 2 == 0 ? 1 : 3) * (digits[i] - '0');
+    }
+    return (char) ('0' + (10 - sum % 10) % 10);
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes ISO 2709 (binary MARC) records straight off a byte array.
+ * <p>The leader and directory are read in place and every field is sliced out of the buffer by the offset and length
+ * the directory gives for it, so no intermediate marc4j objects are built. Character data is UTF-8 when leader/09 is
+ * {@code a} and MARC-8 otherwise, which {@link Marc8Decoder} converts.</p>
+ * <p>Instances keep scratch state between calls and are not thread safe.</p>
+ */
+public final class Iso2709Decoder {
+
+  public static final byte SUBFIELD_DELIMITER = 0x1F;
+  public static final byte FIELD_TERMINATOR = 0x1E;
+  public static final byte RECORD_TERMINATOR = 0x1D;
+
+  public static final int LEADER_LENGTH = 24;
+  /**
+   * The largest record the five digit record length in the leader can describe.
+   */
+  public static final int MAX_RECORD_LENGTH = 99999;
+  static final int DIRECTORY_ENTRY_LENGTH = 12;
+
+  private FieldSelector selector = FieldSelector.ALL;
+  private final Marc8Decoder marc8 = new Marc8Decoder();
+
+  /**
+   * Restricts decoding to the selected fields and subfields. Fields that are not selected are skipped using the
+   * directory alone; their bytes are never decoded.
+   *
+   * @param selector The fields and subfields to decode
+   * @return This decoder
+   */
+  public Iso2709Decoder setFieldSelector(FieldSelector selector) {
+    this.selector = selector;
+    return this;
+  }
+
+  /**
+   * Returns the record length stored in the leader of the record starting at {@code offset}.
+   *
+   * @param buf Buffer holding one or more records
+   * @param offset Start of the record
+   * @param limit End (exclusive) of the valid bytes in {@code buf}
+   * @return The record length, including the record terminator
+   * @throws MarcFormatException if the length is unreadable or runs past {@code limit}
+   */
+  public static int recordLength(byte[] buf, int offset, int limit) {
+    if (limit - offset < LEADER_LENGTH) {
+      throw new MarcFormatException("Truncated leader", offset);
+    }
+    int length = parseNumber(buf, offset, 5);
+    if (length < LEADER_LENGTH + 1) {
+      throw new MarcFormatException("Invalid record length in leader", offset);
+    }
+    if (offset + length > limit) {
+      throw new MarcFormatException("Record length " + length + " runs past the end of the input", offset);
+    }
+    return length;
+  }
+
+  /**
+   * Like {@link #recordLength(byte[], int, int)}, for splitting input: returns {@code -1} instead of throwing when the
+   * leader does not hold a usable record length.
+   */
+  static int declaredLength(byte[] buf, int offset, int limit) {
+    if (limit - offset < LEADER_LENGTH) {
+      return -1;
+    }
+    int length = 0;
+    for (int i = offset; i < offset + 5; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      length = length * 10 + digit;
+    }
+    return length < LEADER_LENGTH + 1 || offset + length > limit ? -1 : length;
+  }
+
+  /**
+   * Decodes the record held in {@code buf[offset, offset + length)} and reports its parts to {@code handler}.
+   *
+   * @param buf Buffer holding the record
+   * @param offset Start of the record
+   * @param length Length of the record, as returned by {@link #recordLength(byte[], int, int)}
+   * @param handler Receives the leader and fields of the record
+   * @throws MarcFormatException if the record is malformed, including when its length differs from the one in its
+   *     leader or it does not end with a record terminator
+   */
+  public void decode(byte[] buf, int offset, int length, MarcRecordHandler handler) {
+    int end = offset + length;
+    if (length < LEADER_LENGTH + 1 || end > buf.length) {
+      throw new MarcFormatException("Truncated record", offset);
+    }
+    int declared = parseNumber(buf, offset, 5);
+    if (declared != length) {
+      throw new MarcFormatException("Record length " + declared + " in leader, but the record is " + length, offset);
+    }
+    if (buf[end - 1] != RECORD_TERMINATOR) {
+      throw new MarcFormatException("Missing record terminator", end - 1);
+    }
+    int baseAddress = parseNumber(buf, offset + 12, 5);
+    int directoryLength = baseAddress - LEADER_LENGTH - 1;
+    if (directoryLength < 0 || directoryLength % DIRECTORY_ENTRY_LENGTH != 0 || offset + baseAddress > end) {
+      throw new MarcFormatException("Invalid base address of data " + baseAddress, offset + 12);
+    }
+    boolean utf8 = isUtf8(buf, offset);
+
+    handler.startRecord(new String(buf, offset, LEADER_LENGTH, StandardCharsets.ISO_8859_1));
+
+    int entries = directoryLength / DIRECTORY_ENTRY_LENGTH;
+    int data = offset + baseAddress;
+    for (int i = 0; i < entries; i++) {
+      int entry = offset + LEADER_LENGTH + i * DIRECTORY_ENTRY_LENGTH;
+      if (!selector.isSelected(buf, entry)) {
+        continue;
+      }
+      int fieldLength = parseNumber(buf, entry + 3, 4);
+      int fieldStart = data + parseNumber(buf, entry + 7, 5);
+      int fieldEnd = fieldStart + fieldLength;
+      if (fieldEnd > end) {
+        throw new MarcFormatException("Directory entry " + i + " points past the end of the record", entry);
+      }
+      // The field terminator is not part of the field data.
+      if (fieldEnd > fieldStart && buf[fieldEnd - 1] == FIELD_TERMINATOR) {
+        fieldEnd--;
+      }
+      String tag = MarcKeys.tag(buf, entry);
+      if (isControlField(buf, entry)) {
+        handler.controlField(tag, string(buf, fieldStart, fieldEnd - fieldStart, utf8));
+      } else {
+        decodeDataField(buf, fieldStart, fieldEnd, tag, utf8, handler);
+      }
+    }
+
+    handler.endRecord();
+  }
+
+  private void decodeDataField(
+      byte[] buf,
+      int start,
+      int end,
+      String tag,
+      boolean utf8,
+      MarcRecordHandler handler
+  ) {
+    if (end - start < 2) {
+      throw new MarcFormatException("Data field " + tag + " is missing its indicators", start);
+    }
+    handler.startDataField(tag, (char) (buf[start] & 0xFF), (char) (buf[start + 1] & 0xFF));
+    int position = start + 2;
+    while (position < end) {
+      if (buf[position] != SUBFIELD_DELIMITER || position + 1 >= end) {
+        position++;
+        continue;
+      }
+      char code = (char) (buf[position + 1] & 0xFF);
+      int valueStart = position + 2;
+      int valueEnd = valueStart;
+      while (valueEnd < end && buf[valueEnd] != SUBFIELD_DELIMITER && buf[valueEnd] != FIELD_TERMINATOR) {
+        valueEnd++;
+      }
+      if (selector.isSelected(tag, code)) {
+        handler.subfield(code, string(buf, valueStart, valueEnd - valueStart, utf8));
+      }
+      position = valueEnd;
+    }
+    handler.endDataField();
+  }
+
+  /**
+   * Reads the first occurrence of a control field using only the leader and directory, without decoding the rest of
+   * the record. Meant for identifiers such as 001, 003 and 005, which are ASCII in both character encodings.
+   *
+   * @param buf Buffer holding the record
+   * @param offset Start of the record
+   * @param length Length of the record
+   * @param tag The control field tag, such as {@code "001"}
+   * @return The field data without its terminator, or {@code null} if the record has no such field
+   * @throws MarcFormatException if the leader or directory is malformed
+   */
+  public static String controlField(byte[] buf, int offset, int length, String tag) {
+    int end = offset + length;
+    if (length < LEADER_LENGTH + 1 || end > buf.length) {
+      throw new MarcFormatException("Truncated record", offset);
+    }
+    int baseAddress = parseNumber(buf, offset + 12, 5);
+    int directoryEnd = offset + baseAddress - 1;
+    if (baseAddress < LEADER_LENGTH + 1 || offset + baseAddress > end) {
+      throw new MarcFormatException("Invalid base address of data " + baseAddress, offset + 12);
+    }
+    for (int entry = offset + LEADER_LENGTH; entry + DIRECTORY_ENTRY_LENGTH <= directoryEnd;
+        entry += DIRECTORY_ENTRY_LENGTH) {
+      if (buf[entry] != tag.charAt(0) || buf[entry + 1] != tag.charAt(1) || buf[entry + 2] != tag.charAt(2)) {
+        continue;
+      }
+      int fieldStart = offset + baseAddress + parseNumber(buf, entry + 7, 5);
+      int fieldEnd = fieldStart + parseNumber(buf, entry + 3, 4);
+      if (fieldEnd > end) {
+        throw new MarcFormatException("Directory entry for " + tag + " points past the end of the record", entry);
+      }
+      if (fieldEnd > fieldStart && buf[fieldEnd - 1] == FIELD_TERMINATOR) {
+        fieldEnd--;
+      }
+      return new String(buf, fieldStart, fieldEnd - fieldStart, StandardCharsets.ISO_8859_1);
+    }
+    return null;
+  }
+
+  /**
+   * @return Whether leader/09 of the record starting at {@code buf[offset]} declares UCS/Unicode, rather than MARC-8
+   */
+  public static boolean isUtf8(byte[] buf, int offset) {
+    return buf[offset + 9] == 'a';
+  }
+
+  private String string(byte[] buf, int offset, int length, boolean utf8) {
+    return utf8 ? new String(buf, offset, length, StandardCharsets.UTF_8) : marc8.decode(buf, offset, length);
+  }
+
+  /**
+   * Control fields are the {@code 00X} tags.
+   */
+  private static boolean isControlField(byte[] buf, int tag) {
+    return buf[tag] == '0' && buf[tag + 1] == '0' && buf[tag + 2] >= '0' && buf[tag + 2] <= '9';
+  }
+
+  static int parseNumber(byte[] buf, int offset, int digits) {
+    int value = 0;
+    for (int i = offset; i < offset + digits; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new MarcFormatException("Expected a digit", i);
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the SDC field tree of a MARC record back to ISO 2709, the reverse of {@link Iso2709Decoder} and
+ * {@link FieldTreeBuilder}.
+ * <p>The root has to be a map holding {@code leader}, a STRING per control field and, per data field tag, a LIST of
+ * maps shaped like {@code MarcParserProcessor.getMapOfDataField()}: {@code indicator1}, {@code indicator2} and a LIST
+ * of STRINGs per subfield code. Single maps and STRINGs in place of one element lists, as in the scalar when single
+ * shape, are accepted too. Other root entries, such as {@code ids}, are skipped. The field tree groups the subfields
+ * of a field by code, so repeated codes that were interleaved in the original record come out grouped.</p>
+ * <p>Fields are written in the order of the root map, which groups the data fields of a tag where the tag first
+ * occurred, so a record round-trips byte for byte only if its fields of one tag were contiguous. The record length
+ * and base address in the leader are computed, leader/09 is set to {@code a} since the data is written as UTF-8, and
+ * the indicator count, subfield code length and entry map are set to their MARC 21 values. The directory and data
+ * are built in buffers that are reused from record to record; the returned array is the only allocation per
+ * record.</p>
+ * <p>Instances are not thread safe.</p>
+ */
+public final class Iso2709Encoder {
+
+  private static final int MAX_RECORD_LENGTH = 99999;
+  private static final int MAX_FIELD_LENGTH = 9999;
+
+  private final ByteSink directory = new ByteSink(1024);
+  private final ByteSink data = new ByteSink(8192);
+
+  /**
+   * Encodes one record.
+   *
+   * @param record The root field of the record
+   * @return The record, from its leader to its record terminator
+   * @throws IllegalArgumentException if the tree does not hold a MARC record or the record is too large for ISO 2709
+   */
+  public byte[] encode(Field record) {
+    if (record == null || !(record.getValue() instanceof Map)) {
+      throw new IllegalArgumentException("Expected a MAP or LIST_MAP holding a MARC record");
+    }
+    Map<String, Field> root = record.getValueAsMap();
+    Field leaderField = root.get(MarcKeys.LEADER);
+    String leader = leaderField == null ? null : leaderField.getValueAsString();
+    if (leader == null || leader.length() != Iso2709Decoder.LEADER_LENGTH) {
+      throw new IllegalArgumentException("Leader must have " + Iso2709Decoder.LEADER_LENGTH + " characters");
+    }
+
+    directory.clear();
+    data.clear();
+    for (Map.Entry<String, Field> entry : root.entrySet()) {
+      String tag = entry.getKey();
+      Field value = entry.getValue();
+      if (tag.length() != 3 || value == null || value.getValue() == null) {
+        continue;
+      }
+      if (isControlTag(tag)) {
+        if (value.getType() == Field.Type.STRING) {
+          int start = data.size();
+          data.writeUtf8(value.getValueAsString());
+          data.write(Iso2709Decoder.FIELD_TERMINATOR);
+          addEntry(tag, start);
+        }
+      } else if (value.getValue() instanceof List) {
+        for (Field dataField : value.getValueAsList()) {
+          if (isDataField(dataField)) {
+            writeDataField(tag, dataField.getValueAsMap());
+          }
+        }
+      } else if (isDataField(value)) {
+        writeDataField(tag, value.getValueAsMap());
+      }
+    }
+
+    int baseAddress = Iso2709Decoder.LEADER_LENGTH + directory.size() + 1;
+    int length = baseAddress + data.size() + 1;
+    if (length > MAX_RECORD_LENGTH) {
+      throw new IllegalArgumentException("Record length " + length + " exceeds " + MAX_RECORD_LENGTH);
+    }
+    byte[] out = new byte[length];
+    writeNumber(out, 0, 5, length);
+    for (int i = 5; i < Iso2709Decoder.LEADER_LENGTH; i++) {
+      out[i] = (byte) leader.charAt(i);
+    }
+    out[9] = 'a';
+    out[10] = '2';
+    out[11] = '2';
+    writeNumber(out, 12, 5, baseAddress);
+    out[20] = '4';
+    out[21] = '5';
+    out[22] = '0';
+    out[23] = '0';
+    directory.copyTo(out, Iso2709Decoder.LEADER_LENGTH);
+    out[baseAddress - 1] = Iso2709Decoder.FIELD_TERMINATOR;
+    data.copyTo(out, baseAddress);
+    out[length - 1] = Iso2709Decoder.RECORD_TERMINATOR;
+    return out;
+  }
+
+  private void writeDataField(String tag, Map<String, Field> dataField) {
+    int start = data.size();
+    data.write(indicator(dataField.get(MarcKeys.INDICATOR1)));
+    data.write(indicator(dataField.get(MarcKeys.INDICATOR2)));
+    for (Map.Entry<String, Field> entry : dataField.entrySet()) {
+      String code = entry.getKey();
+      Field value = entry.getValue();
+      if (code.length() != 1 || value == null || value.getValue() == null) {
+        continue;
+      }
+      if (value.getValue() instanceof List) {
+        for (Field subfield : value.getValueAsList()) {
+          if (subfield.getValue() != null) {
+            writeSubfield(code.charAt(0), subfield.getValueAsString());
+          }
+        }
+      } else {
+        writeSubfield(code.charAt(0), value.getValueAsString());
+      }
+    }
+    data.write(Iso2709Decoder.FIELD_TERMINATOR);
+    addEntry(tag, start);
+  }
+
+  private void writeSubfield(char code, String value) {
+    data.write(Iso2709Decoder.SUBFIELD_DELIMITER);
+    data.write(code);
+    data.writeUtf8(value);
+  }
+
+  private void addEntry(String tag, int start) {
+    int length = data.size() - start;
+    if (length > MAX_FIELD_LENGTH) {
+      throw new IllegalArgumentException("Field " + tag + " is " + length + " bytes long, over " + MAX_FIELD_LENGTH);
+    }
+    directory.writeAscii(tag);
+    directory.writeNumber(length, 4);
+    directory.writeNumber(start, 5);
+  }
+
+  private static char indicator(Field field) {
+    if (field == null || field.getValue() == null) {
+      return ' ';
+    }
+    if (field.getType() == Field.Type.CHAR) {
+      return field.getValueAsChar();
+    }
+    String value = field.getValueAsString();
+    return value.isEmpty() ? ' ' : value.charAt(0);
+  }
+
+  private static boolean isControlTag(String tag) {
+    return tag.charAt(0) == '0' && tag.charAt(1) == '0' && tag.charAt(2) >= '0' && tag.charAt(2) <= '9';
+  }
+
+  /**
+   * A data field is a map with indicators, which sets it apart from other maps that may be added to the root.
+   */
+  private static boolean isDataField(Field field) {
+    return field != null
+        && field.getValue() instanceof Map
+        && field.getValueAsMap().containsKey(MarcKeys.INDICATOR1);
+  }
+
+  private static void writeNumber(byte[] buf, int offset, int digits, int value) {
+    for (int i = offset + digits - 1; i >= offset; i--) {
+      buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads concatenated ISO 2709 records from a stream one record at a time, splitting after every record terminator
+ * as {@link RecordSlices} does for a buffer, including where a leader says a record ends before its terminator.
+ * <p>Only the current record and one read-ahead chunk are held, so a stream of any size is read with memory bounded
+ * by its largest record. The record buffer is reused from record to record and grows as needed, up to
+ * {@link Iso2709Decoder#MAX_RECORD_LENGTH} bytes.</p>
+ * <p>Instances are not thread safe.</p>
+ */
+public final class Iso2709StreamReader {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final InputStream in;
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private int chunkPosition;
+  private int chunkLimit;
+  private byte[] record = new byte[8 * 1024];
+  private int length;
+  // Bytes after the current record in the record buffer, split off by its leader length.
+  private int carry;
+  private long position;
+  private long nextPosition;
+
+  public Iso2709StreamReader(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Reads the next record. Bytes after the last record terminator make a final record unless they are only line
+   * breaks or padding.
+   *
+   * @return Whether there was another record
+   * @throws IOException if the stream could not be read
+   * @throws MarcFormatException if the record runs past {@link Iso2709Decoder#MAX_RECORD_LENGTH} bytes without a
+   *     record terminator; the reader cannot be used after that
+   */
+  public boolean next() throws IOException {
+    position = nextPosition;
+    if (carry > 0) {
+      // They end with the record terminator, or at the end of the stream, so they hold the next record.
+      System.arraycopy(record, length, record, 0, carry);
+      length = carry;
+      carry = 0;
+      return finish() && !RecordSlices.isBlank(record, 0, length);
+    }
+    length = 0;
+    while (true) {
+      if (chunkPosition == chunkLimit && !fill()) {
+        return finish() && !RecordSlices.isBlank(record, 0, length);
+      }
+      int end = chunkPosition;
+      while (end < chunkLimit && chunk[end] != Iso2709Decoder.RECORD_TERMINATOR) {
+        end++;
+      }
+      boolean terminated = end < chunkLimit;
+      if (terminated) {
+        end++;
+      }
+      append(end - chunkPosition);
+      chunkPosition = end;
+      if (terminated) {
+        return finish();
+      }
+    }
+  }
+
+  /**
+   * @return The buffer holding the current record from index 0; it is overwritten by the next call to {@link #next()}
+   */
+  public byte[] buffer() {
+    return record;
+  }
+
+  /**
+   * @return The length of the current record, including its record terminator
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * @return The offset of the current record in the stream
+   */
+  public long position() {
+    return position;
+  }
+
+  /**
+   * Ends the current record, where its leader says it ends if that is before the end of the bytes read.
+   *
+   * @return Whether the record holds any bytes
+   */
+  private boolean finish() {
+    int declared = Iso2709Decoder.declaredLength(record, 0, length);
+    if (declared > 0 && declared < length) {
+      carry = length - declared;
+      length = declared;
+    }
+    nextPosition += length;
+    return length > 0;
+  }
+
+  private boolean fill() throws IOException {
+    int read = in.read(chunk, 0, chunk.length);
+    if (read <= 0) {
+      return false;
+    }
+    chunkPosition = 0;
+    chunkLimit = read;
+    return true;
+  }
+
+  private void append(int count) {
+    if (length + count > record.length) {
+      if (length + count > Iso2709Decoder.MAX_RECORD_LENGTH) {
+        throw new MarcFormatException(
+            "No record terminator within " + Iso2709Decoder.MAX_RECORD_LENGTH + " bytes", position
+        );
+      }
+      record = Arrays.copyOf(
+          record, Math.min(Math.max(record.length * 2, length + count), Iso2709Decoder.MAX_RECORD_LENGTH)
+      );
+    }
+    System.arraycopy(chunk, chunkPosition, record, length, count);
+    length += count;
+  }
+}
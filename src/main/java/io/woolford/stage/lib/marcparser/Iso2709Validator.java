@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.woolford.stage.lib.marcparser.Iso2709Decoder.DIRECTORY_ENTRY_LENGTH;
+import static io.woolford.stage.lib.marcparser.Iso2709Decoder.FIELD_TERMINATOR;
+import static io.woolford.stage.lib.marcparser.Iso2709Decoder.LEADER_LENGTH;
+import static io.woolford.stage.lib.marcparser.Iso2709Decoder.RECORD_TERMINATOR;
+import static io.woolford.stage.lib.marcparser.Iso2709Decoder.SUBFIELD_DELIMITER;
+
+/**
+ * Checks the structure of concatenated ISO 2709 records straight off the bytes, without decoding any field: the
+ * record length in the leader against the bytes up to the record terminator, the base address of data, every
+ * directory entry and the field it points to, field and record terminators, indicators and subfield codes.
+ * <p>Records are split at record terminators, as {@link RecordSlices} does for the parser, or handed over one at a
+ * time by {@link #validateRecord(byte[], int, int, long)} when they are read from a stream. Every violation is
+ * counted, but only the first {@code maxViolations} are kept with their byte offsets; within a record, checking stops
+ * at the first violation that leaves the rest of it unreadable. Nothing is allocated per record unless a violation is
+ * kept.</p>
+ * <p>Instances keep the results for the current input until {@link #reset()} and are not thread safe.</p>
+ */
+public final class Iso2709Validator {
+
+  private final int maxViolations;
+  private final List<Violation> violations = new ArrayList<>();
+  private int records;
+  private int invalidRecords;
+  private int fields;
+  private int violationCount;
+  private int record;
+  private boolean recordValid;
+  private long delta;
+
+  /**
+   * @param maxViolations Maximum number of violations kept by {@link #getViolations()}
+   */
+  public Iso2709Validator(int maxViolations) {
+    this.maxViolations = maxViolations;
+  }
+
+  /**
+   * Checks the records in {@code buf[from, to)}, replacing the results of the previous call.
+   *
+   * @return This validator
+   */
+  public Iso2709Validator validate(byte[] buf, int from, int to) {
+    reset();
+    int start = from;
+    for (int i = from; i < to; i++) {
+      if (buf[i] == RECORD_TERMINATOR) {
+        validateRecord(buf, start, i + 1 - start, start);
+        start = i + 1;
+      }
+    }
+    if (!RecordSlices.isBlank(buf, start, to)) {
+      validateRecord(buf, start, to - start, start);
+    }
+    return this;
+  }
+
+  /**
+   * Clears the results, to start on a new input.
+   *
+   * @return This validator
+   */
+  public Iso2709Validator reset() {
+    violations.clear();
+    records = 0;
+    invalidRecords = 0;
+    fields = 0;
+    violationCount = 0;
+    return this;
+  }
+
+  /**
+   * Checks the next record of the current input, adding to the results.
+   *
+   * @param buf Buffer holding the record
+   * @param offset Start of the record
+   * @param length Length of the record, up to and including its record terminator if it has one
+   * @param position Offset of the record in the input, which violation offsets are relative to
+   */
+  public void validateRecord(byte[] buf, int offset, int length, long position) {
+    delta = position - offset;
+    checkRecord(buf, offset, length);
+  }
+
+  /**
+   * @return The number of records checked
+   */
+  public int getRecordCount() {
+    return records;
+  }
+
+  /**
+   * @return The number of records with at least one violation
+   */
+  public int getInvalidRecordCount() {
+    return invalidRecords;
+  }
+
+  /**
+   * @return The number of directory entries checked
+   */
+  public int getFieldCount() {
+    return fields;
+  }
+
+  /**
+   * @return The number of violations found, including those not kept
+   */
+  public int getViolationCount() {
+    return violationCount;
+  }
+
+  /**
+   * @return The first violations found, in input order
+   */
+  public List<Violation> getViolations() {
+    return violations;
+  }
+
+  private void checkRecord(byte[] buf, int offset, int length) {
+    record = records++;
+    recordValid = true;
+    int end = offset + length;
+    if (buf[end - 1] != RECORD_TERMINATOR) {
+      violation(end - 1, "Missing record terminator");
+    }
+    if (length < LEADER_LENGTH + 1) {
+      violation(offset, "Truncated leader");
+      return;
+    }
+    int declared = number(buf, offset, 5);
+    if (declared < 0) {
+      violation(offset, "Record length in leader is not a number");
+    } else if (declared != length) {
+      if (violations.size() < maxViolations) {
+        violation(offset, "Record length " + declared + " in leader, " + length + " bytes to the record terminator");
+      } else {
+        violation(offset, null);
+      }
+    }
+    if (buf[offset + 10] != '2') {
+      violation(offset + 10, "Indicator count in leader is not 2");
+    }
+    if (buf[offset + 11] != '2') {
+      violation(offset + 11, "Subfield code length in leader is not 2");
+    }
+    if (buf[offset + 20] != '4' || buf[offset + 21] != '5' || buf[offset + 22] != '0') {
+      violation(offset + 20, "Entry map in leader does not start with 450");
+    }
+    int baseAddress = number(buf, offset + 12, 5);
+    if (baseAddress < LEADER_LENGTH + 1 || baseAddress > length
+        || (baseAddress - LEADER_LENGTH - 1) % DIRECTORY_ENTRY_LENGTH != 0) {
+      violation(offset + 12, "Invalid base address of data");
+      return;
+    }
+    int directoryEnd = offset + baseAddress - 1;
+    if (buf[directoryEnd] != FIELD_TERMINATOR) {
+      violation(directoryEnd, "Missing directory terminator");
+    }
+    int data = offset + baseAddress;
+    for (int entry = offset + LEADER_LENGTH; entry < directoryEnd; entry += DIRECTORY_ENTRY_LENGTH) {
+      fields++;
+      validateField(buf, entry, data, end);
+    }
+  }
+
+  private void validateField(byte[] buf, int entry, int data, int end) {
+    if (!isTagChar(buf[entry]) || !isTagChar(buf[entry + 1]) || !isTagChar(buf[entry + 2])) {
+      violation(entry, "Invalid tag in directory entry");
+    }
+    int fieldLength = number(buf, entry + 3, 4);
+    int fieldOffset = number(buf, entry + 7, 5);
+    if (fieldLength < 0 || fieldOffset < 0) {
+      violation(entry + 3, "Field length or starting position in directory entry is not a number");
+      return;
+    }
+    int start = data + fieldOffset;
+    int fieldEnd = start + fieldLength;
+    // The record terminator follows the last field.
+    if (fieldLength == 0 || fieldEnd > end - 1) {
+      violation(entry + 3, "Directory entry points past the end of the record");
+      return;
+    }
+    if (buf[fieldEnd - 1] != FIELD_TERMINATOR) {
+      violation(fieldEnd - 1, "Missing field terminator");
+    }
+    boolean control = buf[entry] == '0' && buf[entry + 1] == '0';
+    int last = fieldEnd - 1;
+    if (control) {
+      for (int i = start; i < last; i++) {
+        if (buf[i] == SUBFIELD_DELIMITER || buf[i] == FIELD_TERMINATOR || buf[i] == RECORD_TERMINATOR) {
+          violation(i, "Delimiter or terminator inside a control field");
+          return;
+        }
+      }
+      return;
+    }
+    if (last - start < 2) {
+      violation(start, "Data field is missing its indicators");
+      return;
+    }
+    if (!isIndicator(buf[start]) || !isIndicator(buf[start + 1])) {
+      violation(start, "Invalid indicator");
+    }
+    if (last > start + 2 && buf[start + 2] != SUBFIELD_DELIMITER) {
+      violation(start + 2, "Data field does not start with a subfield delimiter");
+    }
+    for (int i = start + 2; i < last; i++) {
+      byte b = buf[i];
+      if (b == SUBFIELD_DELIMITER) {
+        if (i + 1 >= last || !isSubfieldCode(buf[i + 1])) {
+          violation(i, "Invalid subfield code");
+        }
+      } else if (b == FIELD_TERMINATOR || b == RECORD_TERMINATOR) {
+        violation(i, "Terminator inside a data field");
+        return;
+      }
+    }
+  }
+
+  /**
+   * Counts a violation and keeps it while fewer than {@code maxViolations} are kept. A {@code null} message is only
+   * counted; callers pass one when building the message would allocate for a violation that is not kept.
+   */
+  private void violation(int offset, String message) {
+    violationCount++;
+    if (recordValid) {
+      recordValid = false;
+      invalidRecords++;
+    }
+    if (message != null && violations.size() < maxViolations) {
+      violations.add(new Violation(record, delta + offset, message));
+    }
+  }
+
+  /**
+   * @return The value of the ASCII digits in {@code buf[offset, offset + digits)}, or -1 if any is not a digit
+   */
+  private static int number(byte[] buf, int offset, int digits) {
+    int value = 0;
+    for (int i = offset; i < offset + digits; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private static boolean isTagChar(byte b) {
+    return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+  }
+
+  /**
+   * MARC 21 indicators are blank, a digit or a lowercase letter.
+   */
+  private static boolean isIndicator(byte b) {
+    return b == ' ' || (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z');
+  }
+
+  /**
+   * MARC 21 subfield codes are a digit or a lowercase letter.
+   */
+  private static boolean isSubfieldCode(byte b) {
+    return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z');
+  }
+
+  /**
+   * A structural problem, by record and byte offset.
+   */
+  public static final class Violation {
+    private final int record;
+    private final long offset;
+    private final String message;
+
+    Violation(int record, long offset, String message) {
+      this.record = record;
+      this.offset = offset;
+      this.message = message;
+    }
+
+    /**
+     * @return The index of the record in the input
+     */
+    public int getRecord() {
+      return record;
+    }
+
+    /**
+     * @return The byte offset of the problem, relative to the start of the input
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    @Override
+    public String toString() {
+      return "Record " + record + " at byte offset " + offset + ": " + message;
+    }
+  }
+}
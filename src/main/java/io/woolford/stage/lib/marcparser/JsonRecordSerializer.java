@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+/**
+ * Writes records as UTF-8 MARC-in-JSON, the layout {@link org.marc4j.MarcJsonReader} reads:
+ * <code><pre>
+ *  {
+ *    "leader":"00714cam a2200205 a 4500",
+ *    "fields":[
+ *      {"001":"12883376"},
+ *      {"245":{"ind1":"1","ind2":"0","subfields":[{"a":"Summerland /"},{"c":"Michael Chabon."}]}}
+ *    ]
+ *  }
+ *  </pre></code>
+ * <p>Fields keep their record order, so every part of the record is written the moment it is decoded.</p>
+ */
+public final class JsonRecordSerializer extends RecordSerializer {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final ByteSink out = new ByteSink(4096);
+  private boolean firstField;
+  private boolean firstSubfield;
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeLeader(String leader) {
+    out.clear();
+    out.writeAscii("{\"leader\":");
+    writeString(leader);
+    out.writeAscii(",\"fields\":[");
+    firstField = true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeControlField(String tag, String data) {
+    startField(tag);
+    writeString(data);
+    out.write('}');
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeDataFieldStart(String tag, char indicator1, char indicator2) {
+    startField(tag);
+    out.writeAscii("{\"ind1\":");
+    writeString(String.valueOf(indicator1));
+    out.writeAscii(",\"ind2\":");
+    writeString(String.valueOf(indicator2));
+    out.writeAscii(",\"subfields\":[");
+    firstSubfield = true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeSubfield(char code, String data) {
+    if (!firstSubfield) {
+      out.write(',');
+    }
+    firstSubfield = false;
+    out.write('{');
+    writeString(MarcKeys.subfieldKey(code));
+    out.write(':');
+    writeString(data);
+    out.write('}');
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void writeDataFieldEnd() {
+    out.writeAscii("]}}");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected byte[] finish() {
+    out.writeAscii("]}");
+    return out.toByteArray();
+  }
+
+  private void startField(String tag) {
+    if (!firstField) {
+      out.write(',');
+    }
+    firstField = false;
+    out.write('{');
+    writeString(tag);
+    out.write(':');
+  }
+
+  /**
+   * Writes {@code s} as a JSON string, escaping quotes, backslashes and control characters.
+   */
+  private void writeString(String s) {
+    out.write('"');
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        i = out.writeUtf8(s, i);
+      } else if (c == '"' || c == '\\') {
+        out.write('\\');
+        out.write(c);
+      } else if (c < 0x20) {
+        out.writeAscii("\\u00");
+        out.write(HEX[c >> 4]);
+        out.write(HEX[c & 0xF]);
+      } else {
+        out.write(c);
+      }
+    }
+    out.write('"');
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+
+/**
+ * Feeds records that marc4j has already parsed to a {@link MarcRecordHandler}, so they are mapped by the same code as
+ * records from the native decoders.
+ */
+public final class Marc4jRecords {
+
+  private Marc4jRecords() {
+  }
+
+  /**
+   * Reports the leader and the selected fields and subfields of {@code record} to {@code handler}.
+   *
+   * @param record The marc4j record
+   * @param selector The fields and subfields to report
+   * @param handler Receives the parts of the record
+   */
+  public static void replay(Record record, FieldSelector selector, MarcRecordHandler handler) {
+    handler.startRecord(record.getLeader().marshal());
+    for (ControlField controlField : record.getControlFields()) {
+      if (selector.isSelected(controlField.getTag())) {
+        handler.controlField(controlField.getTag(), controlField.getData());
+      }
+    }
+    for (DataField dataField : record.getDataFields()) {
+      String tag = dataField.getTag();
+      if (!selector.isSelected(tag)) {
+        continue;
+      }
+      handler.startDataField(tag, dataField.getIndicator1(), dataField.getIndicator2());
+      for (Subfield subfield : dataField.getSubfields()) {
+        if (selector.isSelected(tag, subfield.getCode())) {
+          handler.subfield(subfield.getCode(), subfield.getData());
+        }
+      }
+      handler.endDataField();
+    }
+    handler.endRecord();
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.marc4j.converter.impl.CodeTableGenerated;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Converts MARC-8 field data to Unicode.
+ * <p>The single byte character sets are unpacked from marc4j's code tables once, into arrays indexed by the final
+ * byte of their escape sequence and the low seven bits of the character, so converting a character is two array
+ * reads. East Asian (EACC) characters are kept in an open addressing table that is only built the first time a record
+ * designates that set.</p>
+ * <p>Strings start in Basic Latin (G0) and ANSEL (G1) and follow the escape sequences that designate other sets.
+ * Combining marks, which MARC-8 puts before their base character, are emitted after it as Unicode expects. Data
+ * without escapes or bytes above 0x7F is plain ASCII and is copied as is.</p>
+ * <p>Instances keep a scratch buffer and are not thread safe.</p>
+ */
+public final class Marc8Decoder {
+
+  private static final byte ESC = 0x1B;
+
+  static final int BASIC_LATIN = 0x42;
+  static final int ANSEL = 0x45;
+  static final int EACC = 0x31;
+
+  private static final int[] SINGLE_BYTE_SETS = {
+      BASIC_LATIN, ANSEL, 0x32, 0x33, 0x34, 0x4E, 0x51, 0x53, 0x62, 0x67, 0x70
+  };
+
+  private static final char[][] CHARS = new char[128][];
+  private static final boolean[][] COMBINING = new boolean[128][];
+
+  static {
+    CodeTableGenerated table = new CodeTableGenerated();
+    for (int set : SINGLE_BYTE_SETS) {
+      char[] chars = new char[128];
+      boolean[] combining = new boolean[128];
+      for (int c = 0x20; c < 0x80; c++) {
+        chars[c] = table.getChar(c, set);
+        combining[c] = table.isCombining(c, set, set) || table.isCombining(c | 0x80, set, set);
+      }
+      CHARS[set] = chars;
+      COMBINING[set] = combining;
+    }
+  }
+
+  private char[] out = new char[256];
+  private char[] pending = new char[8];
+
+  // Result of the last successful designate() call.
+  private int designated;
+  private boolean designatedG1;
+
+  /**
+   * Converts {@code buf[offset, offset + length)} from MARC-8.
+   *
+   * @return The Unicode string
+   */
+  public String decode(byte[] buf, int offset, int length) {
+    int end = offset + length;
+    if (isAscii(buf, offset, end)) {
+      return new String(buf, offset, length, StandardCharsets.ISO_8859_1);
+    }
+    if (out.length < length) {
+      out = new char[Math.max(length, out.length * 2)];
+    }
+
+    int g0 = BASIC_LATIN;
+    int g1 = ANSEL;
+    int size = 0;
+    int pendingCount = 0;
+    int i = offset;
+    while (i < end) {
+      int b = buf[i] & 0xFF;
+      if (b == ESC) {
+        int next = designate(buf, i, end);
+        if (next > 0) {
+          int set = designated;
+          if (designatedG1) {
+            g1 = set;
+          } else {
+            g0 = set;
+          }
+          i = next;
+          continue;
+        }
+      }
+
+      char c;
+      boolean combining = false;
+      if (b < 0x21 || b == 0x7F) {
+        c = (char) b;
+        i++;
+      } else if (b >= 0x80 && b <= 0xA0) {
+        c = controlChar(b);
+        i++;
+      } else {
+        int set = b < 0x80 ? g0 : g1;
+        if (set == EACC) {
+          if (i + 3 > end) {
+            c = '\uFFFD';
+            i = end;
+          } else {
+            c = Eacc.get(((buf[i] & 0x7F) << 16) | ((buf[i + 1] & 0x7F) << 8) | (buf[i + 2] & 0x7F));
+            i += 3;
+          }
+        } else {
+          char[] chars = CHARS[set];
+          c = chars != null ? chars[b & 0x7F] : 0;
+          combining = chars != null && COMBINING[set][b & 0x7F];
+          i++;
+        }
+        if (c == 0) {
+          c = '\uFFFD';
+        }
+      }
+
+      if (combining) {
+        if (pendingCount == pending.length) {
+          pending = Arrays.copyOf(pending, pendingCount * 2);
+        }
+        pending[pendingCount++] = c;
+        continue;
+      }
+      // Every byte decodes to at most one char, so out never needs more than length chars.
+      out[size++] = c;
+      for (int p = 0; p < pendingCount; p++) {
+        out[size++] = pending[p];
+      }
+      pendingCount = 0;
+    }
+    for (int p = 0; p < pendingCount; p++) {
+      out[size++] = pending[p];
+    }
+    return new String(out, 0, size);
+  }
+
+  /**
+   * Reads the escape sequence at {@code buf[i]}.
+   *
+   * @return The index after the sequence, or -1 if it does not designate a known character set
+   */
+  private int designate(byte[] buf, int i, int end) {
+    if (i + 1 >= end) {
+      return -1;
+    }
+    int b1 = buf[i + 1];
+    // Technique 1: ESC g, ESC b, ESC p put Greek symbols, subscripts or superscripts in G0; ESC s restores ASCII.
+    if (b1 == 0x67 || b1 == 0x62 || b1 == 0x70 || b1 == 0x73) {
+      designated = b1 == 0x73 ? BASIC_LATIN : b1;
+      designatedG1 = false;
+      return i + 2;
+    }
+    int position = i + 1;
+    boolean multiByte = false;
+    if (b1 == '$') {
+      multiByte = true;
+      position++;
+    }
+    boolean g1 = false;
+    if (position < end) {
+      int intermediate = buf[position];
+      if (intermediate == '(' || intermediate == ',') {
+        position++;
+      } else if (intermediate == ')' || intermediate == '-') {
+        g1 = true;
+        position++;
+      } else if (!multiByte) {
+        return -1;
+      }
+    }
+    // ANSEL is registered as "!E".
+    if (position < end && buf[position] == '!') {
+      position++;
+    }
+    if (position >= end) {
+      return -1;
+    }
+    int set = buf[position];
+    if (set < 0 || (set == EACC) != multiByte || (set != EACC && CHARS[set] == null)) {
+      return -1;
+    }
+    designated = set;
+    designatedG1 = g1;
+    return position + 1;
+  }
+
+  /**
+   * ANSEL assigns a few C1 controls: non-sort markers and zero width (non-)joiners.
+   */
+  private static char controlChar(int b) {
+    switch (b) {
+      case 0x88:
+        return '\u0098';
+      case 0x89:
+        return '\u009C';
+      case 0x8D:
+        return '\u200D';
+      case 0x8E:
+        return '\u200C';
+      case 0xA0:
+        return ' ';
+      default:
+        return (char) b;
+    }
+  }
+
+  private static boolean isAscii(byte[] buf, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] < 0 || buf[i] == ESC) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The EACC table, built from marc4j's code table on first use.
+   */
+  private static final class Eacc {
+    private static final int CAPACITY = 1 << 15;
+    private static final int[] KEYS = new int[CAPACITY];
+    private static final char[] VALUES = new char[CAPACITY];
+
+    static {
+      CodeTableGenerated table = new CodeTableGenerated();
+      for (int b1 = 0x21; b1 < 0x7F; b1++) {
+        for (int b2 = 0x21; b2 < 0x7F; b2++) {
+          for (int b3 = 0x21; b3 < 0x7F; b3++) {
+            int code = (b1 << 16) | (b2 << 8) | b3;
+            char c = table.getChar(code, EACC);
+            if (c != 0) {
+              int slot = slot(code);
+              while (KEYS[slot] != 0) {
+                slot = (slot + 1) & (CAPACITY - 1);
+              }
+              KEYS[slot] = code;
+              VALUES[slot] = c;
+            }
+          }
+        }
+      }
+    }
+
+    static char get(int code) {
+      int slot = slot(code);
+      while (KEYS[slot] != 0) {
+        if (KEYS[slot] == code) {
+          return VALUES[slot];
+        }
+        slot = (slot + 1) & (CAPACITY - 1);
+      }
+      return 0;
+    }
+
+    private static int slot(int code) {
+      return (code * 0x9E3779B9 >>> 17) & (CAPACITY - 1);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+/**
+ * Thrown when bytes handed to a decoder are not a well-formed ISO 2709 record.
+ */
+public class MarcFormatException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long offset;
+
+  public MarcFormatException(String message, long offset) {
+    super(message + " at byte offset " + offset);
+    this.offset = offset;
+  }
+
+  /**
+   * @return The byte offset, relative to the start of the input, where the problem was found
+   */
+  public long getOffset() {
+    return offset;
+  }
+}
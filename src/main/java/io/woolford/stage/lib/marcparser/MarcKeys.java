@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Precomputed, interned strings and fields used while mapping MARC records, so the hot path does not build the same
+ * tag and subfield keys over and over.
+ */
+public final class MarcKeys {
+
+  public static final String LEADER = "leader";
+  public static final String INDICATOR1 = "indicator1";
+  public static final String INDICATOR2 = "indicator2";
+  public static final String CONTROL_NUMBER = "001";
+
+  private static final String[] TAGS = new String[1000];
+  private static final String[] CODES = new String[128];
+  private static final Field[] INDICATORS = new Field[128];
+  private static final String[] FLAT_INDICATORS = new String[1000];
+  // Rows are filled on first use; racing threads at worst build equal strings twice.
+  private static final String[][] FLAT_KEYS = new String[1000][];
+
+  static {
+    for (int tag = 0; tag < TAGS.length; tag++) {
+      TAGS[tag] = String.format("%03d", tag).intern();
+      FLAT_INDICATORS[tag] = TAGS[tag] + "_ind";
+    }
+    for (char code = 0; code < CODES.length; code++) {
+      CODES[code] = Character.toString(code).intern();
+    }
+    INDICATORS[' '] = Field.create(' ');
+    for (char digit = '0'; digit <= '9'; digit++) {
+      INDICATORS[digit] = Field.create(digit);
+    }
+  }
+
+  private MarcKeys() {
+  }
+
+  /**
+   * @return The tag whose three bytes start at {@code buf[offset]}, taken from the interned table for numeric tags
+   */
+  public static String tag(byte[] buf, int offset) {
+    int tag = numericTag(buf, offset);
+    return tag >= 0 ? TAGS[tag] : new String(buf, offset, 3, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * @return The interned three digit tag for {@code tag}, which must be between 0 and 999
+   */
+  public static String tag(int tag) {
+    return TAGS[tag];
+  }
+
+  /**
+   * @return The map key for subfield {@code code}
+   */
+  public static String subfieldKey(char code) {
+    return code < CODES.length ? CODES[code] : Character.toString(code);
+  }
+
+  /**
+   * @return {@code c} as a string, interned for ASCII, for one-character codes such as those of the fixed fields
+   */
+  public static String character(char c) {
+    return c < CODES.length ? CODES[c] : Character.toString(c);
+  }
+
+  /**
+   * @return The root key of subfield {@code code} of numeric tag {@code tag} in the flat output shape, e.g.
+   * {@code 245_a}
+   */
+  public static String flatKey(int tag, char code) {
+    if (code >= CODES.length) {
+      return TAGS[tag] + '_' + code;
+    }
+    String[] row = FLAT_KEYS[tag];
+    if (row == null) {
+      row = new String[CODES.length];
+      FLAT_KEYS[tag] = row;
+    }
+    String key = row[code];
+    if (key == null) {
+      key = TAGS[tag] + '_' + code;
+      row[code] = key;
+    }
+    return key;
+  }
+
+  /**
+   * @return The root key of the merged indicators of numeric tag {@code tag} in the flat output shape, e.g.
+   * {@code 245_ind}
+   */
+  public static String flatIndicatorsKey(int tag) {
+    return FLAT_INDICATORS[tag];
+  }
+
+  /**
+   * Returns the CHAR field for an indicator value. Blank and digit indicators, which are nearly all of them, share one
+   * field per value; those shared fields must not be given attributes.
+   *
+   * @param indicator The indicator value
+   * @return The field for the indicator
+   */
+  public static Field indicator(char indicator) {
+    Field field = indicator < INDICATORS.length ? INDICATORS[indicator] : null;
+    return field != null ? field : Field.create(indicator);
+  }
+
+  /**
+   * @return The value of a three digit tag starting at {@code buf[offset]}, or -1 if the tag is not numeric
+   */
+  public static int numericTag(byte[] buf, int offset) {
+    int d0 = buf[offset] - '0';
+    int d1 = buf[offset + 1] - '0';
+    int d2 = buf[offset + 2] - '0';
+    if ((d0 | d1 | d2) < 0 || d0 > 9 || d1 > 9 || d2 > 9) {
+      return -1;
+    }
+    return d0 * 100 + d1 * 10 + d2;
+  }
+
+  /**
+   * @return The value of a three digit tag, or -1 if the tag is not numeric
+   */
+  public static int numericTag(String tag) {
+    if (tag.length() != 3) {
+      return -1;
+    }
+    int d0 = tag.charAt(0) - '0';
+    int d1 = tag.charAt(1) - '0';
+    int d2 = tag.charAt(2) - '0';
+    if ((d0 | d1 | d2) < 0 || d0 > 9 || d1 > 9 || d2 > 9) {
+      return -1;
+    }
+    return d0 * 100 + d1 * 10 + d2;
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+/**
+ * Receives the parts of a MARC record, in record order, as a decoder walks it.
+ * <p>For every record the calls are {@link #startRecord(String)}, any number of {@link #controlField(String, String)}
+ * and {@link #startDataField(String, char, char)}/{@link #subfield(char, String)}/{@link #endDataField()} groups,
+ * then {@link #endRecord()}.</p>
+ */
+public interface MarcRecordHandler {
+
+  void startRecord(String leader);
+
+  void controlField(String tag, String data);
+
+  void startDataField(String tag, char indicator1, char indicator2);
+
+  void subfield(char code, String data);
+
+  void endDataField();
+
+  void endRecord();
+}
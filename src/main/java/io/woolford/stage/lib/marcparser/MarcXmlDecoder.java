@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.InputStream;
+
+/**
+ * Decodes MARCXML (MARC 21 slim) records one at a time with a StAX reader.
+ * <p>Each call to {@link #decodeNext(MarcRecordHandler)} reads up to the next closing {@code record} element, so a
+ * large {@code collection} is never held in memory as a whole. Elements are matched on their local name, with or
+ * without the MARC 21 slim namespace or a prefix. DTDs and external entities are not processed.</p>
+ * <p>The decoder must be closed to release the StAX reader; the input stream stays open, as it belongs to the caller.
+ * Instances are not thread safe.</p>
+ */
+public final class MarcXmlDecoder implements Closeable {
+
+  private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+  static {
+    FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private final XMLStreamReader reader;
+  private FieldSelector selector = FieldSelector.ALL;
+
+  /**
+   * @param in MARCXML holding a single {@code record} or a {@code collection} of them
+   * @throws MarcFormatException if the XML prolog cannot be read
+   */
+  public MarcXmlDecoder(InputStream in) {
+    try {
+      reader = FACTORY.createXMLStreamReader(in);
+    } catch (XMLStreamException e) {
+      throw formatException(e);
+    }
+  }
+
+  /**
+   * Restricts decoding to the selected fields and subfields.
+   *
+   * @param selector The fields and subfields to decode
+   * @return This decoder
+   */
+  public MarcXmlDecoder setFieldSelector(FieldSelector selector) {
+    this.selector = selector;
+    return this;
+  }
+
+  /**
+   * Reads the next record and reports its parts to {@code handler}.
+   *
+   * @param handler Receives the leader and fields of the record
+   * @return {@code false} if there are no more records
+   * @throws MarcFormatException if the XML is malformed
+   */
+  public boolean decodeNext(MarcRecordHandler handler) {
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT && "record".equals(reader.getLocalName())) {
+          decodeRecord(handler);
+          return true;
+        }
+      }
+      return false;
+    } catch (XMLStreamException e) {
+      throw formatException(e);
+    }
+  }
+
+  private void decodeRecord(MarcRecordHandler handler) throws XMLStreamException {
+    String leader = "";
+    boolean started = false;
+    String dataFieldTag = null;
+    boolean dataFieldSelected = false;
+
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        String name = reader.getLocalName();
+        if ("record".equals(name)) {
+          break;
+        } else if ("datafield".equals(name) && dataFieldSelected) {
+          handler.endDataField();
+          dataFieldSelected = false;
+        }
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      switch (reader.getLocalName()) {
+        case "leader":
+          leader = reader.getElementText();
+          break;
+        case "controlfield":
+          if (!started) {
+            handler.startRecord(leader);
+            started = true;
+          }
+          String tag = attribute("tag");
+          String data = reader.getElementText();
+          if (selector.isSelected(tag)) {
+            handler.controlField(tag, data);
+          }
+          break;
+        case "datafield":
+          if (!started) {
+            handler.startRecord(leader);
+            started = true;
+          }
+          dataFieldTag = attribute("tag");
+          dataFieldSelected = selector.isSelected(dataFieldTag);
+          if (dataFieldSelected) {
+            handler.startDataField(dataFieldTag, indicator("ind1"), indicator("ind2"));
+          }
+          break;
+        case "subfield":
+          String code = attribute("code");
+          String value = reader.getElementText();
+          if (dataFieldSelected && !code.isEmpty() && selector.isSelected(dataFieldTag, code.charAt(0))) {
+            handler.subfield(code.charAt(0), value);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    if (!started) {
+      handler.startRecord(leader);
+    }
+    handler.endRecord();
+  }
+
+  private String attribute(String name) {
+    String value = reader.getAttributeValue(null, name);
+    return value != null ? value : "";
+  }
+
+  /**
+   * Missing or empty indicators are read as blanks, the same way marc4j reads them.
+   */
+  private char indicator(String name) {
+    String value = reader.getAttributeValue(null, name);
+    return value == null || value.isEmpty() ? ' ' : value.charAt(0);
+  }
+
+  /**
+   * Releases the StAX reader.
+   *
+   * @throws MarcFormatException if the reader fails to close
+   */
+  @Override
+  public void close() {
+    try {
+      reader.close();
+    } catch (XMLStreamException e) {
+      throw formatException(e);
+    }
+  }
+
+  private MarcFormatException formatException(XMLStreamException e) {
+    long offset = e.getLocation() != null ? e.getLocation().getCharacterOffset() : -1;
+    return new MarcFormatException("Malformed MARCXML: " + e.getMessage(), offset);
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.GenerateResourceBundle;
+import com.streamsets.pipeline.api.Label;
+
+@GenerateResourceBundle
+public enum OutputShape implements Label {
+  VERBOSE("Verbose"),
+  SCALAR_WHEN_SINGLE("Scalar when single"),
+  FLAT("Flat (245_a)"),
+  ;
+
+  private final String label;
+
+  OutputShape(String label) {
+    this.label = label;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getLabel() {
+    return label;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+/**
+ * Hashes an ISO 2709 record for change detection straight from its bytes, without decoding it: {@link #getKey()}
+ * identifies the record by its 001 and {@link #getFingerprint()} covers its content.
+ * <p>The fingerprint covers the leader, except the record length and base address, and the tag and bytes of every
+ * field but the 005, in directory order. The date and time of latest transaction is left out, along with the
+ * directory offsets and lengths it can shift, so a record that was only exported again hashes the same.</p>
+ * <p>Both values are 64-bit MurmurHash64A hashes, with different seeds. Instances keep the values of the last record
+ * and are not thread safe.</p>
+ */
+public final class RecordFingerprint {
+
+  private static final long M = 0xC6A4A7935BD1E995L;
+  private static final int R = 47;
+  private static final long KEY_SEED = 0x2F0A1C3B5D7E9F01L;
+  private static final long FINGERPRINT_SEED = 0x51ED270B93A4C86DL;
+
+  private long key;
+  private long fingerprint;
+
+  /**
+   * Hashes the record in {@code buf[offset, offset + length)}.
+   *
+   * @return Whether the record has a 001. Without one it has no key, and neither value is set.
+   * @throws MarcFormatException if the leader or directory is malformed
+   */
+  public boolean compute(byte[] buf, int offset, int length) {
+    int end = offset + length;
+    if (length < Iso2709Decoder.LEADER_LENGTH + 1 || end > buf.length) {
+      throw new MarcFormatException("Truncated record", offset);
+    }
+    int baseAddress = Iso2709Decoder.parseNumber(buf, offset + 12, 5);
+    if (baseAddress < Iso2709Decoder.LEADER_LENGTH + 1 || offset + baseAddress > end) {
+      throw new MarcFormatException("Invalid base address of data " + baseAddress, offset + 12);
+    }
+    int directoryEnd = offset + baseAddress - 1;
+    boolean keyed = false;
+    long hash = hash(buf, offset + 5, 7, FINGERPRINT_SEED);
+    hash = hash(buf, offset + 17, 7, hash);
+    int entryLength = Iso2709Decoder.DIRECTORY_ENTRY_LENGTH;
+    for (int entry = offset + Iso2709Decoder.LEADER_LENGTH; entry + entryLength <= directoryEnd; entry += entryLength) {
+      boolean control = buf[entry] == '0' && buf[entry + 1] == '0';
+      if (control && buf[entry + 2] == '5') {
+        continue;
+      }
+      int fieldLength = Iso2709Decoder.parseNumber(buf, entry + 3, 4);
+      int fieldStart = offset + baseAddress + Iso2709Decoder.parseNumber(buf, entry + 7, 5);
+      if (fieldStart + fieldLength > end) {
+        throw new MarcFormatException("Directory entry points past the end of the record", entry);
+      }
+      if (control && buf[entry + 2] == '1' && !keyed) {
+        int keyLength = fieldLength;
+        if (keyLength > 0 && buf[fieldStart + keyLength - 1] == Iso2709Decoder.FIELD_TERMINATOR) {
+          keyLength--;
+        }
+        key = hash(buf, fieldStart, keyLength, KEY_SEED);
+        // 0 is kept free to mean no key.
+        if (key == 0) {
+          key = 1;
+        }
+        keyed = true;
+      }
+      hash = hash(buf, entry, 3, hash);
+      hash = hash(buf, fieldStart, fieldLength, hash);
+    }
+    fingerprint = hash;
+    return keyed;
+  }
+
+  /**
+   * @return The hash of the 001 of the last record, never 0
+   */
+  public long getKey() {
+    return key;
+  }
+
+  /**
+   * @return The content hash of the last record
+   */
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * MurmurHash64A of {@code buf[offset, offset + length)}, reading eight bytes at a time, little-endian.
+   */
+  static long hash(byte[] buf, int offset, int length, long seed) {
+    long h = seed ^ (length * M);
+    int end = offset + (length & ~7);
+    for (int i = offset; i < end; i += 8) {
+      long k = (buf[i] & 0xFFL)
+          | (buf[i + 1] & 0xFFL) << 8
+          | (buf[i + 2] & 0xFFL) << 16
+          | (buf[i + 3] & 0xFFL) << 24
+          | (buf[i + 4] & 0xFFL) << 32
+          | (buf[i + 5] & 0xFFL) << 40
+          | (buf[i + 6] & 0xFFL) << 48
+          | (buf[i + 7] & 0xFFL) << 56;
+      k *= M;
+      k ^= k >>> R;
+      k *= M;
+      h ^= k;
+      h *= M;
+    }
+    int tail = length & 7;
+    if (tail > 0) {
+      for (int i = tail - 1; i >= 0; i--) {
+        h ^= (buf[end + i] & 0xFFL) << (8 * i);
+      }
+      h *= M;
+    }
+    h ^= h >>> R;
+    h *= M;
+    h ^= h >>> R;
+    return h;
+  }
+}
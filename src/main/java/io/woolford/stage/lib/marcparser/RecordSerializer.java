@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+/**
+ * Writes MARC records straight to bytes as a decoder reports them, for output that skips building a
+ * {@link com.streamsets.pipeline.api.Field} tree. The buffers are reused from record to record, so only the final copy
+ * returned by {@link #getBytes()} is allocated per record.
+ * <p>Instances are not thread safe.</p>
+ */
+public abstract class RecordSerializer implements MarcRecordHandler {
+
+  private byte[] result;
+  private String controlNumber;
+  private int controlFieldCount;
+  private int dataFieldCount;
+  private int subfieldCount;
+  private int resultFieldCount;
+  private int resultSubfieldCount;
+
+  /** {@inheritDoc} */
+  @Override
+  public void startRecord(String leader) {
+    result = null;
+    controlNumber = null;
+    controlFieldCount = 0;
+    dataFieldCount = 0;
+    subfieldCount = 0;
+    resultFieldCount = 0;
+    resultSubfieldCount = 0;
+    writeLeader(leader);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void controlField(String tag, String data) {
+    if (controlNumber == null && MarcKeys.CONTROL_NUMBER.equals(tag)) {
+      controlNumber = data;
+    }
+    controlFieldCount++;
+    writeControlField(tag, data);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDataField(String tag, char indicator1, char indicator2) {
+    dataFieldCount++;
+    writeDataFieldStart(tag, indicator1, indicator2);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subfield(char code, String data) {
+    subfieldCount++;
+    writeSubfield(code, data);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDataField() {
+    writeDataFieldEnd();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endRecord() {
+    result = finish();
+    resultFieldCount = controlFieldCount + dataFieldCount;
+    resultSubfieldCount = subfieldCount;
+  }
+
+  /**
+   * @return The serialized form of the last record that was completed
+   */
+  public byte[] getBytes() {
+    return result;
+  }
+
+  /**
+   * @return The 001 of the last record that was completed, or {@code null} if it has none
+   */
+  public String getControlNumber() {
+    return result == null ? null : controlNumber;
+  }
+
+  /**
+   * @return The number of control and data fields in the last record that was completed
+   */
+  public int getFieldCount() {
+    return resultFieldCount;
+  }
+
+  /**
+   * @return The number of subfields in the last record that was completed
+   */
+  public int getSubfieldCount() {
+    return resultSubfieldCount;
+  }
+
+  /**
+   * @return The 001 of the record being written, if it was reported already
+   */
+  protected final String getCurrentControlNumber() {
+    return controlNumber;
+  }
+
+  /**
+   * Starts a new record, dropping whatever a record that failed half way through left behind.
+   */
+  protected abstract void writeLeader(String leader);
+
+  protected abstract void writeControlField(String tag, String data);
+
+  protected abstract void writeDataFieldStart(String tag, char indicator1, char indicator2);
+
+  protected abstract void writeSubfield(char code, String data);
+
+  protected abstract void writeDataFieldEnd();
+
+  /**
+   * Completes the record.
+   *
+   * @return A copy of its bytes
+   */
+  protected abstract byte[] finish();
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import java.util.Arrays;
+
+/**
+ * Offsets and lengths of the records in a buffer of concatenated ISO 2709 records, found by scanning for the record
+ * terminator.
+ * <p>When the leader of a slice gives a record length shorter than the slice, a record terminator was lost, and the
+ * slice is split at that length. The record that lost its terminator is then reported as malformed by the decoder,
+ * and the records after it are still found.</p>
+ * <p>The arrays are kept between {@link #scan(byte[], int, int)} calls so a long-lived instance stops allocating once
+ * it has seen its largest input.</p>
+ */
+public final class RecordSlices {
+
+  private int[] offsets = new int[16];
+  private int[] lengths = new int[16];
+  private int count;
+
+  /**
+   * Splits {@code buf[from, to)} after every record terminator, and where a leader says a record ends earlier. Bytes
+   * after the last terminator become a final slice unless they are only line breaks or padding.
+   *
+   * @param buf Buffer holding the records
+   * @param from Start of the records
+   * @param to End (exclusive) of the records
+   * @return This instance
+   */
+  public RecordSlices scan(byte[] buf, int from, int to) {
+    count = 0;
+    int start = from;
+    for (int i = from; i < to; i++) {
+      if (buf[i] == Iso2709Decoder.RECORD_TERMINATOR) {
+        split(buf, start, i + 1);
+        start = i + 1;
+      }
+    }
+    split(buf, start, to);
+    return this;
+  }
+
+  /**
+   * Adds {@code buf[start, end)}, which holds no record terminator before its last byte, as one slice, or as several
+   * when leaders give shorter lengths.
+   */
+  private void split(byte[] buf, int start, int end) {
+    int length;
+    while ((length = Iso2709Decoder.declaredLength(buf, start, end)) > 0 && start + length < end) {
+      add(start, length);
+      start += length;
+    }
+    if (!isBlank(buf, start, end)) {
+      add(start, end - start);
+    }
+  }
+
+  /**
+   * @return The number of records found by the last scan
+   */
+  public int size() {
+    return count;
+  }
+
+  public int offset(int index) {
+    return offsets[index];
+  }
+
+  public int length(int index) {
+    return lengths[index];
+  }
+
+  private void add(int offset, int length) {
+    if (count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, count * 2);
+      lengths = Arrays.copyOf(lengths, count * 2);
+    }
+    offsets[count] = offset;
+    lengths[count] = length;
+    count++;
+  }
+
+  /**
+   * @return Whether {@code buf[from, to)} holds nothing but line breaks, spaces or end-of-file padding
+   */
+  public static boolean isBlank(byte[] buf, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] != '\n' && buf[i] != '\r' && buf[i] != ' ' && buf[i] != 0x1A) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
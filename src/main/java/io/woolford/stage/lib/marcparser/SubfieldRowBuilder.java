@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.impl.CreateByRef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds one narrow, flat row per subfield occurrence of a MARC record, for columnar sinks that would otherwise have
+ * to flatten the nested field tree.
+ * <p>Every row is a LIST_MAP with the same columns: {@link #CONTROL_NUMBER} (the 001), {@link #TAG},
+ * {@link #FIELD_OCCURRENCE} (of the tag in the record), {@link MarcKeys#INDICATOR1}, {@link MarcKeys#INDICATOR2},
+ * {@link #CODE}, {@link #SUBFIELD_OCCURRENCE} (of the code in the field) and {@link #VALUE}, so a row maps to the
+ * verbose path {@code /tag[fieldOccurrence]/code[subfieldOccurrence]}. The leader and each control field get a row
+ * too, with their data as the value and null indicators, code and subfield occurrence.</p>
+ * <p>Rows are built as the decoder reports the record, without an intermediate tree. Each row may become the root of
+ * a record of its own, so every row gets its own {@link Field}s; only immutable values are shared between rows: the
+ * interned tags and codes, and boxed small numbers and indicators.</p>
+ * <p>Instances are not thread safe.</p>
+ */
+public final class SubfieldRowBuilder implements MarcRecordHandler {
+
+  public static final String CONTROL_NUMBER = "controlNumber";
+  public static final String TAG = "tag";
+  public static final String FIELD_OCCURRENCE = "fieldOccurrence";
+  public static final String CODE = "code";
+  public static final String SUBFIELD_OCCURRENCE = "subfieldOccurrence";
+  public static final String VALUE = "value";
+
+  private static final int NUMERIC_TAGS = 1000;
+  private static final int CODES = 128;
+
+  private List<LinkedHashMap<String, Field>> rows = new ArrayList<>();
+  private String controlNumber;
+  private Field result;
+  private int fieldCount;
+  private int subfieldCount;
+  private int resultFieldCount;
+  private int resultSubfieldCount;
+
+  // Occurrences of each tag in the current record, and of each code in the current data field.
+  private final int[] tagOccurrences = new int[NUMERIC_TAGS];
+  private final Map<String, Integer> otherTagOccurrences = new HashMap<>();
+  private final int[] codeOccurrences = new int[CODES];
+  private final Map<Character, Integer> otherCodeOccurrences = new HashMap<>();
+
+  // The current data field.
+  private String fieldTag;
+  private Integer fieldOccurrence;
+  private Character indicator1;
+  private Character indicator2;
+
+  /** {@inheritDoc} */
+  @Override
+  public void startRecord(String leader) {
+    rows = new ArrayList<>();
+    controlNumber = null;
+    fieldCount = 0;
+    subfieldCount = 0;
+    Arrays.fill(tagOccurrences, 0);
+    otherTagOccurrences.clear();
+    rows.add(row(MarcKeys.LEADER, null, null, null, null, null, leader));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void controlField(String tag, String data) {
+    if (controlNumber == null && MarcKeys.CONTROL_NUMBER.equals(tag)) {
+      controlNumber = data;
+    }
+    fieldCount++;
+    rows.add(row(tag, occurrence(tag), null, null, null, null, data));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDataField(String tag, char indicator1, char indicator2) {
+    fieldCount++;
+    fieldTag = tag;
+    fieldOccurrence = occurrence(tag);
+    this.indicator1 = indicator1;
+    this.indicator2 = indicator2;
+    Arrays.fill(codeOccurrences, 0);
+    otherCodeOccurrences.clear();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subfield(char code, String data) {
+    subfieldCount++;
+    int occurrence = code < CODES
+        ? codeOccurrences[code]++
+        : otherCodeOccurrences.merge(code, 1, Integer::sum) - 1;
+    rows.add(row(fieldTag, fieldOccurrence, indicator1, indicator2, MarcKeys.subfieldKey(code), occurrence, data));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDataField() {
+    fieldTag = null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endRecord() {
+    String number = controlNumber;
+    List<Field> fields = new ArrayList<>(rows.size());
+    try {
+      // The maps and the list are handed over by reference instead of being copied.
+      result = CreateByRef.call(() -> {
+        for (LinkedHashMap<String, Field> row : rows) {
+          row.put(CONTROL_NUMBER, Field.create(Field.Type.STRING, number));
+          fields.add(Field.createListMap(row));
+        }
+        return Field.create(fields);
+      });
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+    resultFieldCount = fieldCount;
+    resultSubfieldCount = subfieldCount;
+  }
+
+  /**
+   * @return A LIST holding the rows of the last record that was completed, in record order, the leader first
+   */
+  public Field getRecordField() {
+    return result;
+  }
+
+  /**
+   * @return The number of control and data fields in the last record that was completed
+   */
+  public int getFieldCount() {
+    return resultFieldCount;
+  }
+
+  /**
+   * @return The number of subfields in the last record that was completed
+   */
+  public int getSubfieldCount() {
+    return resultSubfieldCount;
+  }
+
+  /**
+   * Builds a row with new fields for the given values, {@code null} for the columns that do not apply.
+   */
+  private static LinkedHashMap<String, Field> row(
+      String tag,
+      Integer fieldOccurrence,
+      Character indicator1,
+      Character indicator2,
+      String code,
+      Integer subfieldOccurrence,
+      String value
+  ) {
+    LinkedHashMap<String, Field> row = new LinkedHashMap<>(16);
+    // Filled in once the record ends, since the 001 need not come first.
+    row.put(CONTROL_NUMBER, null);
+    row.put(TAG, Field.create(tag));
+    row.put(FIELD_OCCURRENCE, Field.create(Field.Type.INTEGER, fieldOccurrence));
+    row.put(MarcKeys.INDICATOR1, Field.create(Field.Type.CHAR, indicator1));
+    row.put(MarcKeys.INDICATOR2, Field.create(Field.Type.CHAR, indicator2));
+    row.put(CODE, Field.create(Field.Type.STRING, code));
+    row.put(SUBFIELD_OCCURRENCE, Field.create(Field.Type.INTEGER, subfieldOccurrence));
+    row.put(VALUE, Field.create(value));
+    return row;
+  }
+
+  private int occurrence(String tag) {
+    int numeric = numericTag(tag);
+    return numeric < 0
+        ? otherTagOccurrences.merge(tag, 1, Integer::sum) - 1
+        : tagOccurrences[numeric]++;
+  }
+
+  private static int numericTag(String tag) {
+    if (tag.length() != 3) {
+      return -1;
+    }
+    int d0 = tag.charAt(0) - '0';
+    int d1 = tag.charAt(1) - '0';
+    int d2 = tag.charAt(2) - '0';
+    if ((d0 | d1 | d2) < 0 || d0 > 9 || d1 > 9 || d2 > 9) {
+      return -1;
+    }
+    return d0 * 100 + d1 * 10 + d2;
+  }
+}
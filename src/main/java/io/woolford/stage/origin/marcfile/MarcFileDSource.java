@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.origin.marcfile;
+
+import com.streamsets.pipeline.api.ConfigDef;
+import com.streamsets.pipeline.api.ConfigGroups;
+import com.streamsets.pipeline.api.GenerateResourceBundle;
+import com.streamsets.pipeline.api.StageDef;
+
+@StageDef(
+    version = 1,
+    label = "MARC Files",
+    description = "Reads ISO 2709 MARC files from a directory",
+    icon = "marc_parser_logo.png",
+    resetOffset = true,
+    onlineHelpRefUrl = ""
+)
+@ConfigGroups(Groups.class)
+@GenerateResourceBundle
+public class MarcFileDSource extends MarcFileSource {
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.STRING,
+      label = "Files Directory",
+      displayPosition = 10,
+      group = "FILES"
+  )
+  public String directory;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.STRING,
+      defaultValue = "*.mrc",
+      label = "File Name Pattern",
+      description = "Glob pattern for the names of the files to read",
+      displayPosition = 20,
+      group = "FILES"
+  )
+  public String fileNamePattern;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "1",
+      label = "Number of Threads",
+      description = "Files are read in parallel, one file per thread",
+      displayPosition = 30,
+      group = "FILES",
+      min = 1
+  )
+  public int numberOfThreads;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "1000",
+      label = "Max Batch Size (records)",
+      displayPosition = 40,
+      group = "FILES",
+      min = 1
+  )
+  public int maxBatchSize;
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDirectory() {
+    return directory;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getFileNamePattern() {
+    return fileNamePattern;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getNumberOfThreads() {
+    return numberOfThreads;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+}
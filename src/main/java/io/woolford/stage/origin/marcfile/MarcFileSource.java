@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.origin.marcfile;
+
+import com.streamsets.pipeline.api.BatchContext;
+import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.Record;
+import com.streamsets.pipeline.api.StageException;
+import com.streamsets.pipeline.api.base.BasePushSource;
+import io.woolford.stage.lib.marcparser.Errors;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.MarcFormatException;
+import io.woolford.stage.lib.marcparser.RecordSlices;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams ISO 2709 files from a directory and emits one record per MARC record.
+ * <p>Each worker thread takes a whole file, reads it through a {@link FileChannel} into a reusable buffer and splits it
+ * on the record terminator. Records are mapped with the same {@link Iso2709Decoder} and {@link FieldTreeBuilder} that
+ * back the MARC Parser processor. The offset of a file is the position just past the last record of the last batch
+ * handed to the pipeline, so a restart resumes at a record boundary in the middle of the file. As a file is read by
+ * one thread, a single large file gets no parallelism from more threads.</p>
+ * <p>A file is read again once its size or modification time changes. Bytes that run past
+ * {@link Iso2709Decoder#MAX_RECORD_LENGTH} without a record terminator are sent to error, and reading resumes after
+ * the next terminator.</p>
+ */
+public abstract class MarcFileSource extends BasePushSource {
+
+  private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+  private static final long POLL_INTERVAL_MILLIS = 1000;
+
+  /**
+   * Directory to read MARC files from.
+   */
+  public abstract String getDirectory();
+
+  /**
+   * Glob matched against the names of the files in the directory.
+   */
+  public abstract String getFileNamePattern();
+
+  /**
+   * Upper bound on the number of records in a batch.
+   */
+  public abstract int getMaxBatchSize();
+
+  private Path directory;
+  private Map<String, Long> offsets;
+  private Map<String, FileStamp> lastRead;
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected List<ConfigIssue> init() {
+    List<ConfigIssue> issues = super.init();
+
+    directory = Paths.get(getDirectory());
+    if (!Files.isDirectory(directory)) {
+      issues.add(
+          getContext().createConfigIssue(Groups.FILES.name(), "directory", Errors.MARC_PARSER_04, getDirectory())
+      );
+    }
+    try {
+      directory.getFileSystem().getPathMatcher("glob:" + getFileNamePattern());
+    } catch (IllegalArgumentException e) {
+      issues.add(
+          getContext().createConfigIssue(Groups.FILES.name(), "fileNamePattern", Errors.MARC_PARSER_00, e.getMessage())
+      );
+    }
+
+    return issues;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void produce(Map<String, String> lastOffsets, int maxBatchSize) throws StageException {
+    offsets = new ConcurrentHashMap<>();
+    lastRead = new ConcurrentHashMap<>();
+    lastOffsets.forEach((file, offset) -> {
+      try {
+        offsets.put(file, Long.parseLong(offset));
+      } catch (NumberFormatException e) {
+        // Not one of ours.
+      }
+    });
+    int batchSize = Math.max(1, Math.min(getMaxBatchSize(), maxBatchSize));
+
+    ExecutorService executor = Executors.newFixedThreadPool(getNumberOfThreads());
+    try {
+      while (!getContext().isStopped()) {
+        Map<Path, FileStamp> files = listPendingFiles();
+        Queue<Path> pending = new ConcurrentLinkedQueue<>(files.keySet());
+        if (pending.isEmpty()) {
+          Thread.sleep(POLL_INTERVAL_MILLIS);
+          continue;
+        }
+        List<Future<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < getNumberOfThreads(); i++) {
+          workers.add(executor.submit(() -> {
+            Iso2709Decoder decoder = new Iso2709Decoder();
+            FieldTreeBuilder builder = new FieldTreeBuilder();
+            Path file;
+            while (!getContext().isStopped() && (file = pending.poll()) != null) {
+              if (readFile(file, decoder, builder, batchSize)) {
+                lastRead.put(file.getFileName().toString(), files.get(file));
+              }
+            }
+            return null;
+          }));
+        }
+        for (Future<Void> worker : workers) {
+          worker.get();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof StageException) {
+        throw (StageException) e.getCause();
+      }
+      throw new StageException(Errors.MARC_PARSER_01, e.getCause().toString(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Lists the matching files that still have bytes past their committed offset and changed since they were last read,
+   * in name order, with their current size and modification time. A file whose tail is a record still being written,
+   * or trailing garbage, is only read again once it changes.
+   */
+  private Map<Path, FileStamp> listPendingFiles() throws StageException {
+    List<Path> names = new ArrayList<>();
+    Map<Path, FileStamp> stamps = new HashMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, getFileNamePattern())) {
+      for (Path file : stream) {
+        if (!Files.isRegularFile(file)) {
+          continue;
+        }
+        String fileName = file.getFileName().toString();
+        FileStamp stamp = new FileStamp(Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        if (stamp.size > offsets.getOrDefault(fileName, 0L) && !stamp.equals(lastRead.get(fileName))) {
+          names.add(file);
+          stamps.put(file, stamp);
+        }
+      }
+    } catch (IOException e) {
+      throw new StageException(Errors.MARC_PARSER_05, directory, e.toString(), e);
+    }
+    Collections.sort(names);
+    Map<Path, FileStamp> files = new LinkedHashMap<>();
+    for (Path file : names) {
+      files.put(file, stamps.get(file));
+    }
+    return files;
+  }
+
+  /**
+   * Reads a file from its committed offset to its end, handing a batch to the pipeline every {@code batchSize}
+   * records. The offset only moves past a batch the pipeline processed.
+   *
+   * @return Whether every batch was processed; if not, the file is read again from its offset on the next pass
+   */
+  private boolean readFile(Path file, Iso2709Decoder decoder, FieldTreeBuilder builder, int batchSize)
+      throws StageException {
+    String fileName = file.getFileName().toString();
+    long position = offsets.getOrDefault(fileName, 0L);
+    long committed = position;
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      channel.position(position);
+      ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+      BatchContext batchContext = getContext().startBatch();
+      int batchCount = 0;
+      int scanned = 0;
+      boolean endOfFile = false;
+      // Whether the bytes up to the next record terminator belong to an overlong record that went to error.
+      boolean skipping = false;
+
+      while (!endOfFile && !getContext().isStopped()) {
+        endOfFile = channel.read(buffer) < 0;
+        byte[] buf = buffer.array();
+        int limit = buffer.position();
+        int start = 0;
+        for (int i = scanned; i < limit; i++) {
+          if (buf[i] != Iso2709Decoder.RECORD_TERMINATOR) {
+            continue;
+          }
+          int length = i + 1 - start;
+          if (skipping) {
+            skipping = false;
+            position += length;
+            start = i + 1;
+            continue;
+          }
+          emitRecord(fileName, position, buf, start, length, decoder, builder, batchContext);
+          position += length;
+          start = i + 1;
+          if (++batchCount == batchSize) {
+            if (!getContext().processBatch(batchContext, fileName, String.valueOf(position))) {
+              return false;
+            }
+            offsets.put(fileName, position);
+            committed = position;
+            batchContext = getContext().startBatch();
+            batchCount = 0;
+          }
+        }
+
+        int remaining = limit - start;
+        if (!skipping && remaining > Iso2709Decoder.MAX_RECORD_LENGTH) {
+          emitOverlong(fileName, position, buf, start, remaining, batchContext);
+          skipping = true;
+        }
+        if (skipping) {
+          position += remaining;
+          remaining = 0;
+        } else {
+          // Keep the partial record at the end of the buffer for the next read. It is shorter than the buffer, as a
+          // record longer than the maximum was sent to error above.
+          System.arraycopy(buf, start, buf, 0, remaining);
+        }
+        buffer.position(remaining);
+        scanned = remaining;
+      }
+
+      if (endOfFile && RecordSlices.isBlank(buffer.array(), 0, buffer.position())) {
+        // Line breaks or padding after the last record; skip them so the file counts as done. Anything else may be a
+        // record that is still being written, so it is left for the next poll.
+        position += buffer.position();
+      }
+      if (batchCount > 0 || position != committed) {
+        if (!getContext().processBatch(batchContext, fileName, String.valueOf(position))) {
+          return false;
+        }
+        offsets.put(fileName, position);
+      }
+      return true;
+    } catch (IOException e) {
+      throw new StageException(Errors.MARC_PARSER_05, file, e.toString(), e);
+    }
+  }
+
+  private void emitRecord(
+      String fileName,
+      long position,
+      byte[] buf,
+      int offset,
+      int length,
+      Iso2709Decoder decoder,
+      FieldTreeBuilder builder,
+      BatchContext batchContext
+  ) {
+    Record record = getContext().createRecord(fileName + "::" + position);
+    try {
+      decoder.decode(buf, offset, length, builder);
+      record.set(builder.getRecordField());
+    } catch (MarcFormatException e) {
+      byte[] raw = new byte[length];
+      System.arraycopy(buf, offset, raw, 0, length);
+      LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+      root.put("raw", Field.create(raw));
+      record.set(Field.createListMap(root));
+      batchContext.toError(record, Errors.MARC_PARSER_06, fileName, position + e.getOffset() - offset, e.getMessage());
+      return;
+    }
+    batchContext.getBatchMaker().addRecord(record);
+  }
+
+  /**
+   * Sends the first {@code length} bytes of a record that has no record terminator within
+   * {@link Iso2709Decoder#MAX_RECORD_LENGTH} bytes to error.
+   */
+  private void emitOverlong(
+      String fileName,
+      long position,
+      byte[] buf,
+      int offset,
+      int length,
+      BatchContext batchContext
+  ) {
+    Record record = getContext().createRecord(fileName + "::" + position);
+    byte[] raw = new byte[length];
+    System.arraycopy(buf, offset, raw, 0, length);
+    LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+    root.put("raw", Field.create(raw));
+    record.set(Field.createListMap(root));
+    batchContext.toError(
+        record, Errors.MARC_PARSER_06, fileName, position,
+        "No record terminator within " + Iso2709Decoder.MAX_RECORD_LENGTH + " bytes"
+    );
+  }
+
+  private static final class FileStamp {
+    private final long size;
+    private final long modified;
+
+    private FileStamp(long size, long modified) {
+      this.size = size;
+      this.modified = modified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof FileStamp && ((FileStamp) o).size == size && ((FileStamp) o).modified == modified;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(size) * 31 + Long.hashCode(modified);
+    }
+  }
+}
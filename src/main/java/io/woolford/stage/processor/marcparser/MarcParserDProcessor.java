@@ -17,15 +17,21 @@ package io.woolford.stage.processor.marcparser;
 
 import com.streamsets.pipeline.api.ConfigDef;
 import com.streamsets.pipeline.api.ConfigGroups;
+import com.streamsets.pipeline.api.FieldSelectorModel;
 import com.streamsets.pipeline.api.GenerateResourceBundle;
 import com.streamsets.pipeline.api.StageDef;
+import com.streamsets.pipeline.api.ValueChooserModel;
+import io.woolford.stage.lib.marcparser.OutputShape;
+
+import java.util.List;
 
 @StageDef(
     version = 1,
     label = "MARC Parser",
     description = "",
     icon = "marc_parser_logo.png",
-    onlineHelpRefUrl = ""
+    onlineHelpRefUrl = "",
+    producesEvents = true
 )
 @ConfigGroups(Groups.class)
 @GenerateResourceBundle
@@ -41,10 +47,562 @@ public class MarcParserDProcessor extends MarcParserProcessor {
   )
   public String config;
 
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "/text",
+      label = "Input Field",
+      description = "STRING or BYTE_ARRAY field that holds the MARC data",
+      displayPosition = 20,
+      group = "MARC_PARSER"
+  )
+  @FieldSelectorModel(singleValued = true)
+  public String inputFieldPath;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "ISO_2709",
+      label = "Input Format",
+      description = "MARCXML is read with a streaming parser, one record at a time",
+      displayPosition = 25,
+      group = "MARC_PARSER"
+  )
+  @ValueChooserModel(InputFormatChooserValues.class)
+  public InputFormat inputFormat;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Validate Only",
+      description = "Checks the leader, directory, terminators, indicators and subfield codes of every record without "
+          + "parsing it, and emits one summary record per input with the counts and the offsets of violations",
+      displayPosition = 27,
+      group = "MARC_PARSER",
+      dependsOn = "inputFormat",
+      triggeredByValue = "ISO_2709"
+  )
+  public boolean validateOnly;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "100",
+      label = "Max Reported Violations",
+      description = "Violations beyond this number are counted but not listed",
+      displayPosition = 28,
+      group = "MARC_PARSER",
+      dependsOn = "validateOnly",
+      triggeredByValue = "true",
+      min = 0
+  )
+  public int maxReportedViolations;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "NATIVE",
+      label = "Parser Engine",
+      description = "Native decodes records straight off the input bytes. marc4j builds marc4j records first.",
+      displayPosition = 30,
+      group = "MARC_PARSER",
+      dependsOn = "inputFormat",
+      triggeredByValue = "ISO_2709"
+  )
+  @ValueChooserModel(ParserEngineChooserValues.class)
+  public ParserEngine parserEngine;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "1",
+      label = "Parser Threads",
+      description = "Threads that parse the records of one input in parallel. Output keeps the input order.",
+      displayPosition = 40,
+      group = "MARC_PARSER",
+      dependsOn = "inputFormat",
+      triggeredByValue = "ISO_2709",
+      min = 1
+  )
+  public int parserThreads;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Skip Malformed Records",
+      description = "Sends only a malformed record to error, with its bytes and byte offset, and resumes at the next "
+          + "record terminator. Otherwise the whole input record goes to error and none of its MARC records are "
+          + "emitted, except with compressed input: it is parsed as it is decompressed, so the records before the malformed "
+          + "one are already in the batch.",
+      displayPosition = 45,
+      group = "MARC_PARSER",
+      dependsOn = "inputFormat",
+      triggeredByValue = "ISO_2709"
+  )
+  public boolean skipMalformedRecords;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Drop Duplicate Records",
+      description = "Drops a record when one with the same 001 and 003 was emitted recently, unless its 005 is "
+          + "later. Duplicates are found from the record directory and are never fully parsed.",
+      displayPosition = 46,
+      group = "MARC_PARSER",
+      dependsOn = "inputFormat",
+      triggeredByValue = "ISO_2709"
+  )
+  public boolean dropDuplicates;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "100000",
+      label = "Duplicate Cache Size",
+      description = "Maximum number of records remembered. The least recently emitted are forgotten first.",
+      displayPosition = 47,
+      group = "MARC_PARSER",
+      dependsOn = "dropDuplicates",
+      triggeredByValue = "true",
+      min = 1
+  )
+  public int duplicateCacheSize;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "3600",
+      label = "Duplicate Cache TTL (secs)",
+      description = "How long a record is remembered after it was emitted. Dropping a copy does not extend it.",
+      displayPosition = 48,
+      group = "MARC_PARSER",
+      dependsOn = "dropDuplicates",
+      triggeredByValue = "true",
+      min = 1
+  )
+  public long duplicateCacheTtlSecs;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Drop Unchanged Records",
+      description = "Drops a record when its content, ignoring the 005, hashes the same as when a record with its 001 "
+          + "was last emitted. Hashes are kept on local disk across runs and committed once per batch.",
+      displayPosition = 49,
+      group = "MARC_PARSER",
+      dependsOn = "inputFormat",
+      triggeredByValue = "ISO_2709"
+  )
+  public boolean detectChanges;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.STRING,
+      label = "Fingerprint File",
+      description = "Local file the record hashes are kept in. It is created if it does not exist. Hashes are saved "
+          + "when the next batch arrives, so the changed records of the last batch before a stop are emitted again",
+      displayPosition = 50,
+      group = "MARC_PARSER",
+      dependsOn = "detectChanges",
+      triggeredByValue = "true"
+  )
+  public String fingerprintFile;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Merge Holdings",
+      description = "Adds holdings records (leader/06 u, v, x or y) to the bibliographic record their 004 references, "
+          + "as a /holdings list, instead of emitting them as records of their own",
+      displayPosition = 51,
+      group = "MARC_PARSER",
+      dependsOn = "inputFormat",
+      triggeredByValue = "ISO_2709"
+  )
+  public boolean mergeHoldings;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "1000",
+      label = "Holdings Window",
+      description = "Maximum number of MARC records held back while holdings and their bibliographic records are "
+          + "matched. Records still held at the end of a batch are emitted with it, so a bibliographic record and "
+          + "its holdings only merge when they arrive in the same batch; with the MARC file origin, a large batch "
+          + "size keeps them together.",
+      displayPosition = 52,
+      group = "MARC_PARSER",
+      dependsOn = "mergeHoldings",
+      triggeredByValue = "true",
+      min = 1
+  )
+  public int holdingsWindow;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "EMIT",
+      label = "Orphan Holdings",
+      description = "What happens to holdings records whose bibliographic record is not found within the window",
+      displayPosition = 53,
+      group = "MARC_PARSER",
+      dependsOn = "mergeHoldings",
+      triggeredByValue = "true"
+  )
+  @ValueChooserModel(OrphanHoldingsChooserValues.class)
+  public OrphanHoldings orphanHoldings;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "ALL",
+      label = "Field Selection",
+      description = "Fields that are not selected are skipped without being decoded",
+      displayPosition = 55,
+      group = "MARC_PARSER"
+  )
+  @ValueChooserModel(ProjectionModeChooserValues.class)
+  public ProjectionMode projectionMode;
+
+  @ConfigDef(
+      required = false,
+      type = ConfigDef.Type.LIST,
+      defaultValue = "[]",
+      label = "Selected Fields",
+      description = "Tags with optional subfield codes, such as 245$a$c. X matches any digit, as in 6XX.",
+      displayPosition = 56,
+      group = "MARC_PARSER",
+      dependsOn = "projectionMode",
+      triggeredByValue = {"INCLUDE", "EXCLUDE"}
+  )
+  public List<String> projectedFields;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Decode Fixed Fields",
+      description = "Adds /fixed with the positions of the leader, 008, 006 and 007 as named fields, such as "
+          + "/fixed/008/language, chosen by type of material. Fixed fields are read even when they are not selected.",
+      displayPosition = 60,
+      group = "MARC_PARSER"
+  )
+  public boolean decodeFixedFields;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Extract Identifiers",
+      description = "Adds /ids with the ISBN-13s (020), ISSNs (022), LCCNs (010) and OCLC numbers (035) of each "
+          + "record, normalized. Identifier fields are read even when they are not selected.",
+      displayPosition = 61,
+      group = "MARC_PARSER"
+  )
+  public boolean extractIdentifiers;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Link Authority Headings",
+      description = "Adds a $0 with the authority record control number to 100, 600 and 650 headings found in a "
+          + "local authority file. Lookups go to a memory-mapped index built from the file, never to the network.",
+      displayPosition = 62,
+      group = "MARC_PARSER"
+  )
+  public boolean enrichAuthorities;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.STRING,
+      label = "Authority File",
+      description = "ISO 2709 authority records. The index is built next to it, as <file>.idx, when it is missing "
+          + "or older than the file.",
+      displayPosition = 63,
+      group = "MARC_PARSER",
+      dependsOn = "enrichAuthorities",
+      triggeredByValue = "true"
+  )
+  public String authorityFile;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "10000",
+      label = "Authority Cache Size",
+      description = "Headings each parser thread keeps on the heap, found or not, in front of the index",
+      displayPosition = 64,
+      group = "MARC_PARSER",
+      dependsOn = "enrichAuthorities",
+      triggeredByValue = "true",
+      min = 1
+  )
+  public int authorityCacheSize;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "FIELDS",
+      label = "Output Format",
+      description = "JSON and Avro write each MARC record straight to a BYTE_ARRAY in /data, next to its 001 in /001, "
+          + "without building record fields. Avro records carry their schema in the marcAvroSchema header "
+          + "attribute; write /data with the Binary data format. "
+          + "Exploded writes one flat record per subfield, and per control field, with the 001, tag, field "
+          + "occurrence, indicators, code, subfield occurrence and value.",
+      displayPosition = 65,
+      group = "MARC_PARSER"
+  )
+  @ValueChooserModel(OutputFormatChooserValues.class)
+  public OutputFormat outputFormat;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "VERBOSE",
+      label = "Output Shape",
+      description = "Verbose puts every subfield in a list. Scalar when single keeps lists for repeated values only. "
+          + "Flat writes one list per tag and subfield, keyed like 245_a, with indicators as 245_ind.",
+      displayPosition = 70,
+      group = "MARC_PARSER",
+      dependsOn = "outputFormat",
+      triggeredByValue = "FIELDS"
+  )
+  @ValueChooserModel(OutputShapeChooserValues.class)
+  public OutputShape outputShape;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Profile Corpus",
+      description = "Keeps tag and subfield frequencies, record length and field count histograms and distinct value "
+          + "counts of every record parsed, in fixed-size sketches, and emits them as marc-profile events. Tags, "
+          + "lengths and field counts of ISO 2709 records come from the directory; subfields are profiled as far as "
+          + "they are decoded for the output.",
+      displayPosition = 80,
+      group = "MARC_PARSER"
+  )
+  public boolean profileCorpus;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.BOOLEAN,
+      defaultValue = "false",
+      label = "Profile All Subfields",
+      description = "Also profiles the subfields the output leaves out, which decodes every field of every record",
+      displayPosition = 83,
+      group = "MARC_PARSER",
+      dependsOn = "profileCorpus",
+      triggeredByValue = "true"
+  )
+  public boolean profileAllSubfields;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "50",
+      label = "Profile Top Tags and Subfields",
+      description = "Number of most frequent tags, and of subfields, listed in the profile",
+      displayPosition = 81,
+      group = "MARC_PARSER",
+      dependsOn = "profileCorpus",
+      triggeredByValue = "true",
+      min = 1
+  )
+  public int profileTopN;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.NUMBER,
+      defaultValue = "300",
+      label = "Profile Interval (secs)",
+      description = "Minimum time between profile events, which are emitted at the end of a batch and cover every "
+          + "record since the pipeline started. 0 emits one after every batch.",
+      displayPosition = 82,
+      group = "MARC_PARSER",
+      dependsOn = "profileCorpus",
+      triggeredByValue = "true",
+      min = 0
+  )
+  public long profileIntervalSecs;
+
   /** {@inheritDoc} */
   @Override
   public String getConfig() {
     return config;
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public String getInputFieldPath() {
+    return inputFieldPath;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputFormat getInputFormat() {
+    return inputFormat;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getValidateOnly() {
+    return validateOnly;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getMaxReportedViolations() {
+    return maxReportedViolations;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ParserEngine getParserEngine() {
+    return parserEngine;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getParserThreads() {
+    return parserThreads;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getSkipMalformedRecords() {
+    return skipMalformedRecords;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getDropDuplicates() {
+    return dropDuplicates;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getDuplicateCacheSize() {
+    return duplicateCacheSize;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getDuplicateCacheTtlSecs() {
+    return duplicateCacheTtlSecs;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getDetectChanges() {
+    return detectChanges;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getFingerprintFile() {
+    return fingerprintFile;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getMergeHoldings() {
+    return mergeHoldings;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getHoldingsWindow() {
+    return holdingsWindow;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OrphanHoldings getOrphanHoldings() {
+    return orphanHoldings;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ProjectionMode getProjectionMode() {
+    return projectionMode;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<String> getProjectedFields() {
+    return projectedFields;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getExtractIdentifiers() {
+    return extractIdentifiers;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getDecodeFixedFields() {
+    return decodeFixedFields;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getEnrichAuthorities() {
+    return enrichAuthorities;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getAuthorityFile() {
+    return authorityFile;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getAuthorityCacheSize() {
+    return authorityCacheSize;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OutputFormat getOutputFormat() {
+    return outputFormat;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OutputShape getOutputShape() {
+    return outputShape;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getProfileCorpus() {
+    return profileCorpus;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean getProfileAllSubfields() {
+    return profileAllSubfields;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getProfileTopN() {
+    return profileTopN;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getProfileIntervalSecs() {
+    return profileIntervalSecs;
+  }
 }
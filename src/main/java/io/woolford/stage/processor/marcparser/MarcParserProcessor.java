@@ -15,24 +15,53 @@
  */
 package io.woolford.stage.processor.marcparser;
 
+import com.streamsets.pipeline.api.Batch;
+import com.streamsets.pipeline.api.EventRecord;
 import com.streamsets.pipeline.api.Field;
 import com.streamsets.pipeline.api.Record;
 import com.streamsets.pipeline.api.StageException;
+import com.streamsets.pipeline.api.base.OnRecordErrorException;
 import com.streamsets.pipeline.api.base.SingleLaneRecordProcessor;
+import io.woolford.stage.lib.marcparser.AuthorityIndex;
+import io.woolford.stage.lib.marcparser.AvroRecordSerializer;
+import io.woolford.stage.lib.marcparser.Compression;
+import io.woolford.stage.lib.marcparser.CorpusProfile;
+import io.woolford.stage.lib.marcparser.DuplicateFilter;
 import io.woolford.stage.lib.marcparser.Errors;
+import io.woolford.stage.lib.marcparser.FieldSelector;
+import io.woolford.stage.lib.marcparser.FingerprintStore;
+import io.woolford.stage.lib.marcparser.HoldingsMerger;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.Iso2709StreamReader;
+import io.woolford.stage.lib.marcparser.Iso2709Validator;
+import io.woolford.stage.lib.marcparser.MarcFormatException;
+import io.woolford.stage.lib.marcparser.MarcKeys;
+import io.woolford.stage.lib.marcparser.MarcXmlDecoder;
+import io.woolford.stage.lib.marcparser.OutputShape;
+import io.woolford.stage.lib.marcparser.RecordFingerprint;
+import io.woolford.stage.lib.marcparser.RecordSlices;
+import org.marc4j.MarcException;
+import org.marc4j.MarcJsonReader;
 import org.marc4j.MarcReader;
-import org.marc4j.MarcStreamReader;
 import org.marc4j.marc.ControlField;
 import org.marc4j.marc.DataField;
 import org.marc4j.marc.Subfield;
+import org.marc4j.util.JsonParser;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public abstract class MarcParserProcessor extends SingleLaneRecordProcessor {
 
@@ -41,6 +70,190 @@ public abstract class MarcParserProcessor extends SingleLaneRecordProcessor {
    */
   public abstract String getConfig();
 
+  /**
+   * Path of the STRING or BYTE_ARRAY field that holds the MARC data.
+   */
+  public abstract String getInputFieldPath();
+
+  /**
+   * Serialization of the MARC data in the input field.
+   */
+  public abstract InputFormat getInputFormat();
+
+  /**
+   * Whether the structure of ISO 2709 input is only checked, emitting one summary record per input instead of the
+   * parsed records.
+   */
+  public abstract boolean getValidateOnly();
+
+  /**
+   * Maximum number of violations listed in the summary record of {@link #getValidateOnly()}.
+   */
+  public abstract int getMaxReportedViolations();
+
+  /**
+   * Engine that turns the MARC bytes into records.
+   */
+  public abstract ParserEngine getParserEngine();
+
+  /**
+   * Number of threads that parse the records of one input blob. 1 parses on the pipeline thread.
+   */
+  public abstract int getParserThreads();
+
+  /**
+   * Whether a malformed ISO 2709 record is sent to error on its own while the rest of the input is still parsed.
+   */
+  public abstract boolean getSkipMalformedRecords();
+
+  /**
+   * Whether ISO 2709 records already seen, by 001 and 003, are dropped unless their 005 is later.
+   */
+  public abstract boolean getDropDuplicates();
+
+  /**
+   * Number of records remembered by {@link #getDropDuplicates()}.
+   */
+  public abstract int getDuplicateCacheSize();
+
+  /**
+   * Seconds a record is remembered by {@link #getDropDuplicates()} after it was emitted.
+   */
+  public abstract long getDuplicateCacheTtlSecs();
+
+  /**
+   * Whether records whose content, apart from the 005, is unchanged since they were last emitted are dropped.
+   */
+  public abstract boolean getDetectChanges();
+
+  /**
+   * File holding the fingerprints used by {@link #getDetectChanges()}.
+   */
+  public abstract String getFingerprintFile();
+
+  /**
+   * Whether holdings records are attached to the bibliographic record their 004 references, as {@code /holdings}.
+   */
+  public abstract boolean getMergeHoldings();
+
+  /**
+   * Number of MARC records {@link #getMergeHoldings()} holds back while it looks for holdings and their
+   * bibliographic records.
+   */
+  public abstract int getHoldingsWindow();
+
+  /**
+   * What happens to holdings records whose bibliographic record is not found by {@link #getMergeHoldings()}.
+   */
+  public abstract OrphanHoldings getOrphanHoldings();
+
+  /**
+   * Whether {@link #getProjectedFields()} lists the fields to keep or the fields to drop.
+   */
+  public abstract ProjectionMode getProjectionMode();
+
+  /**
+   * Tags, optionally with subfield codes, used by {@link #getProjectionMode()}.
+   */
+  public abstract List<String> getProjectedFields();
+
+  /**
+   * Whether normalized ISBNs, ISSNs, LCCNs and OCLC numbers are added to the output records as {@code /ids}.
+   */
+  public abstract boolean getExtractIdentifiers();
+
+  /**
+   * Whether the positions of the leader, 008, 006 and 007 are added to the output records as named fields in
+   * {@code /fixed}.
+   */
+  public abstract boolean getDecodeFixedFields();
+
+  /**
+   * Whether 100, 600 and 650 headings are linked to the authority records in {@link #getAuthorityFile()} with a $0.
+   */
+  public abstract boolean getEnrichAuthorities();
+
+  /**
+   * ISO 2709 authority file used by {@link #getEnrichAuthorities()}. Its index is kept next to it, in a file with
+   * {@link #AUTHORITY_INDEX_SUFFIX} appended to the name.
+   */
+  public abstract String getAuthorityFile();
+
+  /**
+   * Number of headings each parser thread caches in front of the authority index.
+   */
+  public abstract int getAuthorityCacheSize();
+
+  /**
+   * Whether output records hold SDC fields or a single serialized copy of the MARC record.
+   */
+  public abstract OutputFormat getOutputFormat();
+
+  /**
+   * Layout of the data fields in the output records.
+   */
+  public abstract OutputShape getOutputShape();
+
+  /**
+   * Whether every parsed record is added to a {@link CorpusProfile} that is emitted as {@link #PROFILE_EVENT} events.
+   */
+  public abstract boolean getProfileCorpus();
+
+  /**
+   * Whether the profile covers every subfield, rather than only those the output keeps.
+   */
+  public abstract boolean getProfileAllSubfields();
+
+  /**
+   * Number of most frequent tags, and of subfields, listed by {@link #getProfileCorpus()}.
+   */
+  public abstract int getProfileTopN();
+
+  /**
+   * Minimum number of seconds between two {@link #PROFILE_EVENT} events.
+   */
+  public abstract long getProfileIntervalSecs();
+
+  /**
+   * Header attribute that carries the Avro schema of the bytes in {@code /data} for {@link OutputFormat#AVRO}. It is
+   * not SDC's {@code avroSchema}, which describes the whole record and would make the Avro data format fail on the
+   * {@code /001} and {@code /data} root; {@code /data} is written as it is with the Binary data format.
+   */
+  static final String AVRO_SCHEMA_HEADER = "marcAvroSchema";
+
+  static final String AUTHORITY_INDEX_SUFFIX = ".idx";
+
+  /**
+   * Type of the events that carry the corpus profile.
+   */
+  static final String PROFILE_EVENT = "marc-profile";
+  static final int PROFILE_EVENT_VERSION = 1;
+
+  static final String BYTES = "bytes";
+  static final String RECORDS = "records";
+  static final String INVALID_RECORDS = "invalidRecords";
+  static final String FIELDS = "fields";
+  static final String VIOLATION_COUNT = "violationCount";
+  static final String VIOLATIONS = "violations";
+
+  private FieldSelector fieldSelector;
+  private ParserMetrics metrics;
+  private RecordSlices slices;
+  private ThreadLocal<RecordParser> parsers;
+  private ForkJoinPool pool;
+  private DuplicateFilter duplicates;
+  private AuthorityIndex authorities;
+  private FingerprintStore fingerprints;
+  private RecordFingerprint fingerprint;
+  private HoldingsMerger<PendingRecord> holdings;
+  private Iso2709Validator validator;
+  private long[] keys = new long[0];
+  private long[] hashes = new long[0];
+  private Map<Thread, CorpusProfile> profiles;
+  private CorpusProfile corpusProfile;
+  private long lastProfileNanos;
+  private int profileEvents;
+
   /**
    * {@inheritDoc}
    */
@@ -57,63 +270,736 @@ public abstract class MarcParserProcessor extends SingleLaneRecordProcessor {
       );
     }
 
+    fieldSelector = FieldSelector.ALL;
+    if (getProjectionMode() != ProjectionMode.ALL) {
+      try {
+        fieldSelector = FieldSelector.of(getProjectionMode() == ProjectionMode.INCLUDE, getProjectedFields());
+      } catch (IllegalArgumentException e) {
+        issues.add(
+            getContext().createConfigIssue(
+                Groups.MARC_PARSER.name(), "projectedFields", Errors.MARC_PARSER_07, e.getMessage()
+            )
+        );
+      }
+    }
+
+    if (getOutputFormat() == OutputFormat.EXPLODED) {
+      // Rows have no record root to add these to.
+      checkNotExploded(issues, getExtractIdentifiers(), "extractIdentifiers", "Extract Identifiers");
+      checkNotExploded(issues, getDecodeFixedFields(), "decodeFixedFields", "Decode Fixed Fields");
+      checkNotExploded(
+          issues, getInputFormat() == InputFormat.ISO_2709 && getMergeHoldings(), "mergeHoldings", "Merge Holdings"
+      );
+    }
+
+    if (getInputFormat() == InputFormat.ISO_2709 && getDetectChanges()) {
+      try {
+        fingerprints = FingerprintStore.open(Paths.get(getFingerprintFile()));
+        fingerprint = new RecordFingerprint();
+      } catch (IOException | RuntimeException e) {
+        issues.add(
+            getContext().createConfigIssue(
+                Groups.MARC_PARSER.name(), "fingerprintFile", Errors.MARC_PARSER_05, getFingerprintFile(), e.toString()
+            )
+        );
+      }
+    }
+
+    if (getEnrichAuthorities()) {
+      try {
+        // Builds the index on first use and whenever the authority file changes.
+        authorities = AuthorityIndex.open(
+            Paths.get(getAuthorityFile()), Paths.get(getAuthorityFile() + AUTHORITY_INDEX_SUFFIX)
+        );
+      } catch (IOException | RuntimeException e) {
+        issues.add(
+            getContext().createConfigIssue(
+                Groups.MARC_PARSER.name(), "authorityFile", Errors.MARC_PARSER_05, getAuthorityFile(), e.toString()
+            )
+        );
+      }
+    }
+
+    metrics = new ParserMetrics(getContext());
+    slices = new RecordSlices();
+    if (getProfileCorpus()) {
+      profiles = new ConcurrentHashMap<>();
+      corpusProfile = new CorpusProfile(getProfileTopN());
+      lastProfileNanos = System.nanoTime();
+    }
+    parsers = ThreadLocal.withInitial(() -> new RecordParser(
+        getParserEngine(),
+        fieldSelector,
+        getExtractIdentifiers(),
+        getDecodeFixedFields(),
+        authorities,
+        getAuthorityCacheSize(),
+        getOutputFormat(),
+        getOutputShape(),
+        profiles == null ? null : profiles.computeIfAbsent(
+            Thread.currentThread(), thread -> new CorpusProfile(getProfileTopN())
+        ),
+        getProfileAllSubfields(),
+        metrics
+    ));
+    if (getParserThreads() > 1) {
+      pool = new ForkJoinPool(getParserThreads());
+    }
+    if (getInputFormat() == InputFormat.ISO_2709 && getDropDuplicates()) {
+      duplicates = new DuplicateFilter(getDuplicateCacheSize(), getDuplicateCacheTtlSecs(), TimeUnit.SECONDS);
+    }
+    if (getInputFormat() == InputFormat.ISO_2709 && getValidateOnly()) {
+      validator = new Iso2709Validator(getMaxReportedViolations());
+    }
+    if (getInputFormat() == InputFormat.ISO_2709 && getMergeHoldings()) {
+      holdings = new HoldingsMerger<>(getHoldingsWindow());
+    }
+
     // If issues is not empty, the UI will inform the user of each configuration issue in the list.
     return issues;
   }
 
+  private void checkNotExploded(List<ConfigIssue> issues, boolean enabled, String config, String label) {
+    if (enabled) {
+      issues.add(getContext().createConfigIssue(Groups.MARC_PARSER.name(), config, Errors.MARC_PARSER_14, label));
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public void destroy() {
     // Clean up any open resources.
+    if (pool != null) {
+      pool.shutdownNow();
+      pool = null;
+    }
+    if (authorities != null) {
+      authorities.close();
+      authorities = null;
+    }
+    if (fingerprints != null) {
+      // Fingerprints that were not committed belong to the last batch, which is not known to have gone through the
+      // pipeline, so its records are emitted again by the next run.
+      fingerprints.close();
+      fingerprints = null;
+    }
     super.destroy();
   }
 
   public MarcParserProcessor() {
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>When holdings are merged, the records still held back are emitted at the end of the batch, as records are
+   * never carried over from one batch to the next.</p>
+   * <p>With change detection, the fingerprints of the records emitted for the batch are committed together when the
+   * next batch arrives, and dropped if it fails. Records remembered to drop duplicates are kept the same way.</p>
+   * <p>When the corpus is profiled, a profile event is emitted at the end of the batch once the profile interval has
+   * passed.</p>
+   */
+  @Override
+  public void process(Batch batch, SingleLaneBatchMaker batchMaker) throws StageException {
+    processBatch(batch, batchMaker);
+    long sinceProfile = System.nanoTime() - lastProfileNanos;
+    if (profiles != null && sinceProfile >= TimeUnit.SECONDS.toNanos(getProfileIntervalSecs())) {
+      emitProfile();
+    }
+  }
+
+  private void processBatch(Batch batch, SingleLaneBatchMaker batchMaker) throws StageException {
+    if (fingerprints != null) {
+      // The pipeline hands over the next batch only once the previous one went through every stage, so the
+      // fingerprints staged for it can be committed now. Committing any earlier would drop its changed records for
+      // good if a later stage failed the batch and the origin replayed it.
+      try {
+        fingerprints.commit();
+      } catch (IOException e) {
+        throw new StageException(Errors.MARC_PARSER_11, getFingerprintFile(), e.toString(), e);
+      }
+    }
+    if (duplicates != null) {
+      // Likewise, the records emitted by the previous batch only count as seen once it went through.
+      duplicates.commit();
+    }
+    if (fingerprints == null && holdings == null && duplicates == null) {
+      super.process(batch, batchMaker);
+      return;
+    }
+    try {
+      super.process(batch, batchMaker);
+      if (holdings != null) {
+        holdings.flush(new HoldingsOutput(batchMaker));
+      }
+    } catch (StageException | RuntimeException e) {
+      if (holdings != null) {
+        holdings.clear();
+      }
+      if (fingerprints != null) {
+        fingerprints.rollback();
+      }
+      if (duplicates != null) {
+        duplicates.rollback();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Folds the profiles of the parser threads into the profile of the whole corpus and emits it. No records are parsed
+   * between batches, so the thread profiles can be read and reset here; those of threads that ended are dropped.
+   */
+  private void emitProfile() {
+    for (Iterator<Map.Entry<Thread, CorpusProfile>> it = profiles.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Thread, CorpusProfile> entry = it.next();
+      corpusProfile.merge(entry.getValue());
+      entry.getValue().clear();
+      if (!entry.getKey().isAlive()) {
+        it.remove();
+      }
+    }
+    EventRecord event = getContext().createEventRecord(
+        PROFILE_EVENT, PROFILE_EVENT_VERSION, PROFILE_EVENT + "-" + profileEvents++
+    );
+    event.set(corpusProfile.toField());
+    getContext().toEvent(event);
+    lastProfileNanos = System.nanoTime();
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   protected void process(Record record, SingleLaneBatchMaker batchMaker) throws StageException {
+    try {
+      byte[] mrc = getInputBytes(record);
+      long start = System.nanoTime();
+      Compression compression = Compression.detect(mrc, 0, mrc.length);
+      int records = compression == Compression.NONE
+          ? parse(record, mrc, batchMaker)
+          : parseCompressed(record, compression, mrc, batchMaker);
+      metrics.inputParsed(mrc.length, records, System.nanoTime() - start);
+    } catch (OnRecordErrorException e) {
+      metrics.failed(e.getErrorCode());
+      throw e;
+    }
+  }
 
-    String mrc =  record.get("/text").getValue().toString();
-    try (
-        InputStream is = new ByteArrayInputStream(mrc.getBytes(StandardCharsets.UTF_8))) {
-    MarcReader reader = new MarcStreamReader(is);
-      int recordNumber = 0;
-    while (reader.hasNext()) {
-        Record bibRecord = getContext().createRecord(record, "-" + recordNumber++);
-        bibRecord.set(Field.createListMap(new LinkedHashMap<String, Field>()));
-      org.marc4j.marc.Record mrcRecord = reader.next();
-        bibRecord.set("/leader", Field.create(mrcRecord.getLeader().marshal()));
-        List<ControlField> marcControlFields = mrcRecord.getControlFields();
-        for (ControlField marcControlField : marcControlFields) {
-          String tag = "/" + marcControlField.getTag();
-          String data = marcControlField.getData();
-          bibRecord.set(tag, Field.create(data));
-        }
-        List<DataField> marcDataFields = mrcRecord.getDataFields();
-        LinkedHashMap<String, List<Field>> dataFields = new LinkedHashMap<>();
-        for (DataField marcDataField : marcDataFields) {
-          String tag = "/" + marcDataField.getTag();
-          if (!dataFields.containsKey(tag)) {
-            dataFields.put(tag, new ArrayList<Field>());
-      }
-          List<Field> dataField = dataFields.get(tag);
-          LinkedHashMap<String, Field> mapOfDataField = MarcParserProcessor.getMapOfDataField(marcDataField);
-          dataField.add(Field.createListMap(mapOfDataField));
+  /**
+   * Parses the MARC records in {@code mrc} and adds one SDC record per MARC record to the batch, or only checks them
+   * when validating.
+   *
+   * @return The number of MARC records added, or checked
+   */
+  private int parse(Record record, byte[] mrc, SingleLaneBatchMaker batchMaker) throws OnRecordErrorException {
+    switch (getInputFormat()) {
+      case MARCXML:
+        return processXml(record, new ByteArrayInputStream(mrc), batchMaker);
+      case MARC_JSON:
+        return processJson(record, new ByteArrayInputStream(mrc), batchMaker);
+      default:
+        break;
+    }
+    if (validator != null) {
+      validator.validate(mrc, 0, mrc.length);
+      addSummary(record, mrc.length, batchMaker);
+      return validator.getRecordCount();
+    }
+    slices.scan(mrc, 0, mrc.length);
+    boolean[] skip = findSkipped(mrc);
+    // Every slice is parsed before any record is emitted, so an input that goes to error as a whole because one of
+    // its records is malformed leaves nothing of itself in the batch. Small inputs are parsed on this thread.
+    Field[] results = new Field[slices.size()];
+    RuntimeException[] failures = new RuntimeException[slices.size()];
+    if (pool == null || slices.size() < 2) {
+      new ParseTask(mrc, slices, results, failures, skip, parsers::get, 0, slices.size(), slices.size()).invoke();
+    } else {
+      int threshold = Math.max(1, slices.size() / (pool.getParallelism() * 4));
+      pool.invoke(new ParseTask(mrc, slices, results, failures, skip, parsers::get, 0, slices.size(), threshold));
+    }
+    if (!getSkipMalformedRecords()) {
+      for (int i = 0; i < failures.length; i++) {
+        if (failures[i] instanceof MarcFormatException || failures[i] instanceof MarcException) {
+          malformed(record, mrc, slices.offset(i), slices.length(i), slices.offset(i), i, failures[i]);
+        } else if (failures[i] != null) {
+          throw failures[i];
         }
-        dataFields.forEach((key, fields1) -> bibRecord.set(key, Field.create(fields1)));
-        batchMaker.addRecord(bibRecord);
+      }
+    }
+    // Create and emit the records on this thread in input order.
+    int emitted = 0;
+    for (int i = 0; i < results.length; i++) {
+      if (skip != null && skip[i]) {
+        continue;
+      } else if (failures[i] instanceof MarcFormatException || failures[i] instanceof MarcException) {
+        malformed(record, mrc, slices.offset(i), slices.length(i), slices.offset(i), i, failures[i]);
+        continue;
+      } else if (failures[i] != null) {
+        throw failures[i];
+      }
+      if (emit(record, mrc, slices.offset(i), slices.length(i), i, i, results[i], batchMaker)) {
+        emitted++;
+      }
+    }
+    return emitted;
+  }
+
+  /**
+   * Parses compressed MARC data as it is decompressed. ISO 2709 records are read and parsed one at a time, on this
+   * thread, so only the decompressed bytes of the current record are held; MARCXML and MARC-in-JSON are read by
+   * their streaming readers.
+   *
+   * @return The number of MARC records added, or checked
+   */
+  private int parseCompressed(
+      Record record,
+      Compression compression,
+      byte[] compressed,
+      SingleLaneBatchMaker batchMaker
+  ) throws OnRecordErrorException {
+    try (InputStream in = compression.decompress(new ByteArrayInputStream(compressed))) {
+      switch (getInputFormat()) {
+        case MARCXML:
+          return processXml(record, in, batchMaker);
+        case MARC_JSON:
+          return processJson(record, in, batchMaker);
+        default:
+          return parseStream(record, new Iso2709StreamReader(in), batchMaker);
       }
     } catch (IOException e) {
-      e.printStackTrace();
+      throw new OnRecordErrorException(record, Errors.MARC_PARSER_13, compression, e.toString());
+    }
+  }
+
+  private int parseStream(Record record, Iso2709StreamReader reader, SingleLaneBatchMaker batchMaker)
+      throws IOException, OnRecordErrorException {
+    if (validator != null) {
+      validator.reset();
+      while (next(record, reader, validator.getRecordCount())) {
+        validator.validateRecord(reader.buffer(), 0, reader.length(), reader.position());
+      }
+      // Past the last record, the position is the length of the decompressed data.
+      addSummary(record, reader.position(), batchMaker);
+      return validator.getRecordCount();
+    }
+    ensureSlots(1);
+    RecordParser parser = parsers.get();
+    int emitted = 0;
+    for (int i = 0; next(record, reader, i); i++) {
+      byte[] buf = reader.buffer();
+      if (isSkipped(buf, 0, reader.length(), 0)) {
+        continue;
+      }
+      Field field;
+      try {
+        field = parser.parse(buf, 0, reader.length());
+      } catch (MarcFormatException | MarcException e) {
+        malformed(record, buf, 0, reader.length(), reader.position(), i, e);
+        continue;
+      }
+      if (emit(record, buf, 0, reader.length(), 0, i, field, batchMaker)) {
+        emitted++;
+      }
+    }
+    return emitted;
+  }
+
+  /**
+   * Advances the reader to record {@code index} of the input.
+   *
+   * @throws OnRecordErrorException if the record is longer than an ISO 2709 record can be
+   */
+  private static boolean next(Record record, Iso2709StreamReader reader, int index)
+      throws IOException, OnRecordErrorException {
+    try {
+      return reader.next();
+    } catch (MarcFormatException e) {
+      throw new OnRecordErrorException(record, Errors.MARC_PARSER_08, index, e.getMessage());
+    }
+  }
+
+  /**
+   * Adds a record summing up the last validation to the batch: the counts, and the first violations with the index
+   * and byte offset of their record.
+   */
+  private void addSummary(Record record, long bytes, SingleLaneBatchMaker batchMaker) {
+    List<Field> violations = new ArrayList<>(validator.getViolations().size());
+    for (Iso2709Validator.Violation violation : validator.getViolations()) {
+      LinkedHashMap<String, Field> map = new LinkedHashMap<>();
+      map.put("record", Field.create(violation.getRecord()));
+      map.put("offset", Field.create(violation.getOffset()));
+      map.put("message", Field.create(violation.getMessage()));
+      violations.add(Field.createListMap(map));
+    }
+    LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+    root.put(BYTES, Field.create(bytes));
+    root.put(RECORDS, Field.create(validator.getRecordCount()));
+    root.put(INVALID_RECORDS, Field.create(validator.getInvalidRecordCount()));
+    root.put(FIELDS, Field.create(validator.getFieldCount()));
+    root.put(VIOLATION_COUNT, Field.create(validator.getViolationCount()));
+    root.put(VIOLATIONS, Field.create(violations));
+    Record summary = getContext().createRecord(record, "-summary");
+    summary.set(Field.createListMap(root));
+    batchMaker.addRecord(summary);
+  }
+
+  /**
+   * Adds the record for the {@code index}th MARC record of the input to the batch, or with exploded output one record
+   * per row.
+   */
+  private void addRecord(Record record, int index, Field field, SingleLaneBatchMaker batchMaker) {
+    if (getOutputFormat() == OutputFormat.EXPLODED) {
+      // The rows were built by reference; each becomes the root of its own record as it is.
+      List<Field> rows = field.getValueAsList();
+      for (int row = 0; row < rows.size(); row++) {
+        Record rowRecord = getContext().createRecord(record, "-" + index + "-" + row);
+        rowRecord.set(rows.get(row));
+        batchMaker.addRecord(rowRecord);
+      }
+      return;
+    }
+    batchMaker.addRecord(createRecord(record, index, field));
+  }
+
+  private Record createRecord(Record record, int index, Field field) {
+    Record bibRecord = getContext().createRecord(record, "-" + index);
+    bibRecord.set(field);
+    if (getOutputFormat() == OutputFormat.AVRO) {
+      bibRecord.getHeader().setAttribute(AVRO_SCHEMA_HEADER, AvroRecordSerializer.SCHEMA);
+    }
+    return bibRecord;
+  }
+
+  /**
+   * Emits the record parsed from {@code buf[offset, offset + length)}, the {@code index}th MARC record of the input:
+   * straight to the batch, or through the holdings window when holdings are merged, in which case its fingerprint is
+   * only staged once it leaves the window. When duplicates are dropped, the record is remembered here, once it was
+   * parsed; a copy of it earlier in the same input that was emitted makes it a duplicate.
+   *
+   * @param slot Where {@link #isSkipped(byte[], int, int, int)} left the fingerprint of the record
+   * @return Whether the record was emitted, {@code false} if it was dropped as a duplicate
+   */
+  private boolean emit(
+      Record record,
+      byte[] buf,
+      int offset,
+      int length,
+      int slot,
+      int index,
+      Field field,
+      SingleLaneBatchMaker batchMaker
+  ) {
+    if (duplicates != null) {
+      boolean remembered;
+      try {
+        remembered = duplicates.remember(buf, offset, length);
+      } catch (MarcFormatException e) {
+        // Parsed by marc4j, which is more lenient than the directory reader; it is emitted without being remembered.
+        remembered = true;
+      }
+      metrics.duplicateChecked(!remembered);
+      if (!remembered) {
+        return false;
+      }
+    }
+    if (holdings != null) {
+      boolean fingerprinted = fingerprints != null && keys[slot] != 0;
+      PendingRecord pending = new PendingRecord(
+          createRecord(record, index, field), fingerprinted ? keys[slot] : 0, fingerprinted ? hashes[slot] : 0
+      );
+      try {
+        holdings.add(buf, offset, length, pending, field, new HoldingsOutput(batchMaker));
+        return true;
+      } catch (MarcFormatException e) {
+        // Parsed by marc4j, which is more lenient than the directory reader; it is emitted as it is.
+      }
     }
+    addRecord(record, index, field, batchMaker);
+    stageFingerprint(slot);
+    return true;
+  }
+
+  /**
+   * Flags the slices that hold duplicates of records already seen or records unchanged since they were last emitted,
+   * looking only at their leaders, directories and raw bytes so they are never decoded. Runs on the pipeline thread,
+   * in input order, before any slice is parsed.
+   *
+   * @return The flags by slice index, or {@code null} when every record is kept
+   */
+  private boolean[] findSkipped(byte[] mrc) {
+    if (duplicates == null && fingerprints == null) {
+      return null;
+    }
+    boolean[] skip = new boolean[slices.size()];
+    ensureSlots(skip.length);
+    for (int i = 0; i < skip.length; i++) {
+      skip[i] = isSkipped(mrc, slices.offset(i), slices.length(i), i);
+    }
+    return skip;
+  }
 
+  /**
+   * Checks one record for {@link #findSkipped(byte[])}, leaving its fingerprint, if any, in {@code slot}.
+   *
+   * @return Whether the record is dropped
+   */
+  private boolean isSkipped(byte[] buf, int offset, int length, int slot) {
+    boolean skip = false;
+    try {
+      if (duplicates != null) {
+        // Only checked here: the record is remembered by emit, once it was parsed, and counted there if it is kept.
+        skip = duplicates.isDuplicate(buf, offset, length);
+        if (skip) {
+          metrics.duplicateChecked(true);
+        }
       }
+      if (fingerprints != null) {
+        keys[slot] = 0;
+        if (!skip && fingerprint.compute(buf, offset, length)) {
+          keys[slot] = fingerprint.getKey();
+          hashes[slot] = fingerprint.getFingerprint();
+          skip = fingerprints.isUnchanged(keys[slot], hashes[slot]);
+          metrics.changeChecked(skip);
+        }
+      }
+    } catch (MarcFormatException e) {
+      // Left for the parser, which reports it like any other malformed record.
+    }
+    return skip;
+  }
+
+  /**
+   * Makes room for the fingerprints of {@code count} records.
+   */
+  private void ensureSlots(int count) {
+    if (fingerprints != null && keys.length < count) {
+      keys = new long[count];
+      hashes = new long[count];
+    }
+  }
+
+  /**
+   * Stages the fingerprint in {@code slot} once its record was emitted, so records that went to error are looked at
+   * again next time.
+   */
+  private void stageFingerprint(int slot) {
+    if (fingerprints != null && keys[slot] != 0) {
+      fingerprints.put(keys[slot], hashes[slot]);
+    }
+  }
+
+  /**
+   * A record held back by the holdings window, with the fingerprint to stage once it is emitted.
+   */
+  private static final class PendingRecord {
+    private final Record record;
+    private final long key;
+    private final long fingerprint;
+
+    private PendingRecord(Record record, long key, long fingerprint) {
+      this.record = record;
+      this.key = key;
+      this.fingerprint = fingerprint;
+    }
+  }
+
+  /**
+   * Adds the records leaving the holdings window to the batch, handling orphans as configured.
+   */
+  private final class HoldingsOutput implements HoldingsMerger.Output<PendingRecord> {
+    private final SingleLaneBatchMaker batchMaker;
+
+    private HoldingsOutput(SingleLaneBatchMaker batchMaker) {
+      this.batchMaker = batchMaker;
+    }
+
+    @Override
+    public void bibliographic(PendingRecord bib, Field root, int count) {
+      metrics.holdingsMerged(count);
+      // Set again so the holdings show up whether or not the record copied its root field.
+      bib.record.set(root);
+      emitted(bib);
+    }
+
+    @Override
+    public void orphan(PendingRecord orphan, Field root, String parent) {
+      metrics.holdingsOrphaned();
+      switch (getOrphanHoldings()) {
+        case EMIT:
+          emitted(orphan);
+          break;
+        case TO_ERROR:
+          metrics.failed(Errors.MARC_PARSER_12);
+          getContext().toError(orphan.record, Errors.MARC_PARSER_12, parent);
+          break;
+        default:
+          break;
+      }
+    }
+
+    private void emitted(PendingRecord pending) {
+      batchMaker.addRecord(pending.record);
+      if (fingerprints != null && pending.key != 0) {
+        fingerprints.put(pending.key, pending.fingerprint);
+      }
+    }
+  }
+
+  /**
+   * Handles a record slice that could not be parsed. Unless malformed records are skipped, the whole input record
+   * goes to error. Otherwise only the slice does, as a record holding its bytes in {@code /raw}, and parsing goes on
+   * with the next slice.
+   *
+   * @param position Offset of the slice in the input, or in the decompressed input
+   */
+  private void malformed(
+      Record record,
+      byte[] buf,
+      int offset,
+      int length,
+      long position,
+      int index,
+      RuntimeException e
+  ) throws OnRecordErrorException {
+    if (!getSkipMalformedRecords()) {
+      throw new OnRecordErrorException(record, Errors.MARC_PARSER_08, index, e.getMessage());
+    }
+    byte[] raw = new byte[length];
+    System.arraycopy(buf, offset, raw, 0, length);
+    LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+    root.put("raw", Field.create(raw));
+    Record errorRecord = getContext().createRecord(record, "-" + index);
+    errorRecord.set(Field.createListMap(root));
+    metrics.failed(Errors.MARC_PARSER_09);
+    getContext().toError(errorRecord, Errors.MARC_PARSER_09, index, position, e.getMessage());
+  }
+
+  private int processXml(Record record, InputStream xml, SingleLaneBatchMaker batchMaker)
+      throws OnRecordErrorException {
+    RecordParser parser = parsers.get();
+    int recordNumber = 0;
+    try (MarcXmlDecoder decoder = parser.xmlDecoder(xml)) {
+      Field field;
+      while ((field = parser.parseNext(decoder)) != null) {
+        addRecord(record, recordNumber++, field, batchMaker);
+      }
+    } catch (MarcFormatException e) {
+      throw new OnRecordErrorException(record, Errors.MARC_PARSER_08, recordNumber, e.getMessage());
+    }
+    return recordNumber;
+  }
+
+  private int processJson(Record record, InputStream json, SingleLaneBatchMaker batchMaker)
+      throws OnRecordErrorException {
+    // The InputStream constructor would decode with the platform charset; MARC-in-JSON is UTF-8.
+    MarcReader reader = new MarcJsonReader(new InputStreamReader(json, StandardCharsets.UTF_8));
+    return processWithMarc4j(record, reader, batchMaker);
+  }
+
+  private int processWithMarc4j(Record record, MarcReader reader, SingleLaneBatchMaker batchMaker)
+      throws OnRecordErrorException {
+    RecordParser parser = parsers.get();
+    int recordNumber = 0;
+    while (true) {
+      Field field;
+      try {
+        field = parser.parseNext(reader);
+      } catch (MarcException | JsonParser.Escape e) {
+        // The JSON reader reports syntax errors with its own exception.
+        throw new OnRecordErrorException(record, Errors.MARC_PARSER_08, recordNumber, e.getMessage());
+      }
+      if (field == null) {
+        return recordNumber;
+      }
+      addRecord(record, recordNumber++, field, batchMaker);
+    }
+  }
+
+  /**
+   * Converts a marc4j record into the root LIST_MAP field of an SDC record: the leader, one STRING per control field
+   * and, for every data field tag, a LIST of the maps built by {@link #getMapOfDataField(DataField)}.
+   *
+   * @param mrcRecord The marc4j record to convert
+   * @return The root field for the SDC record
+   */
+  static Field getRecordField(org.marc4j.marc.Record mrcRecord) {
+    return getRecordField(mrcRecord, FieldSelector.ALL);
+  }
+
+  /**
+   * Same as {@link #getRecordField(org.marc4j.marc.Record)}, keeping only the fields and subfields chosen by
+   * {@code selector}.
+   */
+  static Field getRecordField(org.marc4j.marc.Record mrcRecord, FieldSelector selector) {
+    LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+    root.put("leader", Field.create(mrcRecord.getLeader().marshal()));
+    List<ControlField> marcControlFields = mrcRecord.getControlFields();
+    for (ControlField marcControlField : marcControlFields) {
+      if (selector.isSelected(marcControlField.getTag())) {
+        root.put(marcControlField.getTag(), Field.create(marcControlField.getData()));
+      }
+    }
+    List<DataField> marcDataFields = mrcRecord.getDataFields();
+    LinkedHashMap<String, List<Field>> dataFields = new LinkedHashMap<>();
+    for (DataField marcDataField : marcDataFields) {
+      String tag = marcDataField.getTag();
+      if (!selector.isSelected(tag)) {
+        continue;
+      }
+      if (selector != FieldSelector.ALL) {
+        marcDataField.getSubfields().removeIf(subfield -> !selector.isSelected(tag, subfield.getCode()));
+      }
+      if (!dataFields.containsKey(tag)) {
+        dataFields.put(tag, new ArrayList<Field>());
+      }
+      List<Field> dataField = dataFields.get(tag);
+      LinkedHashMap<String, Field> mapOfDataField = MarcParserProcessor.getMapOfDataField(marcDataField);
+      dataField.add(Field.createListMap(mapOfDataField));
+    }
+    dataFields.forEach((key, fields1) -> root.put(key, Field.create(fields1)));
+    return Field.createListMap(root);
+  }
+
+  /**
+   * Returns the raw MARC bytes held by the configured input field.
+   * <p>BYTE_ARRAY fields are handed to the reader as they are, without going through a String, so MARC-8
+   * records keep the byte offsets their directory refers to. STRING fields are encoded as UTF-8, except ISO 2709 data
+   * whose leader/09 declares MARC-8: that only survives as a String when it was read as ISO-8859-1, one char per
+   * byte, so it is encoded back the same way. So is gzip, bzip2 or Zstandard data, recognized by its magic bytes.</p>
+   *
+   * @param record The incoming record
+   * @return The MARC bytes of the input field
+   * @throws OnRecordErrorException if the field is missing or is neither a STRING nor a BYTE_ARRAY
+   */
+  private byte[] getInputBytes(Record record) throws OnRecordErrorException {
+    Field input = record.get(getInputFieldPath());
+    if (input == null) {
+      throw new OnRecordErrorException(record, Errors.MARC_PARSER_02, getInputFieldPath());
+    }
+    switch (input.getType()) {
+      case BYTE_ARRAY:
+        // Every read of the value hands out a defensive copy of the byte array, so it is read only once.
+        byte[] bytes = input.getValueAsByteArray();
+        if (bytes == null) {
+          throw new OnRecordErrorException(record, Errors.MARC_PARSER_02, getInputFieldPath());
+        }
+        return bytes;
+      case STRING:
+        String text = input.getValueAsString();
+        if (text == null) {
+          throw new OnRecordErrorException(record, Errors.MARC_PARSER_02, getInputFieldPath());
+        }
+        boolean marc8 = getInputFormat() == InputFormat.ISO_2709
+            && text.length() > Iso2709Decoder.LEADER_LENGTH
+            && text.charAt(9) != 'a';
+        boolean binary = marc8 || Compression.isCompressed(text);
+        return text.getBytes(binary ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+      default:
+        throw new OnRecordErrorException(record, Errors.MARC_PARSER_03, getInputFieldPath(), input.getType());
+    }
+  }
 
   /**
    * Exposed for testing
@@ -147,16 +1033,12 @@ public abstract class MarcParserProcessor extends SingleLaneRecordProcessor {
    */
   static LinkedHashMap<String, Field> getMapOfDataField(DataField marcDataField) {
     LinkedHashMap<String, Field> recordDataFields = new LinkedHashMap<>();
-    recordDataFields.put("indicator1", Field.create(marcDataField.getIndicator1()));
-    recordDataFields.put("indicator2", Field.create(marcDataField.getIndicator2()));
+    recordDataFields.put(MarcKeys.INDICATOR1, MarcKeys.indicator(marcDataField.getIndicator1()));
+    recordDataFields.put(MarcKeys.INDICATOR2, MarcKeys.indicator(marcDataField.getIndicator2()));
     LinkedHashMap<String, List<Field>> subFields = new LinkedHashMap<String, List<Field>>();
     for (Subfield subField : marcDataField.getSubfields()) {
-      String code = Character.toString(subField.getCode());
-      if (!subFields.containsKey(code)) {
-        subFields.put(code, new ArrayList<Field>());
-    }
-      List<Field> subFieldList = subFields.get(code);
-      subFieldList.add(Field.create(subField.getData()));
+      subFields.computeIfAbsent(MarcKeys.subfieldKey(subField.getCode()), code -> new ArrayList<Field>())
+          .add(Field.create(subField.getData()));
     }
     subFields.forEach((key, fields1) -> recordDataFields.put(key, Field.create(fields1)));
     return recordDataFields;
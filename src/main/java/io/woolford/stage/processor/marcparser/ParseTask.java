@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import io.woolford.stage.lib.marcparser.RecordSlices;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Parses a range of record slices on a fork-join pool, or on the calling thread when invoked outside one. Each slice's
+ * result lands at the slice's own index in {@code results}, or its exception in {@code failures}, so the caller can
+ * emit records in input order. Slices flagged in {@code skip}, if given, are left alone.
+ */
+class ParseTask extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+
+  private final byte[] buf;
+  private final RecordSlices slices;
+  private final Field[] results;
+  private final RuntimeException[] failures;
+  private final boolean[] skip;
+  private final Supplier<RecordParser> parsers;
+  private final int from;
+  private final int to;
+  private final int threshold;
+
+  ParseTask(
+      byte[] buf,
+      RecordSlices slices,
+      Field[] results,
+      RuntimeException[] failures,
+      boolean[] skip,
+      Supplier<RecordParser> parsers,
+      int from,
+      int to,
+      int threshold
+  ) {
+    this.buf = buf;
+    this.slices = slices;
+    this.results = results;
+    this.failures = failures;
+    this.skip = skip;
+    this.parsers = parsers;
+    this.from = from;
+    this.to = to;
+    this.threshold = threshold;
+  }
+
+  @Override
+  protected void compute() {
+    if (to - from > threshold) {
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new ParseTask(buf, slices, results, failures, skip, parsers, from, middle, threshold),
+          new ParseTask(buf, slices, results, failures, skip, parsers, middle, to, threshold)
+      );
+      return;
+    }
+    RecordParser parser = parsers.get();
+    for (int i = from; i < to; i++) {
+      if (skip != null && skip[i]) {
+        continue;
+      }
+      try {
+        results[i] = parser.parse(buf, slices.offset(i), slices.length(i));
+      } catch (RuntimeException e) {
+        failures[i] = e;
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.streamsets.pipeline.api.ErrorCode;
+import com.streamsets.pipeline.api.MetricContext;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the MARC Parser, registered with the stage context so they show up in the SDC UI and over JMX.
+ * <p>Per record metrics are updated from the parser threads as well as the pipeline thread; the underlying metrics
+ * are thread safe.</p>
+ */
+class ParserMetrics {
+
+  private final MetricContext context;
+  private final Meter inputBytes;
+  private final Meter marcRecords;
+  private final Timer blobParseTime;
+  private final Timer recordParseTime;
+  private final Histogram fieldsPerRecord;
+  private final Histogram subfieldsPerRecord;
+  private final Meter duplicateHits;
+  private final Meter duplicateMisses;
+  private final Meter unchangedRecords;
+  private final Meter changedRecords;
+  private final Meter authorityHits;
+  private final Meter authorityMisses;
+  private final Meter mergedHoldings;
+  private final Meter orphanHoldings;
+  private final Map<String, Counter> failures = new ConcurrentHashMap<>();
+
+  ParserMetrics(MetricContext context) {
+    this.context = context;
+    inputBytes = context.createMeter("Input Bytes");
+    marcRecords = context.createMeter("MARC Records");
+    blobParseTime = context.createTimer("Input Parse Time");
+    recordParseTime = context.createTimer("MARC Record Parse Time");
+    fieldsPerRecord = context.createHistogram("Fields Per MARC Record");
+    subfieldsPerRecord = context.createHistogram("Subfields Per MARC Record");
+    duplicateHits = context.createMeter("Duplicate Cache Hits");
+    duplicateMisses = context.createMeter("Duplicate Cache Misses");
+    unchangedRecords = context.createMeter("Unchanged Records");
+    changedRecords = context.createMeter("Changed Records");
+    authorityHits = context.createMeter("Authority Cache Hits");
+    authorityMisses = context.createMeter("Authority Cache Misses");
+    mergedHoldings = context.createMeter("Merged Holdings Records");
+    orphanHoldings = context.createMeter("Orphan Holdings Records");
+  }
+
+  /**
+   * Records one input blob that was parsed.
+   *
+   * @param bytes Size of the MARC data in the input
+   * @param records Number of MARC records produced from it
+   * @param nanos Time spent parsing it
+   */
+  void inputParsed(int bytes, int records, long nanos) {
+    inputBytes.mark(bytes);
+    marcRecords.mark(records);
+    blobParseTime.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Records one MARC record that was parsed.
+   *
+   * @param nanos Time spent parsing and mapping it
+   * @param fields Number of control and data fields it produced
+   * @param subfields Number of subfields it produced
+   */
+  void recordParsed(long nanos, int fields, int subfields) {
+    recordParseTime.update(nanos, TimeUnit.NANOSECONDS);
+    fieldsPerRecord.update(fields);
+    subfieldsPerRecord.update(subfields);
+  }
+
+  /**
+   * Records one record checked against the duplicate cache. A hit is a record that was dropped as a duplicate, a miss
+   * one that was emitted and remembered.
+   */
+  void duplicateChecked(boolean hit) {
+    (hit ? duplicateHits : duplicateMisses).mark();
+  }
+
+  /**
+   * Records one record checked against the fingerprint store. Unchanged records are dropped.
+   */
+  void changeChecked(boolean unchanged) {
+    (unchanged ? unchangedRecords : changedRecords).mark();
+  }
+
+  /**
+   * Records the headings of one record that were resolved from the authority cache and from the authority index.
+   */
+  void authoritiesLookedUp(int hits, int misses) {
+    authorityHits.mark(hits);
+    authorityMisses.mark(misses);
+  }
+
+  /**
+   * Records the holdings records attached to one bibliographic record.
+   */
+  void holdingsMerged(int holdings) {
+    mergedHoldings.mark(holdings);
+  }
+
+  /**
+   * Records one holdings record whose bibliographic record was not found.
+   */
+  void holdingsOrphaned() {
+    orphanHoldings.mark();
+  }
+
+  /**
+   * Counts a failure under its error code.
+   */
+  void failed(ErrorCode code) {
+    failures.computeIfAbsent(code.getCode(), key -> context.createCounter("Failures " + key)).inc();
+  }
+}
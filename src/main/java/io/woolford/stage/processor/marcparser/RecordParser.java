@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import io.woolford.stage.lib.marcparser.AuthorityEnricher;
+import io.woolford.stage.lib.marcparser.AuthorityIndex;
+import io.woolford.stage.lib.marcparser.AvroRecordSerializer;
+import io.woolford.stage.lib.marcparser.CorpusProfile;
+import io.woolford.stage.lib.marcparser.CorpusProfiler;
+import io.woolford.stage.lib.marcparser.FieldSelector;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.FixedFieldDecoder;
+import io.woolford.stage.lib.marcparser.IdentifierExtractor;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.JsonRecordSerializer;
+import io.woolford.stage.lib.marcparser.Marc4jRecords;
+import io.woolford.stage.lib.marcparser.MarcKeys;
+import io.woolford.stage.lib.marcparser.MarcRecordHandler;
+import io.woolford.stage.lib.marcparser.MarcXmlDecoder;
+import io.woolford.stage.lib.marcparser.OutputShape;
+import io.woolford.stage.lib.marcparser.RecordSerializer;
+import io.woolford.stage.lib.marcparser.SubfieldRowBuilder;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+
+/**
+ * Turns one ISO 2709 record slice, or the next record of a MARCXML or marc4j stream, into the root field of an SDC
+ * record laid out in the configured {@link OutputShape}.
+ * <p>With a JSON or Avro {@link OutputFormat} the record is serialized as it is decoded instead, and the root field
+ * only holds the serialized bytes in {@code /data} plus the 001, if any, in {@code /001} for keying. With exploded
+ * output it is a LIST of the rows built by {@link SubfieldRowBuilder}, one per output record.</p>
+ * <p>When identifiers are extracted, they are collected in the same pass and added to the root as {@code /ids}, and
+ * decoded fixed-field positions likewise as {@code /fixed}. With an authority index, headings are linked to their
+ * authority records in the same pass as well, and with a {@link CorpusProfile} every record is added to it.</p>
+ * <p>Holds per-thread decoder state, so every thread parsing records needs its own instance.</p>
+ */
+class RecordParser {
+
+  static final String DATA = "data";
+  static final String IDS = "ids";
+  static final String FIXED = "fixed";
+
+  private final ParserEngine engine;
+  private final FieldSelector selector;
+  private final Iso2709Decoder decoder;
+  private final FieldTreeBuilder builder;
+  private final RecordSerializer serializer;
+  private final SubfieldRowBuilder rows;
+  private final IdentifierExtractor identifiers;
+  private final FixedFieldDecoder fixedFields;
+  private final AuthorityEnricher enricher;
+  private final CorpusProfiler profiler;
+  private final MarcRecordHandler handler;
+  private final ParserMetrics metrics;
+
+  RecordParser(
+      ParserEngine engine,
+      FieldSelector selector,
+      boolean extractIdentifiers,
+      boolean decodeFixedFields,
+      AuthorityIndex authorities,
+      int authorityCacheSize,
+      OutputFormat format,
+      OutputShape shape,
+      CorpusProfile profile,
+      boolean profileAllSubfields,
+      ParserMetrics metrics
+  ) {
+    this.engine = engine;
+    this.metrics = metrics;
+    MarcRecordHandler output;
+    switch (format) {
+      case JSON:
+        this.builder = null;
+        this.serializer = new JsonRecordSerializer();
+        this.rows = null;
+        output = serializer;
+        break;
+      case AVRO:
+        this.builder = null;
+        this.serializer = new AvroRecordSerializer();
+        this.rows = null;
+        output = serializer;
+        break;
+      case EXPLODED:
+        this.builder = null;
+        this.serializer = null;
+        this.rows = new SubfieldRowBuilder();
+        output = rows;
+        break;
+      default:
+        this.builder = new FieldTreeBuilder().setOutputShape(shape);
+        this.serializer = null;
+        this.rows = null;
+        output = builder;
+        break;
+    }
+    this.enricher = authorities == null ? null : new AuthorityEnricher(output, authorities, authorityCacheSize);
+    if (enricher != null) {
+      output = enricher;
+    }
+    // Each extractor passes on what the handlers inside it need, so the decoder selector is widened step by step.
+    FieldSelector needed = selector;
+    this.identifiers = extractIdentifiers ? new IdentifierExtractor(output, needed) : null;
+    if (identifiers != null) {
+      output = identifiers;
+      needed = needed.withFields(IdentifierExtractor.TAGS);
+    }
+    this.fixedFields = decodeFixedFields ? new FixedFieldDecoder(output, needed) : null;
+    if (fixedFields != null) {
+      output = fixedFields;
+      needed = needed.withFields(FixedFieldDecoder.TAGS);
+    }
+    this.profiler = profile == null ? null : new CorpusProfiler(output, needed, profileAllSubfields, profile);
+    if (profiler != null) {
+      output = profiler;
+    }
+    this.handler = output;
+    // ISO 2709 records are profiled from their directory, so the decoder keeps skipping unselected fields. MARCXML,
+    // MARC-in-JSON and marc4j records have none, and every field is read for the tag counts.
+    this.selector = profiler == null ? needed : FieldSelector.ALL;
+    this.decoder = new Iso2709Decoder().setFieldSelector(profileAllSubfields ? FieldSelector.ALL : needed);
+  }
+
+  /**
+   * Opens a MARCXML stream for {@link #parseNext(MarcXmlDecoder)}, decoding the fields this parser needs.
+   */
+  MarcXmlDecoder xmlDecoder(InputStream in) {
+    return new MarcXmlDecoder(in).setFieldSelector(selector);
+  }
+
+  Field parse(byte[] buf, int offset, int length) {
+    long start = System.nanoTime();
+    if (engine == ParserEngine.MARC4J) {
+      MarcStreamReader reader = new MarcStreamReader(
+          new ByteArrayInputStream(buf, offset, length),
+          length > Iso2709Decoder.LEADER_LENGTH && Iso2709Decoder.isUtf8(buf, offset) ? "UTF8" : "MARC8"
+      );
+      Marc4jRecords.replay(reader.next(), selector, handler);
+    } else {
+      if (profiler != null) {
+        profiler.directory(buf, offset, length);
+      }
+      decoder.decode(buf, offset, length, handler);
+    }
+    return built(start);
+  }
+
+  /**
+   * Reads the next record of a MARCXML stream.
+   *
+   * @return The root field of the record, or {@code null} once the stream has no more records
+   */
+  Field parseNext(MarcXmlDecoder xml) {
+    long start = System.nanoTime();
+    if (!xml.decodeNext(handler)) {
+      return null;
+    }
+    return built(start);
+  }
+
+  /**
+   * Reads the next record from a marc4j reader.
+   *
+   * @return The root field of the record, or {@code null} once the reader has no more records
+   */
+  Field parseNext(MarcReader reader) {
+    long start = System.nanoTime();
+    if (!reader.hasNext()) {
+      return null;
+    }
+    Marc4jRecords.replay(reader.next(), selector, handler);
+    return built(start);
+  }
+
+  private Field built(long start) {
+    if (enricher != null) {
+      metrics.authoritiesLookedUp(enricher.getCacheHits(), enricher.getCacheMisses());
+    }
+    Field record;
+    if (rows != null) {
+      metrics.recordParsed(System.nanoTime() - start, rows.getFieldCount(), rows.getSubfieldCount());
+      return rows.getRecordField();
+    } else if (serializer == null) {
+      metrics.recordParsed(System.nanoTime() - start, builder.getFieldCount(), builder.getSubfieldCount());
+      record = builder.getRecordField();
+    } else {
+      metrics.recordParsed(System.nanoTime() - start, serializer.getFieldCount(), serializer.getSubfieldCount());
+      LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+      if (serializer.getControlNumber() != null) {
+        root.put(MarcKeys.CONTROL_NUMBER, Field.create(serializer.getControlNumber()));
+      }
+      root.put(DATA, Field.create(serializer.getBytes()));
+      record = Field.createListMap(root);
+    }
+    // The root map is held by reference, so these add to the record without copying it.
+    if (identifiers != null) {
+      record.getValueAsListMap().put(IDS, identifiers.getIdentifiers());
+    }
+    if (fixedFields != null) {
+      record.getValueAsListMap().put(FIXED, fixedFields.getFixedFields());
+    }
+    return record;
+  }
+}
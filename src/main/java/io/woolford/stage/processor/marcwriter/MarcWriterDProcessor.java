@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcwriter;
+
+import com.streamsets.pipeline.api.ConfigDef;
+import com.streamsets.pipeline.api.ConfigGroups;
+import com.streamsets.pipeline.api.FieldSelectorModel;
+import com.streamsets.pipeline.api.GenerateResourceBundle;
+import com.streamsets.pipeline.api.StageDef;
+
+@StageDef(
+    version = 1,
+    label = "MARC Writer",
+    description = "Writes MARC records back to ISO 2709 (binary MARC)",
+    icon = "marc_parser_logo.png",
+    onlineHelpRefUrl = ""
+)
+@ConfigGroups(Groups.class)
+@GenerateResourceBundle
+public class MarcWriterDProcessor extends MarcWriterProcessor {
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.MODEL,
+      defaultValue = "/",
+      label = "MARC Record Field",
+      description = "Map holding the leader, control fields and data fields, as the MARC Parser writes them",
+      displayPosition = 10,
+      group = "MARC_WRITER"
+  )
+  @FieldSelectorModel(singleValued = true)
+  public String recordFieldPath;
+
+  @ConfigDef(
+      required = true,
+      type = ConfigDef.Type.STRING,
+      defaultValue = "/marc",
+      label = "Output Field",
+      description = "BYTE_ARRAY field the ISO 2709 record is written to",
+      displayPosition = 20,
+      group = "MARC_WRITER"
+  )
+  public String outputFieldPath;
+
+  /** {@inheritDoc} */
+  @Override
+  public String getRecordFieldPath() {
+    return recordFieldPath;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getOutputFieldPath() {
+    return outputFieldPath;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcwriter;
+
+import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.Record;
+import com.streamsets.pipeline.api.StageException;
+import com.streamsets.pipeline.api.base.OnRecordErrorException;
+import com.streamsets.pipeline.api.base.SingleLaneRecordProcessor;
+import io.woolford.stage.lib.marcparser.Errors;
+import io.woolford.stage.lib.marcparser.Iso2709Encoder;
+
+import java.util.List;
+
+/**
+ * Writes records shaped like the output of the MARC Parser back to ISO 2709, into a BYTE_ARRAY field.
+ */
+public abstract class MarcWriterProcessor extends SingleLaneRecordProcessor {
+
+  /**
+   * Path of the field holding the MARC record, laid out like the verbose output of the MARC Parser.
+   */
+  public abstract String getRecordFieldPath();
+
+  /**
+   * Path of the BYTE_ARRAY field the ISO 2709 record is written to.
+   */
+  public abstract String getOutputFieldPath();
+
+  private Iso2709Encoder encoder;
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected List<ConfigIssue> init() {
+    List<ConfigIssue> issues = super.init();
+    encoder = new Iso2709Encoder();
+    return issues;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void process(Record record, SingleLaneBatchMaker batchMaker) throws StageException {
+    byte[] marc;
+    try {
+      marc = encoder.encode(record.get(getRecordFieldPath()));
+    } catch (IllegalArgumentException e) {
+      throw new OnRecordErrorException(record, Errors.MARC_PARSER_10, getRecordFieldPath(), e.getMessage());
+    }
+    record.set(getOutputFieldPath(), Field.create(marc));
+    batchMaker.addRecord(record);
+  }
+}
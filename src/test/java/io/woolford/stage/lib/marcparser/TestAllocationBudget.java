@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Guards the number of bytes the native decoder and {@link FieldTreeBuilder} allocate per record. The budget leaves
+ * some headroom over what the summerland record needs today, and is far below the ~40 KB the mapping used to take
+ * when every list and map was deep-copied.
+ */
+public class TestAllocationBudget {
+
+  private static final long BYTES_PER_RECORD_BUDGET = 12 * 1024;
+  private static final int WARMUP = 50_000;
+  private static final int MEASURED = 20_000;
+
+  @Test
+  public void testBytesPerRecord() throws IOException {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    for (int i = 0; i < WARMUP; i++) {
+      decoder.decode(marc, 0, marc.length, builder);
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long before = allocations.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED; i++) {
+      decoder.decode(marc, 0, marc.length, builder);
+    }
+    long perRecord = (allocations.getThreadAllocatedBytes(threadId) - before) / MEASURED;
+
+    assertTrue("Allocated " + perRecord + " bytes per record", perRecord <= BYTES_PER_RECORD_BUDGET);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestAuthorityIndex {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final MarcFactory FACTORY = MarcFactory.newInstance();
+
+  @Test
+  public void testKey() {
+    assertEquals("pchabon michael 1963", AuthorityIndex.key(AuthorityIndex.PERSONAL_NAME, "Chabon, Michael, 1963-"));
+    assertEquals("tcafe", AuthorityIndex.key(AuthorityIndex.TOPICAL_TERM, " Cafe\u0301."));
+    assertEquals("tcafe", AuthorityIndex.key(AuthorityIndex.TOPICAL_TERM, "CAF\u00C9"));
+    assertNull(AuthorityIndex.key(AuthorityIndex.TOPICAL_TERM, " -- ."));
+  }
+
+  @Test
+  public void testBuildAndLookup() throws IOException {
+    AuthorityIndex index = AuthorityIndex.open(authorities(), folder.getRoot().toPath().resolve("auth.idx"));
+
+    // The duplicate Magic heading, the name/title heading and the record without a 001 are not indexed.
+    assertEquals(5, index.size());
+    assertEquals("(DLC)n79021164", index.lookup("pchabon michael"));
+    assertEquals("(DLC)n94046710", index.lookup("plethem jonathan 1964"));
+    assertNull(index.lookup("plethem jonathan"));
+    assertEquals("(DLC)sh85007813", index.lookup("tbaseball"));
+    assertEquals("(DLC)sh85079672", index.lookup("tmagic"));
+    assertEquals("sh00000001", index.lookup("tfantasy"));
+    assertNull(index.lookup("tfantasy fiction"));
+    assertNull(index.lookup("pchabon"));
+    assertNull(index.lookup("a"));
+  }
+
+  @Test
+  public void testRebuildsStaleIndex() throws IOException {
+    Path authorities = authorities();
+    Path indexFile = folder.getRoot().toPath().resolve("auth.idx");
+    AuthorityIndex.build(authorities, indexFile);
+    Files.write(indexFile, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+    Files.setLastModifiedTime(indexFile, java.nio.file.attribute.FileTime.fromMillis(0));
+
+    AuthorityIndex index = AuthorityIndex.open(authorities, indexFile);
+    assertEquals(5, index.size());
+    index.close();
+    assertEquals(0, temporaryFiles());
+  }
+
+  @Test
+  public void testConcurrentBuilds() throws Exception {
+    Path authorities = authorities();
+    Path indexFile = folder.getRoot().toPath().resolve("auth.idx");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Integer>> builds = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        builds.add(executor.submit(() -> AuthorityIndex.build(authorities, indexFile)));
+      }
+      for (Future<Integer> build : builds) {
+        assertEquals(5, (int) build.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    AuthorityIndex index = AuthorityIndex.open(indexFile);
+    assertEquals("(DLC)n79021164", index.lookup("pchabon michael"));
+    index.close();
+    assertEquals(0, temporaryFiles());
+  }
+
+  private long temporaryFiles() throws IOException {
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+      return files.filter(file -> file.getFileName().toString().endsWith(".tmp")).count();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testEnrich() throws IOException {
+    AuthorityIndex index = AuthorityIndex.open(authorities(), folder.getRoot().toPath().resolve("auth.idx"));
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    AuthorityEnricher enricher = new AuthorityEnricher(builder, index, 2);
+    Iso2709Decoder decoder = new Iso2709Decoder();
+
+    decoder.decode(marc, 0, marc.length, enricher);
+    Map<String, Field> record = builder.getRecordField().getValueAsListMap();
+    assertEquals("(DLC)n79021164", subfield(record, "100", 0, "0"));
+    List<Field> subjects = record.get("650").getValueAsList();
+    assertEquals("sh00000001", subfield(record, "650", 0, "0"));
+    // 650 $a Baseball $v Fiction. matches Baseball, the $v being a subdivision.
+    assertEquals("(DLC)sh85007813", subfield(record, "650", 1, "0"));
+    assertEquals("(DLC)sh85079672", subfield(record, "650", 2, "0"));
+    assertEquals(3, subjects.size());
+    assertEquals(0, enricher.getCacheHits());
+    assertEquals(4, enricher.getCacheMisses());
+
+    // A cache of two keeps the last two headings, so the first two are looked up again.
+    decoder.decode(marc, 0, marc.length, enricher);
+    assertEquals(0, enricher.getCacheHits());
+    assertEquals(4, enricher.getCacheMisses());
+
+    enricher = new AuthorityEnricher(builder, index, 100);
+    decoder.decode(marc, 0, marc.length, enricher);
+    decoder.decode(marc, 0, marc.length, enricher);
+    assertEquals(4, enricher.getCacheHits());
+    assertEquals(0, enricher.getCacheMisses());
+    assertEquals(
+        "(DLC)n79021164",
+        subfield(builder.getRecordField().getValueAsListMap(), "100", 0, "0")
+    );
+  }
+
+  @Test
+  public void testExistingLinkIsKept() throws IOException {
+    AuthorityIndex index = AuthorityIndex.open(authorities(), folder.getRoot().toPath().resolve("auth.idx"));
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    AuthorityEnricher enricher = new AuthorityEnricher(builder, index, 10);
+    enricher.startRecord("00000nam a2200000 a 4500");
+    enricher.startDataField("650", ' ', '0');
+    enricher.subfield('a', "Magic");
+    enricher.subfield('0', "(OCoLC)fst01004828");
+    enricher.endDataField();
+    enricher.startDataField("700", '1', ' ');
+    enricher.subfield('a', "Chabon, Michael.");
+    enricher.endDataField();
+    enricher.endRecord();
+
+    Map<String, Field> record = builder.getRecordField().getValueAsListMap();
+    assertEquals("(OCoLC)fst01004828", subfield(record, "650", 0, "0"));
+    assertEquals(1, record.get("650").getValueAsList().get(0).getValueAsListMap().get("0").getValueAsList().size());
+    assertNull(record.get("700").getValueAsList().get(0).getValueAsListMap().get("0"));
+    assertEquals(0, enricher.getCacheMisses());
+  }
+
+  private static String subfield(Map<String, Field> record, String tag, int occurrence, String code) {
+    Field field = record.get(tag).getValueAsList().get(occurrence);
+    Field values = field.getValueAsListMap().get(code);
+    return values == null ? null : values.getValueAsList().get(0).getValueAsString();
+  }
+
+  private Path authorities() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("auth.mrc");
+    try (OutputStream out = Files.newOutputStream(file)) {
+      MarcStreamWriter writer = new MarcStreamWriter(out, "UTF8");
+      writer.write(authority("sh85079672", "DLC", "150", 'a', "Magic"));
+      writer.write(authority("n79021164", "DLC", "100", 'a', "Chabon, Michael."));
+      writer.write(authority("n94046710", "DLC", "100", 'a', "Lethem, Jonathan,", 'd', "1964-", 'e', "author."));
+      writer.write(authority("sh85007813", "DLC", "150", 'a', "Baseball"));
+      writer.write(authority("sh99999999", "DLC", "150", 'a', "MAGIC."));
+      writer.write(authority("n00000001", "DLC", "100", 'a', "Chabon, Michael", 't', "Summerland"));
+      writer.write(authority(null, null, "150", 'a', "Fiction"));
+      writer.write(authority("sh00000001", null, "150", 'a', "Fantasy"));
+      writer.close();
+    }
+    return file;
+  }
+
+  private static Record authority(String controlNumber, String source, String tag, Object... subfields) {
+    Record record = FACTORY.newRecord("00000nz  a2200000n  4500");
+    if (controlNumber != null) {
+      record.addVariableField(FACTORY.newControlField("001", controlNumber));
+    }
+    if (source != null) {
+      record.addVariableField(FACTORY.newControlField("003", source));
+    }
+    DataField heading = FACTORY.newDataField(tag, '1', ' ');
+    for (int i = 0; i < subfields.length; i += 2) {
+      heading.addSubfield(FACTORY.newSubfield((Character) subfields[i], (String) subfields[i + 1]));
+    }
+    record.addVariableField(heading);
+    return record;
+  }
+}
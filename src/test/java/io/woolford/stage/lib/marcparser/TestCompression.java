@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompression {
+
+  static byte[] compress(Compression compression, byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStream compressed = open(compression, out)) {
+      compressed.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static OutputStream open(Compression compression, OutputStream out) throws IOException {
+    switch (compression) {
+      case GZIP:
+        return new GZIPOutputStream(out);
+      case BZIP2:
+        return new BZip2CompressorOutputStream(out);
+      case ZSTD:
+        return new ZstdCompressorOutputStream(out);
+      default:
+        return out;
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];
+    int read;
+    while ((read = in.read(buf)) > 0) {
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    assertEquals(Compression.NONE, Compression.detect(marc, 0, marc.length));
+    for (Compression compression : new Compression[]{Compression.GZIP, Compression.BZIP2, Compression.ZSTD}) {
+      byte[] compressed = compress(compression, marc);
+      assertEquals(compression, Compression.detect(compressed, 0, compressed.length));
+      assertArrayEquals(
+          compression.name(), marc, readAll(compression.decompress(new ByteArrayInputStream(compressed)))
+      );
+    }
+  }
+
+  @Test
+  public void testConcatenatedStreams() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    for (Compression compression : new Compression[]{Compression.GZIP, Compression.BZIP2}) {
+      ByteArrayOutputStream twice = new ByteArrayOutputStream();
+      twice.write(compress(compression, marc));
+      twice.write(compress(compression, marc));
+      byte[] decompressed = readAll(compression.decompress(new ByteArrayInputStream(twice.toByteArray())));
+      assertEquals(compression.name(), 2 * marc.length, decompressed.length);
+    }
+  }
+
+  @Test
+  public void testDetectText() throws IOException {
+    byte[] xml = "<?xml version=\"1.0\"?>".getBytes(StandardCharsets.UTF_8);
+    assertEquals(Compression.NONE, Compression.detect(xml, 0, xml.length));
+    assertEquals(Compression.NONE, Compression.detect(new byte[]{0x1F}, 0, 1));
+    assertFalse(Compression.isCompressed("BZh"));
+    assertFalse(Compression.isCompressed("\u1F8B"));
+    byte[] gzip = compress(Compression.GZIP, xml);
+    assertTrue(Compression.isCompressed(new String(gzip, StandardCharsets.ISO_8859_1)));
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCorpusProfile {
+
+  private static CorpusProfile profile(byte[] marc, int from, int to, int topN) {
+    CorpusProfile profile = new CorpusProfile(topN);
+    CorpusProfiler profiler = new CorpusProfiler(new FieldTreeBuilder(), FieldSelector.ALL, profile);
+    RecordSlices slices = new RecordSlices().scan(marc, 0, marc.length);
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    for (int i = from; i < to; i++) {
+      decoder.decode(marc, slices.offset(i), slices.length(i), profiler);
+    }
+    return profile;
+  }
+
+  private static long count(Field list, String key, String name) {
+    for (Field entry : list.getValueAsList()) {
+      Map<String, Field> map = entry.getValueAsListMap();
+      if (map.get(key).getValueAsString().equals(name)) {
+        return map.get(map.containsKey(CorpusProfile.COUNT) ? CorpusProfile.COUNT : CorpusProfile.DISTINCT)
+            .getValueAsLong();
+      }
+    }
+    return 0;
+  }
+
+  @Test
+  public void testProfile() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    Map<String, Field> profile = profile(marc, 0, 1, 100).toField().getValueAsListMap();
+
+    assertEquals(1, profile.get(CorpusProfile.RECORDS).getValueAsLong());
+    Map<String, Field> length = profile.get(CorpusProfile.RECORD_LENGTH).getValueAsList().get(0).getValueAsListMap();
+    assertEquals(512, length.get(CorpusProfile.MIN).getValueAsLong());
+    assertEquals(1023, length.get(CorpusProfile.MAX).getValueAsLong());
+    assertEquals(1, length.get(CorpusProfile.COUNT).getValueAsLong());
+
+    Field tags = profile.get(CorpusProfile.TAGS);
+    assertEquals(12, tags.getValueAsList().size());
+    assertEquals(3, count(tags, CorpusProfile.TAG, "650"));
+    assertEquals(1, count(tags, CorpusProfile.TAG, "245"));
+    Field subfields = profile.get(CorpusProfile.SUBFIELDS);
+    assertEquals(3, count(subfields, CorpusProfile.SUBFIELD, "650$a"));
+    assertEquals(2, count(subfields, CorpusProfile.SUBFIELD, "650$v"));
+
+    Field distinct = profile.get(CorpusProfile.DISTINCT_VALUES);
+    assertEquals("001", distinct.getValueAsList().get(0).getValueAsListMap().get(CorpusProfile.FIELD).getValue());
+    assertEquals(3, count(distinct, CorpusProfile.FIELD, "650$a"));
+    // Both 650 $v are "Fiction."
+    assertEquals(1, count(distinct, CorpusProfile.FIELD, "650$v"));
+  }
+
+  @Test
+  public void testTopN() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    List<Field> tags = profile(marc, 0, 1, 2).toField().getValueAsListMap().get(CorpusProfile.TAGS).getValueAsList();
+    assertEquals(2, tags.size());
+    assertEquals("650", tags.get(0).getValueAsListMap().get(CorpusProfile.TAG).getValueAsString());
+    assertEquals("020", tags.get(1).getValueAsListMap().get(CorpusProfile.TAG).getValueAsString());
+  }
+
+  @Test
+  public void testMergeMatchesSingleProfile() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    CorpusProfile merged = profile(marc, 0, 1, 100);
+    merged.merge(profile(marc, 1, 2, 100));
+    assertEquals(profile(marc, 0, 2, 100).toField(), merged.toField());
+
+    merged.clear();
+    assertEquals(0, merged.getRecordCount());
+    assertEquals(
+        Collections.emptyList(), merged.toField().getValueAsListMap().get(CorpusProfile.TAGS).getValueAsList()
+    );
+  }
+
+  @Test
+  public void testPassesOnSelectedFields() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    CorpusProfile profile = new CorpusProfile(100);
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    new Iso2709Decoder().decode(
+        marc, 0, marc.length, new CorpusProfiler(builder, FieldSelector.of(true, Collections.singletonList("245$a")),
+            profile)
+    );
+    Map<String, Field> record = builder.getRecordField().getValueAsListMap();
+    assertEquals(1, builder.getFieldCount());
+    assertTrue(record.containsKey("245"));
+    assertEquals(12, profile.toField().getValueAsListMap().get(CorpusProfile.TAGS).getValueAsList().size());
+  }
+
+  @Test
+  public void testProfilesFromDirectory() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    FieldSelector selector = FieldSelector.of(true, Collections.singletonList("245$a"));
+    for (boolean allSubfields : new boolean[]{false, true}) {
+      CorpusProfile profile = new CorpusProfile(100);
+      FieldTreeBuilder builder = new FieldTreeBuilder();
+      CorpusProfiler profiler = new CorpusProfiler(builder, selector, allSubfields, profile);
+      profiler.directory(marc, 0, marc.length);
+      // Only the selected fields are decoded unless every subfield is profiled.
+      new Iso2709Decoder().setFieldSelector(allSubfields ? FieldSelector.ALL : selector)
+          .decode(marc, 0, marc.length, profiler);
+
+      assertEquals(1, builder.getFieldCount());
+      Map<String, Field> fields = profile.toField().getValueAsListMap();
+      Field tags = fields.get(CorpusProfile.TAGS);
+      assertEquals(12, tags.getValueAsList().size());
+      assertEquals(3, count(tags, CorpusProfile.TAG, "650"));
+      Field subfields = fields.get(CorpusProfile.SUBFIELDS);
+      assertEquals(1, count(subfields, CorpusProfile.SUBFIELD, "245$a"));
+      assertEquals(allSubfields ? 3 : 0, count(subfields, CorpusProfile.SUBFIELD, "650$a"));
+      Map<String, Field> length = fields.get(CorpusProfile.RECORD_LENGTH).getValueAsList().get(0).getValueAsListMap();
+      assertEquals(512, length.get(CorpusProfile.MIN).getValueAsLong());
+    }
+  }
+
+  @Test
+  public void testSketchAccuracy() {
+    HyperLogLog hll = new HyperLogLog(10);
+    CountMinSketch sketch = new CountMinSketch(4, 2048);
+    for (long i = 0; i < 100000; i++) {
+      hll.add(CorpusProfile.mix(i));
+      hll.add(CorpusProfile.mix(i));
+      sketch.add(i % 1000);
+    }
+    assertEquals(100000, hll.estimate(), 10000);
+    assertEquals(100000, sketch.total());
+    for (long key = 0; key < 1000; key++) {
+      long estimate = sketch.estimate(key);
+      assertTrue(estimate >= 100 && estimate < 100 + 100000 * Math.E / 2048 * 2);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDuplicateFilter {
+
+  private final AtomicLong clock = new AtomicLong();
+
+  @Test
+  public void testLatestTransaction() {
+    DuplicateFilter filter = new DuplicateFilter(10, 100, clock::get);
+    assertTrue(filter.remember("DLC", "1", "20170101000000.0"));
+    assertFalse(filter.remember("DLC", "1", "20170101000000.0"));
+    assertTrue(filter.isDuplicate("DLC", "1", "20161231000000.0"));
+    assertTrue(filter.isDuplicate("DLC", "1", null));
+    assertTrue(filter.remember("DLC", "1", "20170102000000.0"));
+    assertTrue(filter.isDuplicate("DLC", "1", "20170101000000.0"));
+    // Same control number from another source
+    assertTrue(filter.remember("OCoLC", "1", "20170101000000.0"));
+    assertTrue(filter.remember(null, "1", null));
+    assertTrue(filter.isDuplicate(null, "1", null));
+  }
+
+  @Test
+  public void testCheckDoesNotRemember() {
+    DuplicateFilter filter = new DuplicateFilter(10, 100, clock::get);
+    // A first copy that is checked but never passed on, say because it failed to parse, leaves no trace.
+    assertFalse(filter.isDuplicate(null, "1", null));
+    assertFalse(filter.isDuplicate(null, "1", null));
+    assertTrue(filter.remember(null, "1", null));
+    assertTrue(filter.isDuplicate(null, "1", null));
+    assertEquals(0, filter.size());
+    filter.commit();
+    assertEquals(1, filter.size());
+  }
+
+  @Test
+  public void testRollback() {
+    DuplicateFilter filter = new DuplicateFilter(10, 100, clock::get);
+    assertTrue(filter.remember(null, "1", null));
+    filter.commit();
+    assertTrue(filter.remember(null, "1", "20170101000000.0"));
+    assertTrue(filter.remember(null, "2", null));
+    // The batch that emitted them failed, so it will be replayed.
+    filter.rollback();
+    assertFalse(filter.isDuplicate(null, "1", "20170101000000.0"));
+    assertFalse(filter.isDuplicate(null, "2", null));
+    assertTrue(filter.isDuplicate(null, "1", null));
+  }
+
+  @Test
+  public void testLeastRecentlyRememberedIsEvicted() {
+    DuplicateFilter filter = new DuplicateFilter(2, 100, clock::get);
+    assertTrue(filter.remember(null, "1", null));
+    assertTrue(filter.remember(null, "2", null));
+    assertTrue(filter.isDuplicate(null, "1", null));
+    assertTrue(filter.remember(null, "3", null));
+    filter.commit();
+    assertEquals(2, filter.size());
+    // Finding 1 again did not keep it.
+    assertFalse(filter.isDuplicate(null, "1", null));
+    assertTrue(filter.isDuplicate(null, "2", null));
+  }
+
+  @Test
+  public void testTtl() {
+    DuplicateFilter filter = new DuplicateFilter(10, 100, clock::get);
+    assertTrue(filter.remember(null, "1", null));
+    clock.set(50);
+    assertTrue(filter.remember(null, "2", null));
+    filter.commit();
+    clock.set(60);
+    assertTrue(filter.isDuplicate(null, "1", null));
+    // The hit at 60 does not extend 1, which expires at 100; 2 expires at 150.
+    clock.set(120);
+    assertFalse(filter.isDuplicate(null, "1", null));
+    assertEquals(1, filter.size());
+    assertTrue(filter.isDuplicate(null, "2", null));
+    // A later 005 is remembered anew.
+    assertTrue(filter.remember(null, "2", "20170101000000.0"));
+    filter.commit();
+    clock.set(200);
+    assertTrue(filter.isDuplicate(null, "2", "20170101000000.0"));
+  }
+
+  @Test
+  public void testReadsDirectory() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    assertEquals("12883376", Iso2709Decoder.controlField(marc, 0, marc.length, "001"));
+    assertNull(Iso2709Decoder.controlField(marc, 0, marc.length, "007"));
+
+    DuplicateFilter filter = new DuplicateFilter(10, 100, clock::get);
+    assertFalse(filter.isDuplicate(marc, 0, marc.length));
+    assertTrue(filter.remember(marc, 0, marc.length));
+    assertTrue(filter.isDuplicate(marc, 0, marc.length));
+    assertFalse(filter.remember(marc, 0, marc.length));
+    assertTrue(filter.isDuplicate(
+        Iso2709Decoder.controlField(marc, 0, marc.length, "003"),
+        "12883376",
+        Iso2709Decoder.controlField(marc, 0, marc.length, "005")
+    ));
+  }
+}
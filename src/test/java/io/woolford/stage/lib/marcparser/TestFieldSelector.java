@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFieldSelector {
+
+  @Test
+  public void testInclude() {
+    FieldSelector selector = FieldSelector.of(true, Arrays.asList("001", "6XX", "245$a$c"));
+    assertTrue(selector.isSelected("001"));
+    assertFalse(selector.isSelected("005"));
+    assertTrue(selector.isSelected("600"));
+    assertTrue(selector.isSelected("650"));
+    assertTrue(selector.isSelected("650", 'v'));
+    assertFalse(selector.isSelected("700"));
+    assertTrue(selector.isSelected("245"));
+    assertTrue(selector.isSelected("245", 'a'));
+    assertTrue(selector.isSelected("245", 'c'));
+    assertFalse(selector.isSelected("245", 'b'));
+    assertTrue(selector.isSelected("650".getBytes(StandardCharsets.US_ASCII), 0));
+    assertFalse(selector.isSelected("100".getBytes(StandardCharsets.US_ASCII), 0));
+  }
+
+  @Test
+  public void testExclude() {
+    FieldSelector selector = FieldSelector.of(false, Arrays.asList("6XX", "245$b"));
+    assertTrue(selector.isSelected("001"));
+    assertFalse(selector.isSelected("650"));
+    assertTrue(selector.isSelected("245"));
+    assertTrue(selector.isSelected("245", 'a'));
+    assertFalse(selector.isSelected("245", 'b'));
+    assertTrue(selector.isSelected("FMT"));
+  }
+
+  @Test
+  public void testAll() {
+    assertTrue(FieldSelector.of(false, Collections.emptyList()).isSelected("999", '9'));
+    assertTrue(FieldSelector.ALL.isSelected("FMT", 'a'));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidTag() {
+    FieldSelector.of(true, Collections.singletonList("24"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSubfieldCode() {
+    FieldSelector.of(true, Collections.singletonList("245$ab"));
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestFingerprintStore {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testFingerprintIgnores005() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    RecordFingerprint fingerprint = new RecordFingerprint();
+    assertTrue(fingerprint.compute(marc, 0, marc.length));
+    long key = fingerprint.getKey();
+    long hash = fingerprint.getFingerprint();
+
+    // A later, longer 005 shifts the offsets of every field after it.
+    Record record = new MarcStreamReader(new ByteArrayInputStream(marc)).next();
+    ((ControlField) record.getVariableField("005")).setData("20240101120000.0123");
+    byte[] touched = write(record);
+    assertNotEquals(marc.length, touched.length);
+    assertTrue(fingerprint.compute(touched, 0, touched.length));
+    assertEquals(key, fingerprint.getKey());
+    assertEquals(hash, fingerprint.getFingerprint());
+
+    record.getDataFields().get(3).getSubfield('a').setData("Summerland!");
+    byte[] changed = write(record);
+    assertTrue(fingerprint.compute(changed, 0, changed.length));
+    assertEquals(key, fingerprint.getKey());
+    assertNotEquals(hash, fingerprint.getFingerprint());
+
+    record.removeVariableField(record.getVariableField("001"));
+    byte[] unkeyed = write(record);
+    assertFalse(fingerprint.compute(unkeyed, 0, unkeyed.length));
+  }
+
+  @Test
+  public void testCommitAndReopen() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("fingerprints");
+    FingerprintStore store = FingerprintStore.open(path);
+    assertFalse(store.isUnchanged(1, 10));
+    store.put(1, 10);
+    store.put(2, 20);
+    // Staged entries count within the batch.
+    assertTrue(store.isUnchanged(1, 10));
+    assertEquals(0, store.size());
+    store.commit();
+    assertEquals(2, store.size());
+
+    store.close();
+    store = FingerprintStore.open(path);
+    assertEquals(2, store.size());
+    assertTrue(store.isUnchanged(1, 10));
+    assertTrue(store.isUnchanged(2, 20));
+    assertFalse(store.isUnchanged(2, 21));
+    assertFalse(store.isUnchanged(3, 20));
+
+    store.put(2, 21);
+    store.commit();
+    store.close();
+    store = FingerprintStore.open(path);
+    assertEquals(2, store.size());
+    assertTrue(store.isUnchanged(2, 21));
+    store.close();
+  }
+
+  @Test
+  public void testRollback() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("fingerprints");
+    FingerprintStore store = FingerprintStore.open(path);
+    store.put(1, 10);
+    store.rollback();
+    assertFalse(store.isUnchanged(1, 10));
+    store.commit();
+    store.close();
+    store = FingerprintStore.open(path);
+    assertFalse(store.isUnchanged(1, 10));
+    store.close();
+  }
+
+  @Test
+  public void testJournalIsReplayed() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("fingerprints");
+    Path journal = folder.getRoot().toPath().resolve("fingerprints" + FingerprintStore.JOURNAL_SUFFIX);
+    FingerprintStore store = FingerprintStore.open(path);
+    store.put(1, 10);
+    // A crash after the journal was synced, before the table was updated.
+    store.writeJournal();
+
+    store.close();
+    store = FingerprintStore.open(path);
+    assertTrue(store.isUnchanged(1, 10));
+    assertEquals(1, store.size());
+    assertFalse(Files.exists(journal));
+    store.close();
+  }
+
+  @Test
+  public void testPartialJournalIsIgnored() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("fingerprints");
+    Path journal = folder.getRoot().toPath().resolve("fingerprints" + FingerprintStore.JOURNAL_SUFFIX);
+    FingerprintStore store = FingerprintStore.open(path);
+    store.put(1, 10);
+    store.writeJournal();
+    byte[] written = Files.readAllBytes(journal);
+    Files.write(journal, java.util.Arrays.copyOf(written, written.length - 3));
+
+    store.close();
+    store = FingerprintStore.open(path);
+    assertFalse(store.isUnchanged(1, 10));
+    assertEquals(0, store.size());
+    assertFalse(Files.exists(journal));
+    store.close();
+  }
+
+  @Test
+  public void testGrows() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("fingerprints");
+    FingerprintStore store = FingerprintStore.open(path);
+    long initialSize = Files.size(path);
+    for (int batch = 0; batch < 10; batch++) {
+      for (int i = 0; i < 1000; i++) {
+        long key = batch * 1000L + i + 1;
+        store.put(key * 0x9E3779B97F4A7C15L, key);
+      }
+      store.commit();
+    }
+    assertTrue(Files.size(path) > initialSize);
+
+    store.close();
+    store = FingerprintStore.open(path);
+    assertEquals(10000, store.size());
+    for (long key = 1; key <= 10000; key++) {
+      assertTrue(store.isUnchanged(key * 0x9E3779B97F4A7C15L, key));
+    }
+    store.close();
+  }
+
+  @Test
+  public void testSharedWithinJvm() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("fingerprints");
+    FingerprintStore first = FingerprintStore.open(path);
+    FingerprintStore second = FingerprintStore.open(path.getParent().resolve(".").resolve("fingerprints"));
+    first.put(1, 10);
+    // Staged entries belong to the instance that staged them.
+    assertFalse(second.isUnchanged(1, 10));
+    first.commit();
+    assertTrue(second.isUnchanged(1, 10));
+    assertEquals(1, second.size());
+
+    first.close();
+    second.put(2, 20);
+    second.commit();
+    assertEquals(2, second.size());
+    second.close();
+  }
+
+  @Test
+  public void testLocked() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("fingerprints");
+    Path lockFile = folder.getRoot().toPath().resolve("fingerprints" + FingerprintStore.LOCK_SUFFIX);
+    try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      channel.lock();
+      try {
+        FingerprintStore.open(path);
+        fail();
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("in use"));
+      }
+    }
+
+    // Closing the last instance releases the lock.
+    FingerprintStore.open(path).close();
+    try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+      assertNotNull(channel.tryLock());
+    }
+  }
+
+  private static byte[] write(Record record) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MarcStreamWriter writer = new MarcStreamWriter(out, "UTF8");
+    writer.write(record);
+    writer.close();
+    return out.toByteArray();
+  }
+}
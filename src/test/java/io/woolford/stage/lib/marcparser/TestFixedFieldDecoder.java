@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TestFixedFieldDecoder {
+
+  @Test
+  public void testBook() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    FieldSelector output = FieldSelector.of(true, Arrays.asList("245"));
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    FixedFieldDecoder fixed = new FixedFieldDecoder(builder, output);
+    Iso2709Decoder decoder = new Iso2709Decoder().setFieldSelector(output.withFields(FixedFieldDecoder.TAGS));
+    decoder.decode(marc, 0, marc.length, fixed);
+
+    Map<String, Field> leader = map(fixed.getFixedFields(), "leader");
+    assertEquals(Field.Type.INTEGER, leader.get("recordLength").getType());
+    assertEquals(714, leader.get("recordLength").getValueAsInteger());
+    assertEquals(205, leader.get("baseAddressOfData").getValueAsInteger());
+    assertEquals("a", leader.get("typeOfRecord").getValueAsString());
+    assertEquals("m", leader.get("bibliographicLevel").getValueAsString());
+    assertEquals("a", leader.get("characterCodingScheme").getValueAsString());
+    assertEquals("BK", leader.get(FixedFieldDecoder.MATERIAL_TYPE).getValueAsString());
+
+    // 020805s2002    nyu    j      000 1 eng
+    Map<String, Field> fixed008 = map(fixed.getFixedFields(), "008");
+    assertEquals("020805", fixed008.get("dateEnteredOnFile").getValueAsString());
+    assertEquals("s", fixed008.get("typeOfDate").getValueAsString());
+    assertEquals("2002", fixed008.get("date1").getValueAsString());
+    assertEquals("    ", fixed008.get("date2").getValueAsString());
+    assertEquals("nyu", fixed008.get("placeOfPublication").getValueAsString());
+    assertEquals("j", fixed008.get("targetAudience").getValueAsString());
+    assertEquals("1", fixed008.get("literaryForm").getValueAsString());
+    assertEquals("eng", fixed008.get("language").getValueAsString());
+    assertEquals(0, fixed.getFixedFields().getValueAsListMap().get("006").getValueAsList().size());
+
+    // The 008 is decoded but not passed on, as only the 245 is selected.
+    Map<String, Field> record = builder.getRecordField().getValueAsListMap();
+    assertFalse(record.containsKey("008"));
+    assertEquals(Arrays.asList("leader", "245"), Arrays.asList(record.keySet().toArray()));
+  }
+
+  @Test
+  public void testMaterialTypes() {
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    FixedFieldDecoder fixed = new FixedFieldDecoder(builder, FieldSelector.ALL);
+    fixed.startRecord("01234cjm a2200301 a 4500");
+    fixed.controlField("006", "m     o  d        ");
+    fixed.controlField("007", "sd fsngnnmmned");
+    fixed.controlField("007", "cr una---unuuu");
+    fixed.controlField("007", "ta");
+    fixed.controlField("008", "990601s1999    nyumun  n           eng d");
+    fixed.endRecord();
+
+    Field result = fixed.getFixedFields();
+    assertEquals("MU", map(result, "leader").get(FixedFieldDecoder.MATERIAL_TYPE).getValueAsString());
+    Map<String, Field> fixed008 = map(result, "008");
+    assertEquals("mu", fixed008.get("formOfComposition").getValueAsString());
+    assertEquals("n", fixed008.get("formatOfMusic").getValueAsString());
+    assertNull(fixed008.get("literaryForm"));
+
+    Map<String, Field> fixed006 = list(result, "006").get(0).getValueAsListMap();
+    assertEquals("m", fixed006.get("formOfMaterial").getValueAsString());
+    assertEquals("o", fixed006.get("formOfItem").getValueAsString());
+    assertEquals("d", fixed006.get("typeOfComputerFile").getValueAsString());
+
+    List<Field> fixed007 = list(result, "007");
+    assertEquals(3, fixed007.size());
+    assertEquals("f", fixed007.get(0).getValueAsListMap().get("speed").getValueAsString());
+    assertEquals("e", fixed007.get(0).getValueAsListMap().get("specialPlaybackCharacteristics").getValueAsString());
+    assertEquals("---", fixed007.get(1).getValueAsListMap().get("imageBitDepth").getValueAsString());
+    assertEquals(Arrays.asList("categoryOfMaterial", "specificMaterialDesignation"),
+        Arrays.asList(fixed007.get(2).getValueAsListMap().keySet().toArray()));
+
+    // The fixed fields are passed on unchanged.
+    assertEquals("m     o  d        ", builder.getRecordField().getValueAsListMap().get("006").getValueAsString());
+  }
+
+  @Test
+  public void testSerialAndShortFields() {
+    FixedFieldDecoder fixed = new FixedFieldDecoder(new FieldTreeBuilder(), FieldSelector.ALL);
+    fixed.startRecord("00000cas a22000007a 4500");
+    fixed.controlField("008", "750101c19759999");
+    fixed.endRecord();
+
+    assertEquals("CR", map(fixed.getFixedFields(), "leader").get(FixedFieldDecoder.MATERIAL_TYPE).getValueAsString());
+    Map<String, Field> fixed008 = map(fixed.getFixedFields(), "008");
+    assertEquals("9999", fixed008.get("date2").getValueAsString());
+    assertNull(fixed008.get("placeOfPublication"));
+    assertNull(fixed008.get("frequency"));
+  }
+
+  @Test
+  public void testAuthorityRecord() {
+    FixedFieldDecoder fixed = new FixedFieldDecoder(new FieldTreeBuilder(), FieldSelector.ALL);
+    fixed.startRecord("00000nz  a2200000n  4500");
+    fixed.controlField("008", "790322n| acannaabn          |a aaa      ");
+    fixed.endRecord();
+
+    Map<String, Field> fixedFields = fixed.getFixedFields().getValueAsListMap();
+    assertEquals("z", map(fixed.getFixedFields(), "leader").get("typeOfRecord").getValueAsString());
+    assertNull(map(fixed.getFixedFields(), "leader").get(FixedFieldDecoder.MATERIAL_TYPE));
+    assertFalse(fixedFields.containsKey("008"));
+  }
+
+  @Test
+  public void testNonNumericNumberIsNull() {
+    FixedFieldDecoder fixed = new FixedFieldDecoder(new FieldTreeBuilder(), FieldSelector.ALL);
+    fixed.startRecord("     nam a22     a 4500");
+    fixed.endRecord();
+
+    Map<String, Field> leader = map(fixed.getFixedFields(), "leader");
+    assertEquals(Field.Type.INTEGER, leader.get("recordLength").getType());
+    assertNull(leader.get("recordLength").getValue());
+    assertEquals(2, leader.get("indicatorCount").getValueAsInteger());
+  }
+
+  private static Map<String, Field> map(Field fixed, String key) {
+    return fixed.getValueAsListMap().get(key).getValueAsListMap();
+  }
+
+  private static List<Field> list(Field fixed, String key) {
+    return fixed.getValueAsListMap().get(key).getValueAsList();
+  }
+}
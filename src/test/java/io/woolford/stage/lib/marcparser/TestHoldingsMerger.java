@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestHoldingsMerger {
+
+  /**
+   * Collects what leaves the window as "id[holding ids]" for bibliographic records and "id?parent" for orphans.
+   */
+  private static class Collector implements HoldingsMerger.Output<String> {
+    private final List<String> out = new ArrayList<>();
+
+    @Override
+    public void bibliographic(String bib, Field root, int holdings) {
+      StringBuilder text = new StringBuilder(bib).append('[');
+      for (Field holding : root.getValueAsListMap().get(HoldingsMerger.HOLDINGS).getValueAsList()) {
+        text.append(holding.getValueAsListMap().get("id").getValueAsString());
+      }
+      assertEquals(holdings, root.getValueAsListMap().get(HoldingsMerger.HOLDINGS).getValueAsList().size());
+      out.add(text.append(']').toString());
+    }
+
+    @Override
+    public void orphan(String holdings, Field root, String parent) {
+      out.add(holdings + "?" + parent);
+    }
+  }
+
+  private static Field root(String id) {
+    LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+    root.put("id", Field.create(id));
+    return Field.createListMap(root);
+  }
+
+  private static void bib(HoldingsMerger<String> merger, String id, Collector output) {
+    merger.add(id, root(id), false, id, output);
+  }
+
+  private static void holdings(HoldingsMerger<String> merger, String id, String parent, Collector output) {
+    merger.add(id, root(id), true, parent, output);
+  }
+
+  @Test
+  public void testSortedExport() {
+    HoldingsMerger<String> merger = new HoldingsMerger<>(3);
+    Collector output = new Collector();
+    bib(merger, "a", output);
+    holdings(merger, "h1", "a", output);
+    holdings(merger, "h2", "a", output);
+    bib(merger, "b", output);
+    holdings(merger, "h3", "b", output);
+    bib(merger, "c", output);
+    merger.flush(output);
+    assertEquals(Arrays.asList("a[h1h2]", "b[h3]", "c[]"), output.out);
+    assertEquals(0, merger.size());
+  }
+
+  @Test
+  public void testHoldingsBeforeBib() {
+    HoldingsMerger<String> merger = new HoldingsMerger<>(4);
+    Collector output = new Collector();
+    holdings(merger, "h1", "a", output);
+    holdings(merger, "h2", "b", output);
+    bib(merger, "a", output);
+    bib(merger, "b", output);
+    assertEquals(4, merger.size());
+    merger.flush(output);
+    assertEquals(Arrays.asList("a[h1]", "b[h2]"), output.out);
+  }
+
+  @Test
+  public void testWindowBoundsMemory() {
+    HoldingsMerger<String> merger = new HoldingsMerger<>(2);
+    Collector output = new Collector();
+    bib(merger, "a", output);
+    holdings(merger, "h1", "a", output);
+    // Pushes a out with the holdings found so far; h2 comes too late.
+    bib(merger, "b", output);
+    assertEquals(Arrays.asList("a[h1]"), output.out);
+    holdings(merger, "h2", "a", output);
+    holdings(merger, "h3", "z", output);
+    assertEquals(2, merger.size());
+    merger.flush(output);
+    assertEquals(Arrays.asList("a[h1]", "b[]", "h2?a", "h3?z"), output.out);
+  }
+
+  @Test
+  public void testHoldingsWithoutParent() {
+    HoldingsMerger<String> merger = new HoldingsMerger<>(2);
+    Collector output = new Collector();
+    bib(merger, "a", output);
+    holdings(merger, "h1", null, output);
+    assertEquals(Arrays.asList("h1?null"), output.out);
+    merger.clear();
+    assertEquals(0, merger.size());
+    merger.flush(output);
+    assertEquals(1, output.out.size());
+  }
+
+  @Test
+  public void testIso2709() throws Exception {
+    MarcFactory factory = MarcFactory.newInstance();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MarcStreamWriter writer = new MarcStreamWriter(out, "UTF8");
+    Record bib = factory.newRecord("00000nam a2200000 a 4500");
+    bib.addVariableField(factory.newControlField("001", "ocm1 "));
+    writer.write(bib);
+    Record holdings = factory.newRecord("00000nx  a2200000n  4500");
+    holdings.addVariableField(factory.newControlField("001", "h1"));
+    holdings.addVariableField(factory.newControlField("004", "ocm1"));
+    writer.write(holdings);
+    writer.close();
+    byte[] mrc = out.toByteArray();
+    RecordSlices slices = new RecordSlices().scan(mrc, 0, mrc.length);
+
+    assertFalse(HoldingsMerger.isHoldings(mrc, slices.offset(0)));
+    assertTrue(HoldingsMerger.isHoldings(mrc, slices.offset(1)));
+    HoldingsMerger<String> merger = new HoldingsMerger<>(10);
+    Collector output = new Collector();
+    merger.add(mrc, slices.offset(0), slices.length(0), "a", root("a"), output);
+    merger.add(mrc, slices.offset(1), slices.length(1), "h1", root("h1"), output);
+    merger.flush(output);
+    assertEquals(Arrays.asList("a[h1]"), output.out);
+  }
+}
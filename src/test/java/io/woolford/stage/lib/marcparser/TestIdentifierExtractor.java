@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestIdentifierExtractor {
+
+  @Test
+  public void testIsbn() {
+    assertEquals("9780786808779", IdentifierExtractor.isbn13("0786808772"));
+    assertEquals("9780786816156", IdentifierExtractor.isbn13("0-7868-1615-5 (pbk.)"));
+    assertEquals("9780804429573", IdentifierExtractor.isbn13(" 080442957x"));
+    assertEquals("9780786808779", IdentifierExtractor.isbn13("978-0-7868-0877-9 : $15.99"));
+    assertEquals("9798600000001", IdentifierExtractor.isbn13("9798600000001"));
+    // Wrong check digits, lengths and X positions
+    assertNull(IdentifierExtractor.isbn13("0786808773"));
+    assertNull(IdentifierExtractor.isbn13("9780786808770"));
+    assertNull(IdentifierExtractor.isbn13("078680877"));
+    assertNull(IdentifierExtractor.isbn13("07868087720"));
+    assertNull(IdentifierExtractor.isbn13("X786808772"));
+    assertNull(IdentifierExtractor.isbn13("(pbk.)"));
+  }
+
+  @Test
+  public void testIssn() {
+    assertEquals("0028-0836", IdentifierExtractor.issn("0028-0836"));
+    assertEquals("1050-124X", IdentifierExtractor.issn("1050124x"));
+    assertNull(IdentifierExtractor.issn("0028-0837"));
+    assertNull(IdentifierExtractor.issn("0028-083"));
+  }
+
+  @Test
+  public void testLccn() {
+    assertEquals("n79001164", IdentifierExtractor.lccn("n  79-1164 "));
+    assertEquals("85000002", IdentifierExtractor.lccn("85-2 //r86"));
+    assertEquals("2001000002", IdentifierExtractor.lccn("2001-000002"));
+    assertEquals("00020472", IdentifierExtractor.lccn("   00020472 "));
+    assertNull(IdentifierExtractor.lccn("   "));
+  }
+
+  @Test
+  public void testOclc() {
+    assertEquals("12345", IdentifierExtractor.oclc("(OCoLC)ocm00012345"));
+    assertEquals("987654321", IdentifierExtractor.oclc("(OCoLC)ocn987654321"));
+    assertEquals("1234567890", IdentifierExtractor.oclc("(OCoLC)on1234567890"));
+    assertEquals("42", IdentifierExtractor.oclc("(OCoLC)42"));
+    assertNull(IdentifierExtractor.oclc("(DLC)12345"));
+    assertNull(IdentifierExtractor.oclc("(OCoLC)ocm"));
+  }
+
+  @Test
+  public void testCollectsWhileDecoding() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    FieldSelector output = FieldSelector.of(true, Arrays.asList("001", "245$a"));
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    IdentifierExtractor extractor = new IdentifierExtractor(builder, output);
+    new Iso2709Decoder()
+        .setFieldSelector(output.withFields(IdentifierExtractor.TAGS))
+        .decode(marc, 0, marc.length, extractor);
+
+    Map<String, Field> ids = extractor.getIdentifiers().getValueAsListMap();
+    assertEquals(
+        Arrays.asList(Field.create("9780786808779"), Field.create("9780786816156")),
+        ids.get("isbn").getValueAsList()
+    );
+    assertEquals(Collections.emptyList(), ids.get("oclc").getValueAsList());
+
+    // Identifier fields are read for /ids but only the selected fields reach the builder.
+    Map<String, Field> record = builder.getRecordField().getValueAsListMap();
+    assertEquals(Arrays.asList("leader", "001", "245"), Arrays.asList(record.keySet().toArray()));
+    assertEquals(
+        Arrays.asList("indicator1", "indicator2", "a"),
+        Arrays.asList(record.get("245").getValueAsList().get(0).getValueAsListMap().keySet().toArray())
+    );
+  }
+
+  @Test
+  public void testWithFieldsKeepsSelector() {
+    assertEquals(FieldSelector.ALL, FieldSelector.ALL.withFields(IdentifierExtractor.TAGS));
+    FieldSelector excluding = FieldSelector.of(false, Arrays.asList("0XX", "245"));
+    FieldSelector widened = excluding.withFields(IdentifierExtractor.TAGS);
+    assertFalse(widened.isSelected("245"));
+    assertFalse(widened.isSelected("040"));
+    assertTrue(widened.isSelected("020"));
+    assertTrue(widened.isSelected("035", 'z'));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestIso2709Encoder {
+
+  private static List<Field> decode(byte[] marc, OutputShape shape) {
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    FieldTreeBuilder builder = new FieldTreeBuilder().setOutputShape(shape);
+    RecordSlices slices = new RecordSlices().scan(marc, 0, marc.length);
+    List<Field> records = new ArrayList<>();
+    for (int i = 0; i < slices.size(); i++) {
+      decoder.decode(marc, slices.offset(i), slices.length(i), builder);
+      records.add(builder.getRecordField());
+    }
+    return records;
+  }
+
+  private static byte[] roundTrip(byte[] marc, OutputShape shape) {
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    FieldTreeBuilder builder = new FieldTreeBuilder().setOutputShape(shape);
+    Iso2709Encoder encoder = new Iso2709Encoder();
+    RecordSlices slices = new RecordSlices().scan(marc, 0, marc.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < slices.size(); i++) {
+      decoder.decode(marc, slices.offset(i), slices.length(i), builder);
+      byte[] record = encoder.encode(builder.getRecordField());
+      out.write(record, 0, record.length);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (String file : new String[]{"summerland.mrc", "chabon.mrc"}) {
+      byte[] marc = Files.readAllBytes(Paths.get("src/test/resources", file));
+      for (OutputShape shape : new OutputShape[]{OutputShape.VERBOSE, OutputShape.SCALAR_WHEN_SINGLE}) {
+        assertEquals(file + " " + shape, decode(marc, shape), decode(roundTrip(marc, shape), shape));
+      }
+    }
+  }
+
+  @Test
+  public void testRoundTripIsByteExactWhenTagsAreContiguous() throws IOException {
+    // Unlike chabon.mrc, whose first record has a 651 between its 650s, summerland.mrc keeps each tag together.
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    assertArrayEquals(marc, roundTrip(marc, OutputShape.VERBOSE));
+  }
+
+  @Test
+  public void testComputesLeaderAndDirectory() {
+    LinkedHashMap<String, Field> subfields = new LinkedHashMap<>();
+    subfields.put(MarcKeys.INDICATOR1, Field.create('1'));
+    subfields.put(MarcKeys.INDICATOR2, Field.create("0"));
+    subfields.put("a", Field.create(Arrays.asList(Field.create("Caf\u00E9 /"))));
+    LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+    // Record length, base address and leader/09 are recomputed
+    root.put(MarcKeys.LEADER, Field.create("99999nam  9999999 a 4500"));
+    root.put("001", Field.create("42"));
+    root.put("245", Field.create(Arrays.asList(Field.createListMap(subfields))));
+    root.put("ids", Field.create(new LinkedHashMap<String, Field>()));
+
+    byte[] marc = new Iso2709Encoder().encode(Field.createListMap(root));
+    Record record = new MarcStreamReader(new ByteArrayInputStream(marc)).next();
+    assertEquals("00065nam a2200049 a 4500", record.getLeader().marshal());
+    assertEquals("42", record.getControlNumber());
+    assertEquals("Caf\u00E9 /", ((DataField) record.getVariableField("245")).getSubfield('a').getData());
+    assertEquals(marc.length, record.getLeader().getRecordLength());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingLeader() {
+    new Iso2709Encoder().encode(Field.createListMap(new LinkedHashMap<>()));
+  }
+
+  @Test
+  public void testReadableByMarc4j() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(roundTrip(marc, OutputShape.VERBOSE)));
+    assertEquals("11939876", reader.next().getControlNumber());
+    Record summerland = reader.next();
+    assertEquals("12883376", summerland.getControlNumber());
+    assertEquals(3, summerland.getVariableFields("650").size());
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestIso2709StreamReader {
+
+  /**
+   * Hands out at most {@code max} bytes per read, as decompressing streams may.
+   */
+  private static InputStream trickle(byte[] data, int max) {
+    return new FilterInputStream(new ByteArrayInputStream(data)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, max));
+      }
+    };
+  }
+
+  @Test
+  public void testMatchesRecordSlices() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < 50; i++) {
+      out.write(Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc")));
+    }
+    byte[] marc = out.toByteArray();
+    RecordSlices slices = new RecordSlices().scan(marc, 0, marc.length);
+    for (int max : new int[]{7, 1000, marc.length}) {
+      Iso2709StreamReader reader = new Iso2709StreamReader(trickle(marc, max));
+      for (int i = 0; i < slices.size(); i++) {
+        assertTrue(reader.next());
+        assertEquals(slices.offset(i), reader.position());
+        assertArrayEquals(
+            Arrays.copyOfRange(marc, slices.offset(i), slices.offset(i) + slices.length(i)),
+            Arrays.copyOf(reader.buffer(), reader.length())
+        );
+      }
+      assertFalse(reader.next());
+      assertEquals(marc.length, reader.position());
+    }
+  }
+
+  @Test
+  public void testTrailingBytes() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    byte[] padded = Arrays.copyOf(marc, marc.length + 2);
+    padded[marc.length] = '\r';
+    padded[marc.length + 1] = '\n';
+    Iso2709StreamReader reader = new Iso2709StreamReader(new ByteArrayInputStream(padded));
+    assertTrue(reader.next());
+    assertFalse(reader.next());
+
+    byte[] truncated = "00100cam".getBytes(StandardCharsets.US_ASCII);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(marc);
+    out.write(truncated);
+    reader = new Iso2709StreamReader(new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(reader.next());
+    assertTrue(reader.next());
+    assertEquals(marc.length, reader.position());
+    assertArrayEquals(truncated, Arrays.copyOf(reader.buffer(), reader.length()));
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testRecordTooLong() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    byte[] data = Arrays.copyOf(marc, marc.length + Iso2709Decoder.MAX_RECORD_LENGTH + 1);
+    Arrays.fill(data, marc.length, data.length, (byte) 'x');
+    Iso2709StreamReader reader = new Iso2709StreamReader(trickle(data, 1000));
+    assertTrue(reader.next());
+    try {
+      reader.next();
+      fail();
+    } catch (MarcFormatException e) {
+      assertEquals(marc.length, e.getOffset());
+    }
+  }
+
+  @Test
+  public void testLostRecordTerminator() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    int first = Iso2709Decoder.recordLength(marc, 0, marc.length);
+    marc[first - 1] = ' ';
+
+    // Both split at the length in the first leader, so only the first record is lost.
+    RecordSlices slices = new RecordSlices().scan(marc, 0, marc.length);
+    assertEquals(2, slices.size());
+    assertEquals(first, slices.length(0));
+    Iso2709StreamReader reader = new Iso2709StreamReader(trickle(marc, 100));
+    assertTrue(reader.next());
+    assertEquals(first, reader.length());
+    assertTrue(reader.next());
+    assertEquals(first, reader.position());
+    assertEquals(marc.length - first, reader.length());
+    assertFalse(reader.next());
+
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    try {
+      decoder.decode(marc, 0, first, builder);
+      fail();
+    } catch (MarcFormatException e) {
+      assertEquals(first - 1, e.getOffset());
+    }
+    decoder.decode(marc, slices.offset(1), slices.length(1), builder);
+    assertEquals("12883376", builder.getRecordField().getValueAsListMap().get("001").getValueAsString());
+  }
+
+  @Test
+  public void testRecordLengthMismatch() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    marc[4]++;
+    try {
+      new Iso2709Decoder().decode(marc, 0, marc.length, new FieldTreeBuilder());
+      fail();
+    } catch (MarcFormatException e) {
+      assertEquals(0, e.getOffset());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestIso2709Validator {
+
+  private static byte[] read(String name) throws IOException {
+    return Files.readAllBytes(Paths.get("src/test/resources/" + name));
+  }
+
+  @Test
+  public void testValidRecords() throws IOException {
+    Iso2709Validator validator = new Iso2709Validator(10);
+    for (String name : new String[]{"summerland.mrc", "chabon.mrc"}) {
+      byte[] mrc = read(name);
+      validator.validate(mrc, 0, mrc.length);
+      assertEquals(name + ": " + validator.getViolations(), 0, validator.getViolationCount());
+      assertEquals(0, validator.getInvalidRecordCount());
+      assertTrue(validator.getRecordCount() > 0);
+      assertTrue(validator.getFieldCount() > validator.getRecordCount());
+    }
+  }
+
+  @Test
+  public void testRecordLength() throws IOException {
+    byte[] mrc = read("chabon.mrc");
+    int second = Iso2709Decoder.recordLength(mrc, 0, mrc.length);
+    mrc[second + 4]++;
+    Iso2709Validator validator = new Iso2709Validator(10).validate(mrc, 0, mrc.length);
+    assertEquals(1, validator.getViolationCount());
+    assertEquals(1, validator.getInvalidRecordCount());
+    Iso2709Validator.Violation violation = validator.getViolations().get(0);
+    assertEquals(1, violation.getRecord());
+    assertEquals(second, violation.getOffset());
+    assertTrue(violation.getMessage(), violation.getMessage().startsWith("Record length"));
+  }
+
+  @Test
+  public void testFieldStructure() throws IOException {
+    byte[] mrc = read("summerland.mrc");
+    int base = Iso2709Decoder.parseNumber(mrc, 12, 5);
+    // The last field of the record: its terminator, then its first subfield code.
+    int entry = base - 1 - Iso2709Decoder.DIRECTORY_ENTRY_LENGTH;
+    int start = base + Iso2709Decoder.parseNumber(mrc, entry + 7, 5);
+    int end = start + Iso2709Decoder.parseNumber(mrc, entry + 3, 4);
+    mrc[end - 1] = 'x';
+    mrc[start + 3] = '$';
+    Iso2709Validator validator = new Iso2709Validator(10).validate(mrc, 0, mrc.length);
+    assertEquals(
+        Arrays.asList("Missing field terminator", "Invalid subfield code"),
+        Arrays.asList(validator.getViolations().get(0).getMessage(), validator.getViolations().get(1).getMessage())
+    );
+    assertEquals(end - 1, validator.getViolations().get(0).getOffset());
+    assertEquals(start + 2, validator.getViolations().get(1).getOffset());
+    assertEquals(1, validator.getInvalidRecordCount());
+  }
+
+  @Test
+  public void testTruncatedAndGarbage() throws IOException {
+    byte[] mrc = read("summerland.mrc");
+    byte[] input = Arrays.copyOf(mrc, mrc.length + 10);
+    System.arraycopy("0001 junk\n".getBytes(), 0, input, mrc.length, 10);
+    Iso2709Validator validator = new Iso2709Validator(10).validate(input, 0, input.length);
+    assertEquals(2, validator.getRecordCount());
+    assertEquals(1, validator.getInvalidRecordCount());
+    assertEquals(Arrays.asList("Missing record terminator", "Truncated leader"), Arrays.asList(
+        validator.getViolations().get(0).getMessage(), validator.getViolations().get(1).getMessage()
+    ));
+
+    validator.validate(mrc, 0, 100);
+    assertEquals(1, validator.getInvalidRecordCount());
+    assertEquals("Missing record terminator", validator.getViolations().get(0).getMessage());
+  }
+
+  @Test
+  public void testMaxViolations() throws IOException {
+    byte[] mrc = read("chabon.mrc");
+    for (int offset = 0; offset < mrc.length; offset = Iso2709Decoder.recordLength(mrc, offset, mrc.length) + offset) {
+      mrc[offset + 10] = '3';
+    }
+    Iso2709Validator validator = new Iso2709Validator(1).validate(mrc, 0, mrc.length);
+    assertEquals(validator.getRecordCount(), validator.getViolationCount());
+    assertEquals(1, validator.getViolations().size());
+  }
+}
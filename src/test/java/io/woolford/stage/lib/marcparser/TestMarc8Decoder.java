@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.converter.impl.AnselToUnicode;
+import org.marc4j.converter.impl.UnicodeToAnsel;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMarc8Decoder {
+
+  private static String decode(String marc8) {
+    byte[] bytes = marc8.getBytes(StandardCharsets.ISO_8859_1);
+    return new Marc8Decoder().decode(bytes, 0, bytes.length);
+  }
+
+  @Test
+  public void testAscii() {
+    assertEquals("Summerland /", decode("Summerland /"));
+  }
+
+  @Test
+  public void testCombiningMarkFollowsBase() {
+    // ANSEL 0xE2 is the combining acute accent, written before its base letter.
+    assertEquals("Cafe\u0301 cre\u0300me", decode("Caf\u00E2e cr\u00E1eme"));
+  }
+
+  @Test
+  public void testEscapeSequences() {
+    // Basic Greek in G0, then back to ASCII
+    assertEquals("\u0391\u0392 x", decode("\u001B(SAB\u001B(B x"));
+    // Subscript and superscript digits
+    assertEquals("H\u2082O x\u00B2", decode("H\u001Bb2\u001BsO x\u001Bp2\u001Bs"));
+    // East Asian, three bytes per character
+    assertEquals("\u4E00\u4E16", decode("\u001B$1!0!!0-\u001B(B"));
+  }
+
+  @Test
+  public void testMatchesMarc4j() throws IOException {
+    String[] samples = {
+        "Caf\u00E2e cr\u00E1eme br\u00E3ul\u00E2ee", "\u001B(SABGD\u001B(B and \u001B$1!0!\u001B(B",
+        "\u00E8Uber \u00E4Angstr\u00E8om", "Pr\u00F0ague \u0088The\u0089 title"
+    };
+    AnselToUnicode marc4j = new AnselToUnicode();
+    for (String sample : samples) {
+      assertEquals(sample, marc4j.convert(sample), decode(sample));
+    }
+  }
+
+  @Test
+  public void testRecordsMatchMarc4j() throws IOException {
+    byte[] marc8 = toMarc8(Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc")));
+
+    List<Field> expected = new ArrayList<>();
+    MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(marc8), "MARC8");
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    while (reader.hasNext()) {
+      Marc4jRecords.replay(reader.next(), FieldSelector.ALL, builder);
+      expected.add(builder.getRecordField());
+    }
+
+    List<Field> actual = new ArrayList<>();
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    RecordSlices slices = new RecordSlices().scan(marc8, 0, marc8.length);
+    for (int i = 0; i < slices.size(); i++) {
+      decoder.decode(marc8, slices.offset(i), slices.length(i), builder);
+      actual.add(builder.getRecordField());
+    }
+
+    assertEquals(expected, actual);
+    Field note = actual.get(0).getValueAsListMap().get("500").getValueAsList().get(0);
+    assertEquals(
+        "Caf\u00E9 \u0391\u03B2\u03B3 \u4E00",
+        java.text.Normalizer.normalize(
+            note.getValueAsListMap().get("a").getValueAsList().get(0).getValueAsString(),
+            java.text.Normalizer.Form.NFC
+        )
+    );
+  }
+
+  /**
+   * Rewrites UTF-8 records as MARC-8, with a note holding accented, Greek and East Asian text added to each.
+   */
+  private static byte[] toMarc8(byte[] utf8) {
+    MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(utf8));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MarcStreamWriter writer = new MarcStreamWriter(out, "ISO8859_1");
+    writer.setConverter(new UnicodeToAnsel());
+    MarcFactory factory = MarcFactory.newInstance();
+    while (reader.hasNext()) {
+      Record record = reader.next();
+      record.getLeader().setCharCodingScheme(' ');
+      DataField note = factory.newDataField("500", ' ', ' ');
+      note.addSubfield(factory.newSubfield('a', "Cafe\u0301 \u0391\u03B2\u03B3 \u4E00"));
+      record.addVariableField(note);
+      writer.write(record);
+    }
+    writer.close();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestOutputShapes {
+
+  private static List<Field> decodeNative(byte[] marc, OutputShape shape) {
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    FieldTreeBuilder builder = new FieldTreeBuilder().setOutputShape(shape);
+    List<Field> records = new ArrayList<>();
+    int position = 0;
+    while (position < marc.length) {
+      int length = Iso2709Decoder.recordLength(marc, position, marc.length);
+      decoder.decode(marc, position, length, builder);
+      records.add(builder.getRecordField());
+      position += length;
+    }
+    return records;
+  }
+
+  private static List<Field> decodeMarc4j(byte[] marc, OutputShape shape) {
+    MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(marc));
+    FieldTreeBuilder builder = new FieldTreeBuilder().setOutputShape(shape);
+    List<Field> records = new ArrayList<>();
+    while (reader.hasNext()) {
+      Marc4jRecords.replay(reader.next(), FieldSelector.ALL, builder);
+      records.add(builder.getRecordField());
+    }
+    return records;
+  }
+
+  private static Field summerland(OutputShape shape) throws IOException {
+    return decodeNative(Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc")), shape).get(0);
+  }
+
+  @Test
+  public void testMarc4jReplayMatchesNative() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    for (OutputShape shape : OutputShape.values()) {
+      assertEquals(shape.name(), decodeNative(marc, shape), decodeMarc4j(marc, shape));
+    }
+  }
+
+  @Test
+  public void testScalarWhenSingle() throws IOException {
+    Map<String, Field> record = summerland(OutputShape.SCALAR_WHEN_SINGLE).getValueAsListMap();
+    assertEquals("12883376", record.get("001").getValueAsString());
+
+    Field field245 = record.get("245");
+    assertEquals(Field.Type.LIST_MAP, field245.getType());
+    assertEquals('1', field245.getValueAsListMap().get("indicator1").getValueAsChar());
+    assertEquals("Summerland /", field245.getValueAsListMap().get("a").getValueAsString());
+
+    Field field650 = record.get("650");
+    assertEquals(Field.Type.LIST, field650.getType());
+    assertEquals(
+        "Baseball",
+        field650.getValueAsList().get(1).getValueAsListMap().get("a").getValueAsString()
+    );
+  }
+
+  @Test
+  public void testFlat() throws IOException {
+    Map<String, Field> record = summerland(OutputShape.FLAT).getValueAsListMap();
+    assertEquals("00714cam a2200205 a 4500", record.get("leader").getValueAsString());
+    assertEquals("12883376", record.get("001").getValueAsString());
+    assertEquals(Arrays.asList(Field.create("10")), record.get("245_ind").getValueAsList());
+    assertEquals(Arrays.asList(Field.create("Summerland /")), record.get("245_a").getValueAsList());
+    assertEquals(2, record.get("020_a").getValueAsList().size());
+    assertEquals("Baseball", record.get("650_a").getValueAsList().get(1).getValueAsString());
+    for (Map.Entry<String, Field> entry : record.entrySet()) {
+      if (entry.getKey().contains("_")) {
+        assertEquals(entry.getKey(), Field.Type.LIST, entry.getValue().getType());
+      }
+    }
+  }
+
+  @Test
+  public void testShapesShrinkFieldCount() throws IOException {
+    int verbose = count(summerland(OutputShape.VERBOSE));
+    int scalar = count(summerland(OutputShape.SCALAR_WHEN_SINGLE));
+    int flat = count(summerland(OutputShape.FLAT));
+    assertTrue(scalar < verbose);
+    assertTrue(flat < verbose);
+  }
+
+  private static int count(Field field) {
+    int count = 1;
+    if (field.getType() == Field.Type.LIST) {
+      for (Field child : field.getValueAsList()) {
+        count += count(child);
+      }
+    } else if (field.getType() == Field.Type.LIST_MAP) {
+      for (Field child : field.getValueAsListMap().values()) {
+        count += count(child);
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+import org.marc4j.MarcJsonReader;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestRecordSerializers {
+
+  private static final String ODD_TEXT = "Quote \" backslash \\ tab \t e\u0301 \u4E00 \uD83D\uDCD6";
+
+  /**
+   * Adds a note holding text that needs escaping and multi-byte UTF-8 to the first record.
+   */
+  private static byte[] chabonWithOddText() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(marc));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MarcStreamWriter writer = new MarcStreamWriter(out, "UTF8");
+    MarcFactory factory = MarcFactory.newInstance();
+    boolean first = true;
+    while (reader.hasNext()) {
+      Record record = reader.next();
+      if (first) {
+        DataField note = factory.newDataField("500", ' ', ' ');
+        note.addSubfield(factory.newSubfield('a', ODD_TEXT));
+        record.addVariableField(note);
+        first = false;
+      }
+      writer.write(record);
+    }
+    writer.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes every record of {@code marc} with {@code handler}, passing it to {@code collect} after each one.
+   */
+  private static <T extends MarcRecordHandler> void decode(byte[] marc, T handler, Consumer<T> collect) {
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    RecordSlices slices = new RecordSlices().scan(marc, 0, marc.length);
+    for (int i = 0; i < slices.size(); i++) {
+      decoder.decode(marc, slices.offset(i), slices.length(i), handler);
+      collect.accept(handler);
+    }
+  }
+
+  private static List<Field> fieldTrees(byte[] marc) {
+    List<Field> records = new ArrayList<>();
+    decode(marc, new FieldTreeBuilder(), builder -> records.add(builder.getRecordField()));
+    return records;
+  }
+
+  @Test
+  public void testJsonReadsBackWithMarc4j() throws IOException {
+    byte[] marc = chabonWithOddText();
+    List<byte[]> json = new ArrayList<>();
+    List<String> controlNumbers = new ArrayList<>();
+    decode(marc, new JsonRecordSerializer(), serializer -> {
+      json.add(serializer.getBytes());
+      controlNumbers.add(serializer.getControlNumber());
+    });
+
+    List<Field> actual = new ArrayList<>();
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    for (byte[] record : json) {
+      MarcReader reader = new MarcJsonReader(
+          new InputStreamReader(new ByteArrayInputStream(record), StandardCharsets.UTF_8)
+      );
+      Marc4jRecords.replay(reader.next(), FieldSelector.ALL, builder);
+      actual.add(builder.getRecordField());
+    }
+    assertEquals(fieldTrees(marc), actual);
+    assertEquals(fieldTrees(marc).get(0).getValueAsListMap().get("001").getValueAsString(), controlNumbers.get(0));
+    assertEquals("{\"leader\":", new String(json.get(0), 0, 10, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testAvroDecodesToTheSameRecords() throws IOException {
+    byte[] marc = chabonWithOddText();
+    List<Field> actual = new ArrayList<>();
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    List<String> controlNumbers = new ArrayList<>();
+    decode(marc, new AvroRecordSerializer(), serializer -> {
+      controlNumbers.add(new AvroReader(serializer.getBytes()).replay(builder));
+      actual.add(builder.getRecordField());
+    });
+    List<Field> expected = fieldTrees(marc);
+    assertEquals(expected, actual);
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getValueAsListMap().get("001").getValueAsString(), controlNumbers.get(i));
+    }
+  }
+
+  @Test
+  public void testAvroWithoutControlNumber() {
+    AvroRecordSerializer serializer = new AvroRecordSerializer();
+    serializer.startRecord("00000nam a2200000 a 4500");
+    serializer.endRecord();
+    assertNull(serializer.getControlNumber());
+    assertNull(new AvroReader(serializer.getBytes()).replay(new FieldTreeBuilder()));
+    assertEquals(0, serializer.getFieldCount());
+  }
+
+  /**
+   * Reads records of {@link AvroRecordSerializer#SCHEMA} back, following the Avro binary encoding.
+   */
+  private static final class AvroReader {
+    private final byte[] buf;
+    private int position;
+
+    AvroReader(byte[] buf) {
+      this.buf = buf;
+    }
+
+    /**
+     * @return The control number
+     */
+    String replay(MarcRecordHandler handler) {
+      handler.startRecord(readString());
+      String controlNumber = readLong() == 0 ? null : readString();
+      for (long count = readLong(); count != 0; count = readLong()) {
+        for (long i = 0; i < count; i++) {
+          handler.controlField(readString(), readString());
+        }
+      }
+      for (long count = readLong(); count != 0; count = readLong()) {
+        for (long i = 0; i < count; i++) {
+          handler.startDataField(readString(), readString().charAt(0), readString().charAt(0));
+          for (long subfields = readLong(); subfields != 0; subfields = readLong()) {
+            for (long j = 0; j < subfields; j++) {
+              handler.subfield(readString().charAt(0), readString());
+            }
+          }
+          handler.endDataField();
+        }
+      }
+      handler.endRecord();
+      assertEquals(buf.length, position);
+      return controlNumber;
+    }
+
+    private long readLong() {
+      long n = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = buf[position++] & 0xFF;
+        n |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return (n >>> 1) ^ -(n & 1);
+    }
+
+    private String readString() {
+      int length = (int) readLong();
+      String s = new String(buf, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return s;
+    }
+  }
+}
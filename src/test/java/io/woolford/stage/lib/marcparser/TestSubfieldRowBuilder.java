@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.lib.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestSubfieldRowBuilder {
+
+  private static Map<String, Field> row(List<Field> rows, int index) {
+    return rows.get(index).getValueAsListMap();
+  }
+
+  @Test
+  public void testRows() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    SubfieldRowBuilder rows = new SubfieldRowBuilder();
+    new Iso2709Decoder().decode(marc, 0, marc.length, rows);
+    List<Field> result = rows.getRecordField().getValueAsList();
+    assertEquals(1 + rows.getSubfieldCount() + 3, result.size());
+
+    Map<String, Field> leader = row(result, 0);
+    assertEquals(MarcKeys.LEADER, leader.get(SubfieldRowBuilder.TAG).getValueAsString());
+    assertEquals("00714cam a2200205 a 4500", leader.get(SubfieldRowBuilder.VALUE).getValueAsString());
+    assertEquals("12883376", leader.get(SubfieldRowBuilder.CONTROL_NUMBER).getValueAsString());
+    assertNull(leader.get(SubfieldRowBuilder.CODE).getValue());
+
+    Map<String, Field> controlNumber = row(result, 1);
+    assertEquals("001", controlNumber.get(SubfieldRowBuilder.TAG).getValueAsString());
+    assertEquals(0, controlNumber.get(SubfieldRowBuilder.FIELD_OCCURRENCE).getValueAsInteger());
+    assertNull(controlNumber.get(SubfieldRowBuilder.SUBFIELD_OCCURRENCE).getValue());
+
+    for (Field field : result) {
+      Map<String, Field> row = field.getValueAsListMap();
+      assertEquals(8, row.size());
+      if ("245".equals(row.get(SubfieldRowBuilder.TAG).getValueAsString())
+          && "a".equals(row.get(SubfieldRowBuilder.CODE).getValueAsString())) {
+        assertEquals("Summerland /", row.get(SubfieldRowBuilder.VALUE).getValueAsString());
+        assertEquals('1', row.get(MarcKeys.INDICATOR1).getValueAsChar());
+        assertEquals(0, row.get(SubfieldRowBuilder.SUBFIELD_OCCURRENCE).getValueAsInteger());
+      }
+    }
+  }
+
+  /**
+   * Every subfield row points at its value in the verbose field tree of the same record.
+   */
+  @Test
+  public void testMatchesFieldTree() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    RecordSlices slices = new RecordSlices().scan(marc, 0, marc.length);
+    Iso2709Decoder decoder = new Iso2709Decoder();
+    FieldTreeBuilder tree = new FieldTreeBuilder();
+    SubfieldRowBuilder rows = new SubfieldRowBuilder();
+    Field firstTag = null;
+    for (int i = 0; i < slices.size(); i++) {
+      decoder.decode(marc, slices.offset(i), slices.length(i), tree);
+      decoder.decode(marc, slices.offset(i), slices.length(i), rows);
+      Map<String, Field> root = tree.getRecordField().getValueAsListMap();
+      int subfields = 0;
+      for (Field field : rows.getRecordField().getValueAsList()) {
+        Map<String, Field> row = field.getValueAsListMap();
+        assertEquals(root.get("001"), row.get(SubfieldRowBuilder.CONTROL_NUMBER));
+        if (row.get(SubfieldRowBuilder.CODE).getValue() == null) {
+          continue;
+        }
+        subfields++;
+        Map<String, Field> dataField = root.get(row.get(SubfieldRowBuilder.TAG).getValueAsString()).getValueAsList()
+            .get(row.get(SubfieldRowBuilder.FIELD_OCCURRENCE).getValueAsInteger()).getValueAsListMap();
+        assertEquals(dataField.get(MarcKeys.INDICATOR2), row.get(MarcKeys.INDICATOR2));
+        assertEquals(
+            dataField.get(row.get(SubfieldRowBuilder.CODE).getValueAsString()).getValueAsList()
+                .get(row.get(SubfieldRowBuilder.SUBFIELD_OCCURRENCE).getValueAsInteger()),
+            row.get(SubfieldRowBuilder.VALUE)
+        );
+      }
+      assertEquals(tree.getSubfieldCount(), subfields);
+      assertEquals(tree.getFieldCount(), rows.getFieldCount());
+
+      // Rows may become records of their own, so no field is shared across records, only the interned tag.
+      Field tag = row(rows.getRecordField().getValueAsList(), 1).get(SubfieldRowBuilder.TAG);
+      if (firstTag != null) {
+        assertNotSame(firstTag, tag);
+        assertSame(firstTag.getValueAsString(), tag.getValueAsString());
+      }
+      firstTag = tag;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.origin.marcfile;
+
+import com.streamsets.pipeline.api.Record;
+import com.streamsets.pipeline.sdk.PushSourceRunner;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMarcFileSource {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private List<Record> errors;
+
+  private List<Record> produce(Map<String, String> lastOffsets) throws Exception {
+    return produce(lastOffsets, new byte[0]);
+  }
+
+  private List<Record> produce(Map<String, String> lastOffsets, byte[] prefix) throws Exception {
+    File dir = folder.newFolder();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(prefix);
+    bytes.write(Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc")));
+    Files.write(dir.toPath().resolve("chabon.mrc"), bytes.toByteArray());
+
+    PushSourceRunner runner = new PushSourceRunner.Builder(MarcFileDSource.class)
+        .addConfiguration("directory", dir.getAbsolutePath())
+        .addConfiguration("fileNamePattern", "*.mrc")
+        .addConfiguration("numberOfThreads", 2)
+        .addConfiguration("maxBatchSize", 10)
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+
+    List<Record> records = Collections.synchronizedList(new ArrayList<>());
+    try {
+      runner.runProduce(lastOffsets, 10, output -> {
+        records.addAll(output.getRecords().get("output"));
+        runner.setStop();
+      });
+      runner.waitOnProduce();
+      errors = runner.getErrorRecords();
+    } finally {
+      runner.runDestroy();
+    }
+    return records;
+  }
+
+  @Test
+  public void testReadsAllRecords() throws Exception {
+    List<Record> records = produce(Collections.emptyMap());
+    assertEquals(2, records.size());
+    assertEquals("11939876", records.get(0).get("/001").getValueAsString());
+    assertEquals("12883376", records.get(1).get("/001").getValueAsString());
+    assertEquals("Summerland /", records.get(1).get("/245[0]/a[0]").getValueAsString());
+  }
+
+  @Test
+  public void testResumesAtRecordBoundary() throws Exception {
+    // The first record in chabon.mrc is 759 bytes long.
+    List<Record> records = produce(Collections.singletonMap("chabon.mrc", "759"));
+    assertEquals(1, records.size());
+    assertEquals("12883376", records.get(0).get("/001").getValueAsString());
+  }
+
+  @Test
+  public void testSkipsOverlongRecord() throws Exception {
+    // Longer than the read buffer, so the record is cut off at the cap rather than decoded and rejected.
+    byte[] prefix = new byte[2 * 1024 * 1024];
+    Arrays.fill(prefix, (byte) 'x');
+    prefix[prefix.length - 1] = Iso2709Decoder.RECORD_TERMINATOR;
+
+    List<Record> records = produce(Collections.emptyMap(), prefix);
+    assertEquals(2, records.size());
+    assertEquals("11939876", records.get(0).get("/001").getValueAsString());
+    assertEquals(1, errors.size());
+    assertEquals("chabon.mrc::0", errors.get(0).getHeader().getSourceId());
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import io.woolford.stage.lib.marcparser.FieldSelector;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.MarcFormatException;
+import io.woolford.stage.lib.marcparser.MarcXmlDecoder;
+import org.junit.Test;
+import org.marc4j.MarcJsonReader;
+import org.marc4j.MarcJsonWriter;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestInputFormats {
+
+  private static List<Field> decodeIso2709(byte[] marc, FieldSelector selector) {
+    Iso2709Decoder decoder = new Iso2709Decoder().setFieldSelector(selector);
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    List<Field> records = new ArrayList<>();
+    int position = 0;
+    while (position < marc.length) {
+      int length = Iso2709Decoder.recordLength(marc, position, marc.length);
+      decoder.decode(marc, position, length, builder);
+      records.add(builder.getRecordField());
+      position += length;
+    }
+    return records;
+  }
+
+  private static List<Field> decodeXml(byte[] xml, FieldSelector selector) {
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    List<Field> records = new ArrayList<>();
+    try (MarcXmlDecoder decoder = new MarcXmlDecoder(new ByteArrayInputStream(xml)).setFieldSelector(selector)) {
+      while (decoder.decodeNext(builder)) {
+        records.add(builder.getRecordField());
+      }
+    }
+    return records;
+  }
+
+  private static List<Field> decodeJson(byte[] json) {
+    MarcReader reader = new MarcJsonReader(
+        new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8)
+    );
+    List<Field> records = new ArrayList<>();
+    while (reader.hasNext()) {
+      records.add(MarcParserProcessor.getRecordField(reader.next()));
+    }
+    return records;
+  }
+
+  @Test
+  public void testXmlMatchesIso2709() throws IOException {
+    List<Field> expected = decodeIso2709(
+        Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc")), FieldSelector.ALL
+    );
+    List<Field> actual = decodeXml(
+        Files.readAllBytes(Paths.get("src/test/resources/summerland.xml")), FieldSelector.ALL
+    );
+    assertEquals(expected, actual);
+    assertEquals(
+        new ArrayList<>(expected.get(0).getValueAsListMap().keySet()),
+        new ArrayList<>(actual.get(0).getValueAsListMap().keySet())
+    );
+  }
+
+  @Test
+  public void testXmlFieldSelection() throws IOException {
+    FieldSelector selector = FieldSelector.of(false, Arrays.asList("005", "6XX", "245$c"));
+    List<Field> expected = decodeIso2709(
+        Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc")), selector
+    );
+    List<Field> actual = decodeXml(Files.readAllBytes(Paths.get("src/test/resources/summerland.xml")), selector);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testXmlWithPrefixAndSingleRecord() {
+    String xml = "<marc:record xmlns:marc=\"http://www.loc.gov/MARC21/slim\">"
+        + "<marc:leader>00000nam a2200000 a 4500</marc:leader>"
+        + "<marc:controlfield tag=\"001\">42</marc:controlfield>"
+        + "<marc:datafield tag=\"245\" ind1=\"1\" ind2=\"0\">"
+        + "<marc:subfield code=\"a\">Title</marc:subfield><marc:subfield code=\"a\">More</marc:subfield>"
+        + "</marc:datafield></marc:record>";
+    List<Field> records = decodeXml(xml.getBytes(StandardCharsets.UTF_8), FieldSelector.ALL);
+    assertEquals(1, records.size());
+    Field record = records.get(0);
+    assertEquals("00000nam a2200000 a 4500", record.getValueAsListMap().get("leader").getValueAsString());
+    assertEquals("42", record.getValueAsListMap().get("001").getValueAsString());
+    Field field245 = record.getValueAsListMap().get("245").getValueAsList().get(0);
+    assertEquals('1', field245.getValueAsListMap().get("indicator1").getValueAsChar());
+    assertEquals(2, field245.getValueAsListMap().get("a").getValueAsList().size());
+  }
+
+  @Test(expected = MarcFormatException.class)
+  public void testMalformedXml() {
+    decodeXml("<collection><record><leader>x</leader></collection>".getBytes(StandardCharsets.UTF_8),
+        FieldSelector.ALL);
+  }
+
+  @Test
+  public void testJsonMatchesIso2709() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    MarcJsonWriter writer = new MarcJsonWriter(json, MarcJsonWriter.MARC_IN_JSON);
+    MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(marc));
+    while (reader.hasNext()) {
+      writer.write(reader.next());
+    }
+    writer.close();
+
+    assertEquals(decodeIso2709(marc, FieldSelector.ALL), decodeJson(json.toByteArray()));
+  }
+}
@@ -15,28 +15,53 @@
  */
 package io.woolford.stage.processor.marcparser;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.streamsets.pipeline.api.EventRecord;
 import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.OnRecordError;
 import com.streamsets.pipeline.api.Record;
 import com.streamsets.pipeline.api.StageException;
 import com.streamsets.pipeline.sdk.ProcessorRunner;
 import com.streamsets.pipeline.sdk.RecordCreator;
 import com.streamsets.pipeline.sdk.StageRunner;
+import io.woolford.stage.lib.marcparser.AvroRecordSerializer;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.OutputShape;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcStreamWriter;
 import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
 import org.marc4j.marc.Subfield;
 import org.marc4j.marc.impl.DataFieldImpl;
 import org.marc4j.marc.impl.SubfieldImpl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TestMarcParserProcessor {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   @SuppressWarnings("unchecked")
   public void testProcessor() throws StageException, IOException {
@@ -319,4 +344,871 @@ public class TestMarcParserProcessor {
       runner.runDestroy();
     }
   }
+
+  @Test
+  public void testProcessByteArrayInput() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("inputFieldPath", "/marc")
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      Map<String, Field> fields = new HashMap<>();
+      fields.put("marc", Field.create(marc));
+      record.set(Field.create(fields));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      assertEquals(2, output.getRecords().get("output").size());
+      Record record0 = output.getRecords().get("output").get(0);
+      assertEquals("00759cam a2200229 a 4500", record0.get("/leader").getValueAsString());
+      assertEquals("11939876", record0.get("/001").getValueAsString());
+      Record record1 = output.getRecords().get("output").get(1);
+      assertEquals("00714cam a2200205 a 4500", record1.get("/leader").getValueAsString());
+      assertEquals("Summerland /", record1.get("/245[0]/a[0]").getValueAsString());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testMissingInputField() throws StageException {
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("inputFieldPath", "/marc")
+        .setOnRecordError(OnRecordError.TO_ERROR)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      Map<String, Field> fields = new HashMap<>();
+      fields.put("text", Field.create("not here"));
+      record.set(Field.create(fields));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      assertEquals(0, output.getRecords().get("output").size());
+      assertEquals(1, runner.getErrorRecords().size());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testParallelParsingKeepsOrder() throws StageException, IOException {
+    byte[] chabon = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    int copies = 500;
+    byte[] marc = new byte[chabon.length * copies];
+    for (int i = 0; i < copies; i++) {
+      System.arraycopy(chabon, 0, marc, i * chabon.length, chabon.length);
+    }
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("parserThreads", 4)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      Map<String, Field> fields = new HashMap<>();
+      fields.put("text", Field.create(marc));
+      record.set(Field.create(fields));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      List<Record> records = output.getRecords().get("output");
+      assertEquals(copies * 2, records.size());
+      for (int i = 0; i < records.size(); i++) {
+        assertEquals(i % 2 == 0 ? "11939876" : "12883376", records.get(i).get("/001").getValueAsString());
+        assertTrue(records.get(i).getHeader().getSourceId().endsWith("-" + i));
+      }
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testMarcXmlInput() throws StageException, IOException {
+    String xml = new String(Files.readAllBytes(Paths.get("src/test/resources/summerland.xml")), "UTF-8");
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("inputFormat", InputFormat.MARCXML)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(xml))));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      assertEquals(1, output.getRecords().get("output").size());
+      Record record0 = output.getRecords().get("output").get(0);
+      assertEquals("00714cam a2200205 a 4500", record0.get("/leader").getValueAsString());
+      assertEquals("12883376", record0.get("/001").getValueAsString());
+      assertEquals("Summerland /", record0.get("/245[0]/a[0]").getValueAsString());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testFlatOutputShape() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("parserEngine", ParserEngine.MARC4J)
+        .addConfiguration("outputShape", OutputShape.FLAT)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      Record record0 = output.getRecords().get("output").get(0);
+      assertEquals("10", record0.get("/245_ind[0]").getValueAsString());
+      assertEquals("Summerland /", record0.get("/245_a[0]").getValueAsString());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testSkipMalformedRecords() throws StageException, IOException {
+    byte[] chabon = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    byte[] corrupt = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    // Base address of data
+    corrupt[12] = 'x';
+    byte[] marc = new byte[chabon.length * 2 + corrupt.length];
+    System.arraycopy(chabon, 0, marc, 0, chabon.length);
+    System.arraycopy(corrupt, 0, marc, chabon.length, corrupt.length);
+    System.arraycopy(chabon, 0, marc, chabon.length + corrupt.length, chabon.length);
+
+    for (int threads : new int[]{1, 4}) {
+      ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+          .addConfiguration("config", "value")
+          .addConfiguration("parserThreads", threads)
+          .addConfiguration("skipMalformedRecords", true)
+          .setOnRecordError(OnRecordError.TO_ERROR)
+          .addOutputLane("output")
+          .build();
+
+      runner.runInit();
+
+      try {
+        Record record = RecordCreator.create();
+        record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+        StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+        List<Record> records = output.getRecords().get("output");
+        assertEquals(4, records.size());
+        assertEquals("11939876", records.get(2).get("/001").getValueAsString());
+        assertTrue(records.get(2).getHeader().getSourceId().endsWith("-3"));
+
+        assertEquals(1, runner.getErrorRecords().size());
+        Record error = runner.getErrorRecords().get(0);
+        assertEquals("MARC_PARSER_09", error.getHeader().getErrorCode());
+        assertTrue(Arrays.equals(corrupt, error.get("/raw").getValueAsByteArray()));
+      } finally {
+        runner.runDestroy();
+      }
+    }
+  }
+
+  @Test
+  public void testMalformedRecordFailsWholeInput() throws StageException, IOException {
+    byte[] chabon = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    byte[] corrupt = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    // Base address of data
+    corrupt[12] = 'x';
+    byte[] marc = new byte[chabon.length + corrupt.length];
+    System.arraycopy(chabon, 0, marc, 0, chabon.length);
+    System.arraycopy(corrupt, 0, marc, chabon.length, corrupt.length);
+
+    for (int threads : new int[]{1, 4}) {
+      ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+          .addConfiguration("config", "value")
+          .addConfiguration("parserThreads", threads)
+          .setOnRecordError(OnRecordError.TO_ERROR)
+          .addOutputLane("output")
+          .build();
+
+      runner.runInit();
+
+      try {
+        Record record = RecordCreator.create();
+        record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+        // The records of chabon.mrc before the malformed one are not emitted either.
+        StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+        assertEquals(0, output.getRecords().get("output").size());
+        assertEquals(1, runner.getErrorRecords().size());
+        assertEquals("MARC_PARSER_08", runner.getErrorRecords().get(0).getHeader().getErrorCode());
+      } finally {
+        runner.runDestroy();
+      }
+    }
+  }
+
+  @Test
+  public void testLostRecordTerminator() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    int first = Iso2709Decoder.recordLength(marc, 0, marc.length);
+    marc[first - 1] = ' ';
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("skipMalformedRecords", true)
+        .setOnRecordError(OnRecordError.TO_ERROR)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      List<Record> records = output.getRecords().get("output");
+      assertEquals(1, records.size());
+      assertEquals("12883376", records.get(0).get("/001").getValueAsString());
+
+      assertEquals(1, runner.getErrorRecords().size());
+      assertEquals("MARC_PARSER_09", runner.getErrorRecords().get(0).getHeader().getErrorCode());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testDropDuplicates() throws StageException, IOException {
+    byte[] chabon = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    byte[] marc = new byte[chabon.length * 2];
+    System.arraycopy(chabon, 0, marc, 0, chabon.length);
+    System.arraycopy(chabon, 0, marc, chabon.length, chabon.length);
+
+    for (int threads : new int[]{1, 4}) {
+      ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+          .addConfiguration("config", "value")
+          .addConfiguration("parserThreads", threads)
+          .addConfiguration("dropDuplicates", true)
+          .addConfiguration("duplicateCacheSize", 100)
+          .addConfiguration("duplicateCacheTtlSecs", 60)
+          .addOutputLane("output")
+          .build();
+
+      runner.runInit();
+
+      try {
+        Record first = RecordCreator.create();
+        first.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+        Record second = RecordCreator.create();
+        second.set(Field.create(Collections.singletonMap("text", Field.create(chabon))));
+
+        StageRunner.Output output = runner.runProcess(Arrays.asList(first, second));
+        List<Record> records = output.getRecords().get("output");
+        assertEquals(2, records.size());
+        assertTrue(records.get(1).getHeader().getSourceId().endsWith("-1"));
+
+        MetricRegistry metrics = runner.getContext().getMetrics();
+        assertEquals(4, findMeter(metrics, "Duplicate Cache Hits").getCount());
+        assertEquals(2, findMeter(metrics, "Duplicate Cache Misses").getCount());
+      } finally {
+        runner.runDestroy();
+      }
+    }
+  }
+
+  @Test
+  public void testMalformedCopyIsNotADuplicate() throws StageException, IOException {
+    byte[] summerland = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    byte[] corrupt = summerland.clone();
+    // The last directory entry runs past the end of the record, which leaves the 001, 003 and 005 readable.
+    int base = Integer.parseInt(new String(corrupt, 12, 5, StandardCharsets.US_ASCII));
+    corrupt[24 + 12 * ((base - 25) / 12 - 1) + 3] = '9';
+    byte[] marc = new byte[corrupt.length + summerland.length];
+    System.arraycopy(corrupt, 0, marc, 0, corrupt.length);
+    System.arraycopy(summerland, 0, marc, corrupt.length, summerland.length);
+
+    for (int threads : new int[]{1, 4}) {
+      ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+          .addConfiguration("config", "value")
+          .addConfiguration("parserThreads", threads)
+          .addConfiguration("skipMalformedRecords", true)
+          .addConfiguration("dropDuplicates", true)
+          .addConfiguration("duplicateCacheSize", 100)
+          .addConfiguration("duplicateCacheTtlSecs", 60)
+          .setOnRecordError(OnRecordError.TO_ERROR)
+          .addOutputLane("output")
+          .build();
+
+      runner.runInit();
+
+      try {
+        Record first = RecordCreator.create();
+        first.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+        Record second = RecordCreator.create();
+        second.set(Field.create(Collections.singletonMap("text", Field.create(summerland))));
+
+        // The malformed first copy goes to error and is not remembered, so the valid copy after it is emitted.
+        List<Record> records = runner.runProcess(Arrays.asList(first)).getRecords().get("output");
+        assertEquals(1, records.size());
+        assertEquals("12883376", records.get(0).get("/001").getValueAsString());
+        assertTrue(records.get(0).getHeader().getSourceId().endsWith("-1"));
+        assertEquals(1, runner.getErrorRecords().size());
+
+        // The emitted copy is remembered.
+        records = runner.runProcess(Arrays.asList(second)).getRecords().get("output");
+        assertEquals(0, records.size());
+
+        MetricRegistry metrics = runner.getContext().getMetrics();
+        assertEquals(1, findMeter(metrics, "Duplicate Cache Hits").getCount());
+        assertEquals(1, findMeter(metrics, "Duplicate Cache Misses").getCount());
+      } finally {
+        runner.runDestroy();
+      }
+    }
+  }
+
+  @Test
+  public void testSerializedOutputFormats() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+
+    for (OutputFormat format : new OutputFormat[]{OutputFormat.JSON, OutputFormat.AVRO}) {
+      ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+          .addConfiguration("config", "value")
+          .addConfiguration("outputFormat", format)
+          .addOutputLane("output")
+          .build();
+
+      runner.runInit();
+
+      try {
+        Record record = RecordCreator.create();
+        record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+        StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+        List<Record> records = output.getRecords().get("output");
+        assertEquals(2, records.size());
+        Record summerland = records.get(1);
+        assertEquals(2, summerland.get().getValueAsListMap().size());
+        assertEquals("12883376", summerland.get("/001").getValueAsString());
+        assertEquals(Field.Type.BYTE_ARRAY, summerland.get("/data").getType());
+        if (format == OutputFormat.AVRO) {
+          assertEquals(AvroRecordSerializer.SCHEMA, summerland.getHeader().getAttribute("marcAvroSchema"));
+        } else {
+          String json = new String(summerland.get("/data").getValueAsByteArray(), StandardCharsets.UTF_8);
+          assertTrue(json.contains("{\"001\":\"12883376\"}"));
+        }
+      } finally {
+        runner.runDestroy();
+      }
+    }
+  }
+
+  @Test
+  public void testExplodedOutput() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("outputFormat", OutputFormat.EXPLODED)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      List<Record> rows = runner.runProcess(Arrays.asList(record)).getRecords().get("output");
+      // The leader, 001, 005 and 008, then one row per subfield.
+      assertEquals(24, rows.size());
+      assertEquals("leader", rows.get(0).get("/tag").getValueAsString());
+      for (Record row : rows) {
+        assertEquals("12883376", row.get("/controlNumber").getValueAsString());
+      }
+      Record title = rows.get(10);
+      assertEquals("245", title.get("/tag").getValueAsString());
+      assertEquals(0, title.get("/fieldOccurrence").getValueAsInteger());
+      assertEquals('1', title.get("/indicator1").getValueAsChar());
+      assertEquals("a", title.get("/code").getValueAsString());
+      assertEquals(0, title.get("/subfieldOccurrence").getValueAsInteger());
+      assertEquals("Summerland /", title.get("/value").getValueAsString());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testExtractIdentifiers() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("projectionMode", ProjectionMode.INCLUDE)
+        .addConfiguration("projectedFields", Arrays.asList("245"))
+        .addConfiguration("extractIdentifiers", true)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      List<Record> records = output.getRecords().get("output");
+      assertEquals("9780679450047", records.get(0).get("/ids/isbn[0]").getValueAsString());
+      assertEquals("9780786816156", records.get(1).get("/ids/isbn[1]").getValueAsString());
+      assertEquals(0, records.get(1).get("/ids/lccn").getValueAsList().size());
+      Assert.assertFalse(records.get(1).has("/020"));
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testDecodeFixedFields() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("projectionMode", ProjectionMode.INCLUDE)
+        .addConfiguration("projectedFields", Arrays.asList("245"))
+        .addConfiguration("decodeFixedFields", true)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      Record parsed = output.getRecords().get("output").get(1);
+      assertEquals("BK", parsed.get("/fixed/leader/materialType").getValueAsString());
+      assertEquals(714, parsed.get("/fixed/leader/recordLength").getValueAsInteger());
+      assertEquals("2002", parsed.get("/fixed/008/date1").getValueAsString());
+      assertEquals("eng", parsed.get("/fixed/008/language").getValueAsString());
+      Assert.assertFalse(parsed.has("/008"));
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testDetectChanges() throws StageException, IOException {
+    byte[] summerland = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    byte[] chabon = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    String fingerprints = folder.getRoot().toPath().resolve("fingerprints").toString();
+
+    // Two runs of the pipeline, sharing the fingerprint file.
+    int[][] emitted = new int[2][];
+    for (int run = 0; run < 2; run++) {
+      ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+          .addConfiguration("config", "value")
+          .addConfiguration("detectChanges", true)
+          .addConfiguration("fingerprintFile", fingerprints)
+          .addOutputLane("output")
+          .build();
+      runner.runInit();
+      try {
+        Record first = RecordCreator.create();
+        first.set(Field.create(Collections.singletonMap("text", Field.create(summerland))));
+        Record second = RecordCreator.create();
+        second.set(Field.create(Collections.singletonMap("text", Field.create(run == 0 ? summerland : chabon))));
+        emitted[run] = new int[]{
+            runner.runProcess(Arrays.asList(first)).getRecords().get("output").size(),
+            runner.runProcess(Arrays.asList(second)).getRecords().get("output").size()
+        };
+      } finally {
+        runner.runDestroy();
+      }
+    }
+
+    // Summerland is new in the first batch, then unchanged in the same run and in the next one. Chabon's second
+    // record is Summerland again, so only its first record is new.
+    Assert.assertArrayEquals(new int[]{1, 0}, emitted[0]);
+    Assert.assertArrayEquals(new int[]{0, 1}, emitted[1]);
+  }
+
+  @Test
+  public void testDetectChangesAfterFailedBatch() throws StageException, IOException {
+    byte[] summerland = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    byte[] chabon = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    String fingerprints = folder.getRoot().toPath().resolve("fingerprints").toString();
+
+    // The first run stops after its only batch, as it would when a later stage fails it. The second run gets the
+    // replayed batch, then a new one.
+    int[][] emitted = new int[2][];
+    for (int run = 0; run < 2; run++) {
+      ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+          .addConfiguration("config", "value")
+          .addConfiguration("detectChanges", true)
+          .addConfiguration("fingerprintFile", fingerprints)
+          .addOutputLane("output")
+          .build();
+      runner.runInit();
+      try {
+        Record replayed = RecordCreator.create();
+        replayed.set(Field.create(Collections.singletonMap("text", Field.create(summerland))));
+        int first = runner.runProcess(Arrays.asList(replayed)).getRecords().get("output").size();
+        if (run == 0) {
+          emitted[run] = new int[]{first};
+          continue;
+        }
+        Record next = RecordCreator.create();
+        next.set(Field.create(Collections.singletonMap("text", Field.create(chabon))));
+        emitted[run] = new int[]{first, runner.runProcess(Arrays.asList(next)).getRecords().get("output").size()};
+      } finally {
+        runner.runDestroy();
+      }
+    }
+
+    // Summerland is emitted again with the replayed batch, and committed once the next batch arrives.
+    Assert.assertArrayEquals(new int[]{1}, emitted[0]);
+    Assert.assertArrayEquals(new int[]{1, 1}, emitted[1]);
+  }
+
+  @Test
+  public void testEnrichAuthorities() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    Path authorities = folder.getRoot().toPath().resolve("authorities.mrc");
+    try (OutputStream out = Files.newOutputStream(authorities)) {
+      MarcFactory factory = MarcFactory.newInstance();
+      MarcStreamWriter writer = new MarcStreamWriter(out, "UTF8");
+      String[][] headings = {{"n79021164", "100", "Chabon, Michael"}, {"sh85079672", "150", "Magic"}};
+      for (String[] heading : headings) {
+        org.marc4j.marc.Record authority = factory.newRecord("00000nz  a2200000n  4500");
+        authority.addVariableField(factory.newControlField("001", heading[0]));
+        DataField field = factory.newDataField(heading[1], '1', ' ');
+        field.addSubfield(factory.newSubfield('a', heading[2]));
+        authority.addVariableField(field);
+        writer.write(authority);
+      }
+      writer.close();
+    }
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("enrichAuthorities", true)
+        .addConfiguration("authorityFile", authorities.toString())
+        .addConfiguration("authorityCacheSize", 100)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      Record parsed = output.getRecords().get("output").get(0);
+      assertEquals("n79021164", parsed.get("/100[0]/0[0]").getValueAsString());
+      Assert.assertFalse(parsed.has("/650[0]/0"));
+      assertEquals("sh85079672", parsed.get("/650[2]/0[0]").getValueAsString());
+      assertTrue(Files.exists(Paths.get(authorities + MarcParserProcessor.AUTHORITY_INDEX_SUFFIX)));
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testMetrics() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .setOnRecordError(OnRecordError.TO_ERROR)
+        .addOutputLane("output")
+        .build();
+
+    runner.runInit();
+
+    try {
+      Record good = RecordCreator.create();
+      good.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+      Record truncated = RecordCreator.create();
+      truncated.set(Field.create(Collections.singletonMap("text", Field.create(Arrays.copyOf(marc, 100)))));
+
+      StageRunner.Output output = runner.runProcess(Arrays.asList(good, truncated));
+      assertEquals(2, output.getRecords().get("output").size());
+      assertEquals(1, runner.getErrorRecords().size());
+
+      MetricRegistry metrics = runner.getContext().getMetrics();
+      assertEquals(2, findMeter(metrics, "MARC Records").getCount());
+      assertEquals(marc.length, findMeter(metrics, "Input Bytes").getCount());
+      assertEquals(1, findCounter(metrics, "Failures MARC_PARSER_08").getCount());
+      assertEquals(2, findHistogram(metrics, "Fields Per MARC Record").getCount());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testMergeHoldings() throws StageException, IOException {
+    MarcFactory factory = MarcFactory.newInstance();
+    ByteArrayOutputStream bibs = new ByteArrayOutputStream();
+    ByteArrayOutputStream holdings = new ByteArrayOutputStream();
+    MarcStreamWriter bibWriter = new MarcStreamWriter(bibs, "UTF8");
+    MarcStreamWriter holdingsWriter = new MarcStreamWriter(holdings, "UTF8");
+    org.marc4j.marc.Record bib = factory.newRecord("00000nam a2200000 a 4500");
+    bib.addVariableField(factory.newControlField("001", "b1"));
+    bibWriter.write(bib);
+    // The first holdings record belongs to the bibliographic record of the previous input, the second to none.
+    for (String parent : new String[]{"b1", "b2"}) {
+      org.marc4j.marc.Record mfhd = factory.newRecord("00000nx  a2200000n  4500");
+      mfhd.addVariableField(factory.newControlField("001", "h-" + parent));
+      mfhd.addVariableField(factory.newControlField("004", parent));
+      DataField location = factory.newDataField("852", '0', ' ');
+      location.addSubfield(factory.newSubfield('b', "MAIN"));
+      mfhd.addVariableField(location);
+      holdingsWriter.write(mfhd);
+    }
+    bibWriter.close();
+    holdingsWriter.close();
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("mergeHoldings", true)
+        .addConfiguration("holdingsWindow", 10)
+        .addConfiguration("orphanHoldings", OrphanHoldings.TO_ERROR)
+        .setOnRecordError(OnRecordError.TO_ERROR)
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+    try {
+      Record first = RecordCreator.create();
+      first.set(Field.create(Collections.singletonMap("text", Field.create(bibs.toByteArray()))));
+      Record second = RecordCreator.create();
+      second.set(Field.create(Collections.singletonMap("text", Field.create(holdings.toByteArray()))));
+
+      List<Record> output = runner.runProcess(Arrays.asList(first, second)).getRecords().get("output");
+      assertEquals(1, output.size());
+      assertEquals("b1", output.get(0).get("/001").getValueAsString());
+      List<Field> attached = output.get(0).get("/holdings").getValueAsList();
+      assertEquals(1, attached.size());
+      assertEquals("h-b1", attached.get(0).getValueAsListMap().get("001").getValueAsString());
+      assertEquals(1, runner.getErrorRecords().size());
+      assertEquals("h-b2", runner.getErrorRecords().get(0).get("/001").getValueAsString());
+
+      MetricRegistry metrics = runner.getContext().getMetrics();
+      assertEquals(1, findMeter(metrics, "Merged Holdings Records").getCount());
+      assertEquals(1, findMeter(metrics, "Orphan Holdings Records").getCount());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testHoldingsInNextBatchAreOrphans() throws StageException, IOException {
+    MarcFactory factory = MarcFactory.newInstance();
+    ByteArrayOutputStream bibs = new ByteArrayOutputStream();
+    ByteArrayOutputStream holdings = new ByteArrayOutputStream();
+    MarcStreamWriter bibWriter = new MarcStreamWriter(bibs, "UTF8");
+    MarcStreamWriter holdingsWriter = new MarcStreamWriter(holdings, "UTF8");
+    org.marc4j.marc.Record bib = factory.newRecord("00000nam a2200000 a 4500");
+    bib.addVariableField(factory.newControlField("001", "b1"));
+    bibWriter.write(bib);
+    org.marc4j.marc.Record mfhd = factory.newRecord("00000nx  a2200000n  4500");
+    mfhd.addVariableField(factory.newControlField("001", "h-b1"));
+    mfhd.addVariableField(factory.newControlField("004", "b1"));
+    holdingsWriter.write(mfhd);
+    bibWriter.close();
+    holdingsWriter.close();
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("mergeHoldings", true)
+        .addConfiguration("holdingsWindow", 10)
+        .addConfiguration("orphanHoldings", OrphanHoldings.TO_ERROR)
+        .setOnRecordError(OnRecordError.TO_ERROR)
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+    try {
+      Record first = RecordCreator.create();
+      first.set(Field.create(Collections.singletonMap("text", Field.create(bibs.toByteArray()))));
+      Record second = RecordCreator.create();
+      second.set(Field.create(Collections.singletonMap("text", Field.create(holdings.toByteArray()))));
+
+      // The window is emptied at the end of each batch, so the bibliographic record leaves without its holdings.
+      List<Record> output = runner.runProcess(Collections.singletonList(first)).getRecords().get("output");
+      assertEquals(1, output.size());
+      assertEquals("b1", output.get(0).get("/001").getValueAsString());
+      assertEquals(0, output.get(0).get("/holdings").getValueAsList().size());
+
+      output = runner.runProcess(Collections.singletonList(second)).getRecords().get("output");
+      assertEquals(0, output.size());
+      assertEquals(1, runner.getErrorRecords().size());
+      assertEquals("h-b1", runner.getErrorRecords().get(0).get("/001").getValueAsString());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testValidateOnly() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    // A wrong record length in the leader of the second record.
+    int second = Iso2709Decoder.recordLength(marc, 0, marc.length);
+    marc[second + 4]++;
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("validateOnly", true)
+        .addConfiguration("maxReportedViolations", 10)
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      List<Record> output = runner.runProcess(Arrays.asList(record)).getRecords().get("output");
+      assertEquals(1, output.size());
+      Record summary = output.get(0);
+      assertEquals(marc.length, summary.get("/bytes").getValueAsInteger());
+      assertEquals(2, summary.get("/records").getValueAsInteger());
+      assertEquals(1, summary.get("/invalidRecords").getValueAsInteger());
+      assertEquals(1, summary.get("/violationCount").getValueAsInteger());
+      assertEquals(1, summary.get("/violations[0]/record").getValueAsInteger());
+      assertEquals(second, summary.get("/violations[0]/offset").getValueAsInteger());
+      assertTrue(summary.get("/violations[0]/message").getValueAsString().startsWith("Record length"));
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testProfileEvents() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("profileCorpus", true)
+        .addConfiguration("profileTopN", 10)
+        .addConfiguration("profileIntervalSecs", 0)
+        .addConfiguration("projectionMode", ProjectionMode.INCLUDE)
+        .addConfiguration("projectedFields", Arrays.asList("245"))
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", Field.create(marc))));
+
+      List<Record> output = runner.runProcess(Arrays.asList(record)).getRecords().get("output");
+      assertEquals(2, output.size());
+      assertEquals(new HashSet<>(Arrays.asList("leader", "245")), output.get(1).get().getValueAsListMap().keySet());
+      assertEquals(1, runner.getEventRecords().size());
+      EventRecord event = runner.getEventRecords().get(0);
+      assertEquals("marc-profile", event.getEventType());
+      assertEquals(2, event.get("/records").getValueAsLong());
+      // The tags of fields that are not selected are counted from the directory, but only selected subfields are
+      // profiled.
+      assertEquals(10, event.get("/tags").getValueAsList().size());
+      assertEquals("245$a", event.get("/distinctValues[0]/field").getValueAsString());
+      assertEquals(2, event.get("/distinctValues[0]/distinct").getValueAsLong());
+
+      runner.runProcess(Arrays.asList(record));
+      List<EventRecord> events = runner.getEventRecords();
+      assertEquals(4, events.get(events.size() - 1).get("/records").getValueAsLong());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testCompressedInput() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    byte[] xml = Files.readAllBytes(Paths.get("src/test/resources/summerland.xml"));
+    List<Field> expected = parseAll(InputFormat.ISO_2709, Field.create(marc));
+
+    for (String format : new String[]{"gzip", "bzip2", "zstd"}) {
+      byte[] compressed = compress(format, marc);
+      assertEquals(format, expected, parseAll(InputFormat.ISO_2709, Field.create(compressed)));
+    }
+    // Compressed data read as ISO-8859-1 text, one char per byte.
+    String text = new String(compress("gzip", marc), StandardCharsets.ISO_8859_1);
+    assertEquals(expected, parseAll(InputFormat.ISO_2709, Field.create(text)));
+    assertEquals(
+        parseAll(InputFormat.MARCXML, Field.create(xml)),
+        parseAll(InputFormat.MARCXML, Field.create(compress("bzip2", xml)))
+    );
+  }
+
+  private static List<Field> parseAll(InputFormat format, Field input) throws StageException {
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcParserDProcessor.class)
+        .addConfiguration("config", "value")
+        .addConfiguration("inputFormat", format)
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+    try {
+      Record record = RecordCreator.create();
+      record.set(Field.create(Collections.singletonMap("text", input)));
+      List<Field> fields = new ArrayList<>();
+      for (Record output : runner.runProcess(Arrays.asList(record)).getRecords().get("output")) {
+        fields.add(output.get());
+      }
+      assertEquals(0, runner.getErrorRecords().size());
+      return fields;
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  private static byte[] compress(String format, byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream compressed;
+    switch (format) {
+      case "gzip":
+        compressed = new GZIPOutputStream(out);
+        break;
+      case "bzip2":
+        compressed = new BZip2CompressorOutputStream(out);
+        break;
+      default:
+        compressed = new ZstdCompressorOutputStream(out);
+        break;
+    }
+    compressed.write(data);
+    compressed.close();
+    return out.toByteArray();
+  }
+
+  private static Meter findMeter(MetricRegistry metrics, String name) {
+    return metrics.getMeters((metricName, metric) -> metricName.contains(name)).values().iterator().next();
+  }
+
+  private static Counter findCounter(MetricRegistry metrics, String name) {
+    return metrics.getCounters((metricName, metric) -> metricName.contains(name)).values().iterator().next();
+  }
+
+  private static Histogram findHistogram(MetricRegistry metrics, String name) {
+    return metrics.getHistograms((metricName, metric) -> metricName.contains(name)).values().iterator().next();
+  }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcparser;
+
+import com.streamsets.pipeline.api.Field;
+import io.woolford.stage.lib.marcparser.FieldSelector;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import io.woolford.stage.lib.marcparser.MarcFormatException;
+import org.junit.Test;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestNativeDecoder {
+
+  private static List<Field> decodeNative(byte[] marc) {
+    return decodeNative(marc, FieldSelector.ALL);
+  }
+
+  private static List<Field> decodeNative(byte[] marc, FieldSelector selector) {
+    Iso2709Decoder decoder = new Iso2709Decoder().setFieldSelector(selector);
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    List<Field> records = new ArrayList<>();
+    int position = 0;
+    while (position < marc.length) {
+      int length = Iso2709Decoder.recordLength(marc, position, marc.length);
+      decoder.decode(marc, position, length, builder);
+      records.add(builder.getRecordField());
+      position += length;
+    }
+    return records;
+  }
+
+  private static List<Field> decodeMarc4j(byte[] marc) {
+    return decodeMarc4j(marc, FieldSelector.ALL);
+  }
+
+  private static List<Field> decodeMarc4j(byte[] marc, FieldSelector selector) {
+    MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(marc));
+    List<Field> records = new ArrayList<>();
+    while (reader.hasNext()) {
+      records.add(MarcParserProcessor.getRecordField(reader.next(), selector));
+    }
+    return records;
+  }
+
+  @Test
+  public void testMatchesMarc4j() throws IOException {
+    for (String file : new String[]{"src/test/resources/summerland.mrc", "src/test/resources/chabon.mrc"}) {
+      byte[] marc = Files.readAllBytes(Paths.get(file));
+      List<Field> expected = decodeMarc4j(marc);
+      List<Field> actual = decodeNative(marc);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i), actual.get(i));
+        assertEquals(
+            new ArrayList<>(expected.get(i).getValueAsListMap().keySet()),
+            new ArrayList<>(actual.get(i).getValueAsListMap().keySet())
+        );
+      }
+    }
+  }
+
+  @Test
+  public void testFieldSelection() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/chabon.mrc"));
+    FieldSelector selector = FieldSelector.of(true, Arrays.asList("001", "245$a$c", "6XX"));
+    List<Field> expected = decodeMarc4j(marc, selector);
+    List<Field> actual = decodeNative(marc, selector);
+    assertEquals(expected, actual);
+
+    Map<String, Field> record = actual.get(1).getValueAsListMap();
+    assertEquals(Arrays.asList("leader", "001", "245", "650"), new ArrayList<>(record.keySet()));
+    Map<String, Field> field245 = record.get("245").getValueAsList().get(0).getValueAsListMap();
+    assertEquals(Arrays.asList("indicator1", "indicator2", "a", "c"), new ArrayList<>(field245.keySet()));
+  }
+
+  @Test
+  public void testDataFieldShape() throws IOException {
+    Field record = decodeNative(Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"))).get(0);
+    Field field650 = record.getValueAsListMap().get("650").getValueAsList().get(1);
+    assertEquals(Field.Type.LIST_MAP, field650.getType());
+    assertEquals(' ', field650.getValueAsListMap().get("indicator1").getValueAsChar());
+    assertEquals('1', field650.getValueAsListMap().get("indicator2").getValueAsChar());
+    assertEquals("Baseball", field650.getValueAsListMap().get("a").getValueAsList().get(0).getValueAsString());
+    assertEquals("Fiction.", field650.getValueAsListMap().get("v").getValueAsList().get(0).getValueAsString());
+  }
+
+  @Test(expected = MarcFormatException.class)
+  public void testTruncatedRecord() throws IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    byte[] truncated = new byte[marc.length - 10];
+    System.arraycopy(marc, 0, truncated, 0, truncated.length);
+    decodeNative(truncated);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 StreamSets Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.woolford.stage.processor.marcwriter;
+
+import com.streamsets.pipeline.api.Field;
+import com.streamsets.pipeline.api.OnRecordError;
+import com.streamsets.pipeline.api.Record;
+import com.streamsets.pipeline.api.StageException;
+import com.streamsets.pipeline.sdk.ProcessorRunner;
+import com.streamsets.pipeline.sdk.RecordCreator;
+import com.streamsets.pipeline.sdk.StageRunner;
+import io.woolford.stage.lib.marcparser.FieldTreeBuilder;
+import io.woolford.stage.lib.marcparser.Iso2709Decoder;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestMarcWriterProcessor {
+
+  @Test
+  public void testRoundTrip() throws StageException, IOException {
+    byte[] marc = Files.readAllBytes(Paths.get("src/test/resources/summerland.mrc"));
+    FieldTreeBuilder builder = new FieldTreeBuilder();
+    new Iso2709Decoder().decode(marc, 0, marc.length, builder);
+
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcWriterDProcessor.class)
+        .addConfiguration("recordFieldPath", "/")
+        .addConfiguration("outputFieldPath", "/marc")
+        .addOutputLane("output")
+        .build();
+    runner.runInit();
+    try {
+      Record record = RecordCreator.create();
+      record.set(builder.getRecordField());
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      Record written = output.getRecords().get("output").get(0);
+      assertArrayEquals(marc, written.get("/marc").getValueAsByteArray());
+      assertEquals("12883376", written.get("/001").getValueAsString());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+
+  @Test
+  public void testMissingLeaderIsRecordError() throws StageException {
+    ProcessorRunner runner = new ProcessorRunner.Builder(MarcWriterDProcessor.class)
+        .addConfiguration("recordFieldPath", "/")
+        .addConfiguration("outputFieldPath", "/marc")
+        .addOutputLane("output")
+        .setOnRecordError(OnRecordError.TO_ERROR)
+        .build();
+    runner.runInit();
+    try {
+      LinkedHashMap<String, Field> root = new LinkedHashMap<>();
+      root.put("001", Field.create("12883376"));
+      Record record = RecordCreator.create();
+      record.set(Field.createListMap(root));
+      StageRunner.Output output = runner.runProcess(Arrays.asList(record));
+      assertEquals(0, output.getRecords().get("output").size());
+      assertEquals(1, runner.getErrorRecords().size());
+    } finally {
+      runner.runDestroy();
+    }
+  }
+}